@@ -0,0 +1,9 @@
+@echo off
+rem --- FXCore instruction set simulator, runs an assembler program and reports execution counts
+rem passed order is: 
+rem   %1=program file (FXCore assembler, e.g. output of the macro processor)
+rem   %2... options, e.g. --in=input.wav --out=output.wav --pot0=0.5
+
+set mypath=%~dp0
+
+java -cp "%mypath%FXCoreMP.jar" com.cabintech.sim.SimMain %*
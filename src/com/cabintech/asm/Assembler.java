@@ -0,0 +1,225 @@
+package com.cabintech.asm;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.cabintech.toon.SyntaxException;
+import com.cabintech.toon.Toon;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Resolves every operand of the translated program the way the FXCore assembler does and checks it
+ * is in range. Labels become program addresses, ".rn" names become
+ * registers, and ".equ" and ".mem" expressions become numbers. The result is the program with every
+ * operand in its final form, one instruction per line, so errors are found without running the
+ * external tools and the output of two builds can be compared.
+ *
+ * Immediates are 16 bits, written either as a signed fraction with a decimal point (S.15) or as an
+ * integer. Shift counts are 0-31 and delay memory addresses must be inside the delay memory (the
+ * total size of the ".mem" buffers is checked by the delay memory planner in FXCoreMPMain).
+ * Instructions that are not in the InstructionTable are copied with only their register names
+ * resolved.
+ *
+ * This is not an assembler, no program image is made. The HEX file is still built by FXCorePreProc
+ * and FXCoreCmdAsm (see build/fxcoremp-assemble.cmd).
+ */
+public class Assembler {
+
+	// Instructions whose immediate is a shift count
+	private static final Set<String> SHIFTS = Set.of("sl", "sls", "sr", "sra");
+
+	/**
+	 * An error found while resolving.
+	 *
+	 * @param line		Index of the program line with the error
+	 * @param message
+	 */
+	public record Error(int line, String message) {
+	}
+
+	/**
+	 * Result of resolving a program.
+	 *
+	 * @param lines		Resolved instructions, "opcode operand,operand" in program address order
+	 * @param errors	Errors found, in program order
+	 * @param memUsed	Delay memory words allocated by ".mem"
+	 */
+	public record Result(List<String> lines, List<Error> errors, int memUsed) {
+	}
+
+	private Assembler() {
+	}
+
+	/**
+	 * Resolves the operands of every instruction in the program.
+	 * @param program
+	 * @return
+	 */
+	public static Result resolve(List<Instr> program) {
+		List<String> lines = new ArrayList<>();
+		List<Error> errors = new ArrayList<>();
+
+		// Label addresses
+		Map<String,Integer> labels = new HashMap<>();
+		int pc = 0;
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (instr.label().length() > 0 && labels.put(instr.label().toUpperCase(), pc) != null) {
+				errors.add(new Error(i, "Label '"+instr.label()+"' is defined more than once."));
+			}
+			if (instr.isInstruction()) pc++;
+		}
+
+		SymbolTable symbols = new SymbolTable();
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			try {
+				if (instr.type() == Instr.Type.DIRECTIVE) {
+					symbols.directive(instr);
+				}
+				else if (instr.isInstruction()) {
+					lines.add(resolve(instr, symbols, labels));
+				}
+			}
+			catch (SyntaxException e) {
+				errors.add(new Error(i, e.getMessage()));
+				if (instr.isInstruction()) lines.add("; "+instr.opcode()+" "+String.join(",", instr.operands()));
+			}
+		}
+		return new Result(lines, errors, symbols.getMemUsed());
+	}
+
+	private static String resolve(Instr instr, SymbolTable symbols, Map<String,Integer> labels) throws SyntaxException {
+		InstrDef def = instr.getDef();
+		if (def == null) {
+			// Not in the instruction table (e.g. PITCH and SET), only register names are resolved
+			List<String> ops = new ArrayList<>();
+			for (String op: instr.operands()) {
+				String reg = symbols.register(op.trim());
+				ops.add(reg != null ? reg : op.trim());
+			}
+			return instr.opcode() + (ops.isEmpty() ? "" : " "+String.join(",", ops));
+		}
+		if (instr.operands().size() != def.operandCount()) {
+			throw new SyntaxException("Instruction '"+instr.opcode()+"' requires "+def.operandCount()+" operand"+(def.operandCount()==1?"":"s")+", found "+instr.operands().size()+".");
+		}
+		List<String> ops = new ArrayList<>();
+		for (int k=0; k<def.operandCount(); k++) {
+			String text = instr.operands().get(k).trim();
+			switch (def.operand(k)) {
+			case CR:
+			case MR:
+			case SFR:
+				ops.add(register(text, def.operand(k), symbols));
+				break;
+			case ADDR:
+				int addr = symbols.intValue(text.startsWith("(") && text.endsWith(")") ? text.substring(1, text.length()-1) : text, null);
+				if (addr < 0 || addr >= SymbolTable.DELAY_MEMORY_SIZE) throw new SyntaxException("Delay memory address '"+text+"' ("+addr+") is outside the delay memory.");
+				ops.add(Integer.toString(addr));
+				break;
+			case LABEL:
+				Integer target = labels.get(text.toUpperCase());
+				if (target == null) throw new SyntaxException("Branch target '"+text+"' is not defined.");
+				ops.add(Integer.toString(target));
+				break;
+			case LFO:
+				int lfo = lfoSelector(text);
+				ops.add("LFO"+(lfo & 3)+"|"+((lfo & 4) != 0 ? "COS" : "SIN")+"|"+((lfo & 8) != 0 ? 1 : 0));
+				break;
+			case IMM:
+				if (SHIFTS.contains(def.opcode())) {
+					int n = symbols.intValue(text, null);
+					if (n < 0 || n > 31) throw new SyntaxException("Shift count '"+text+"' ("+n+") must be 0 to 31.");
+					ops.add(Integer.toString(n));
+				}
+				else if (def.opcode().equals("interp")) {
+					ops.add(Integer.toString(symbols.intValue(text, null)));
+				}
+				else {
+					ops.add(String.format("0x%04X", imm16(text, symbols) & 0xFFFF));
+				}
+				break;
+			}
+		}
+		return instr.opcode() + (ops.isEmpty() ? "" : " "+String.join(",", ops));
+	}
+
+	private static String register(String text, Kind kind, SymbolTable symbols) throws SyntaxException {
+		String reg = symbols.register(text);
+		String error = registerError(text, reg, kind);
+		if (error != null) throw new SyntaxException(error);
+		return reg;
+	}
+
+	/**
+	 * Returns the error for a register operand that is not the kind of register the instruction
+	 * needs, or null if it is.
+	 * @param text		Operand as written
+	 * @param reg		Register it resolves to with the ".rn" names, null if it is not a register
+	 * @param kind		CR, MR or SFR
+	 * @return
+	 */
+	static String registerError(String text, String reg, Kind kind) {
+		boolean ok = reg != null;
+		if (ok) {
+			switch (kind) {
+			case CR:	ok = reg.equals("FLAGS") || RegAccess.isCoreReg(reg) && (reg.equals("ACC32") || Integer.parseInt(reg.substring(1)) < 16); break;
+			case MR:	ok = RegAccess.isMemReg(reg) && Integer.parseInt(reg.substring(2)) < 128; break;
+			default:	ok = Toon.SrfNameSet.contains(reg.toLowerCase()); break;
+			}
+		}
+		return ok ? null : "'"+text+"' is not "+(kind == Kind.CR ? "a core register" : (kind == Kind.MR ? "a memory register" : "a special function register"))+".";
+	}
+
+	/**
+	 * Returns the value of a 16 bit immediate operand. A value written with a decimal point is a
+	 * signed fraction (S.15), otherwise it is the raw 16 bit value (signed or unsigned).
+	 */
+	private static int imm16(String text, SymbolTable symbols) throws SyntaxException {
+		return imm16(text, symbols.evaluate(text));
+	}
+
+	/**
+	 * Returns the 16 bit immediate for the value of an operand, sign extended.
+	 * @param text		Operand as written, a decimal point makes it S.15
+	 * @param value		Value of the operand
+	 * @return
+	 * @throws SyntaxException if the value does not fit in 16 bits
+	 */
+	public static int imm16(String text, BigDecimal value) throws SyntaxException {
+		if (value.stripTrailingZeros().scale() > 0 || text.indexOf('.') >= 0) {
+			double d = value.doubleValue();
+			if (d < -1.0 || d >= 1.0) throw new SyntaxException("Immediate value '"+text.trim()+"' must be -1.0 to 0.99997.");
+			return (short)Math.max(-32768, Math.min(32767, Math.round(d * 32768.0)));
+		}
+		long v = value.longValue();
+		if (v < -32768 || v > 65535) throw new SyntaxException("Immediate value '"+text.trim()+"' does not fit in 16 bits.");
+		return (short)v;
+	}
+
+	/**
+	 * Returns the LFO selector of a CHR instruction (e.g. "lfo1|sin|0") as the LFO number in bits 0-1,
+	 * bit 2 set for cosine and bit 3 set to negate.
+	 * @param text
+	 * @return
+	 * @throws SyntaxException if the selector is not valid
+	 */
+	public static int lfoSelector(String text) throws SyntaxException {
+		String[] parts = text.toUpperCase().replace(" ", "").split("\\|");
+		if (parts.length < 2 || !Toon.LfoNames.contains(parts[0])) throw new SyntaxException("Invalid CHR LFO selector '"+text+"'.");
+		int lfo = parts[0].charAt(3) - '0';
+		if (parts[1].equals("COS")) lfo |= 4;
+		else if (!parts[1].equals("SIN")) throw new SyntaxException("Invalid CHR LFO selector '"+text+"', expected SIN or COS.");
+		if (parts.length > 2 && parts[2].equals("1")) lfo |= 8;
+		return lfo;
+	}
+}
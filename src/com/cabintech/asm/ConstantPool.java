@@ -0,0 +1,300 @@
+package com.cabintech.asm;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.SyntaxException;
+import com.cabintech.toon.Toon;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Moves constants built in ACC32 every sample into memory registers that are initialized when the
+ * program is loaded. A chain of instructions that starts with "xor acc32,acc32" or a WRDLD on ACC32
+ * and continues with WRDLD, ORI, XORI or ANDI on ACC32 with constant immediates leaves a known 32 bit
+ * value in ACC32 (e.g. the "wrdld/ori" pairs of library macros). If the chain is followed by a
+ * "cpy_cc <cr>,acc32" and ACC32 is written again before it is read, the value is a constant load
+ * of that CR and the copy is part of the chain. A chain of more than one instruction is replaced
+ * by one "cpy_cm <cr>,<mr>" and a ".mreg" directive gives the MR the value. Chains that build the
+ * same value share one MR. A lone WRDLD is already a single instruction, so it is left as it is.
+ *
+ * Only MRs that are not named anywhere in the program (including ".rn" and ".mreg" directives) are
+ * used, taken from MR127 down so they stay clear of MRs assigned by counting up. Values used most
+ * often get an MR first. A program that reads MRs by index (CPY_CMX) may read any MR, so nothing
+ * is pooled.
+ *
+ * This runs once after the other optimizations, the ".mreg" lines it adds would stop their windows.
+ *
+ * TOON constant loads into CRs other than ACC32 with lower bits ("r5 = 0x12345678") are made from a pool MR,
+ * assign() gives their placeholder names MRs the same way when the whole program has been translated.
+ */
+public class ConstantPool {
+
+	public static final String RULE = "const-pool";
+
+	// Instructions that can continue a chain, all with an ACC32 source and a constant immediate
+	private static final List<String> CHAIN = List.of("wrdld", "ori", "xori", "andi");
+	private static final int WINDOW = 16; // Max instructions looked at for the next write of ACC32
+
+	private static final String SEP1 = "\t\t";
+	private static final int NUM_MR = 128;
+	private static final String INDEXED = "program reads MRs by index (cpy_cmx)";
+
+	private record Chain(List<Integer> lines, int value, String dest) {
+	}
+
+	private final Map<Integer,Integer> pool = new LinkedHashMap<>(); // Constant -> MR number
+	private int loads = 0;
+	private String skipped = null;
+
+	private ConstantPool() {
+	}
+
+	/**
+	 * Pools the constants of the program. Returns the pool that was made.
+	 * @param opt
+	 * @return
+	 */
+	static ConstantPool run(Optimizer opt) {
+		ConstantPool cp = new ConstantPool();
+		List<Instr> program = new ArrayList<>();
+		for (int i=0; i<opt.size(); i++) {
+			program.add(opt.get(i));
+		}
+		BitSet used = namedMrs(program);
+		if (used == null) {
+			cp.skipped = INDEXED;
+			return cp;
+		}
+
+		// Find the chains, and how often each value is built
+		List<Chain> chains = new ArrayList<>();
+		Map<Integer,Integer> uses = new LinkedHashMap<>();
+		opt.resetNames();
+		for (int i=0; i<opt.size(); i++) {
+			Instr instr = opt.get(i);
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				opt.directive(instr);
+				continue;
+			}
+			Integer start;
+			if (instr.opcode().equals("xor") && isAcc32(opt, instr, 0) && isAcc32(opt, instr, 1)) {
+				start = 0;
+			}
+			else if (instr.opcode().equals("wrdld")) {
+				start = step(opt, instr, 0);
+			}
+			else {
+				continue;
+			}
+			if (start == null) continue;
+			List<Integer> lines = new ArrayList<>(List.of(i));
+			int value = start;
+			int last = i;
+			int j;
+			for (j=opt.next(i); j >= 0 && !opt.joinAt(last, j); j=opt.next(j)) {
+				Integer v = step(opt, opt.get(j), value);
+				if (v == null) break;
+				value = v;
+				lines.add(j);
+				last = j;
+			}
+			String dest = "ACC32";
+			if (j >= 0 && !opt.joinAt(last, j) && isCopyToCr(opt, opt.get(j)) && acc32Dead(opt, j)) {
+				dest = opt.get(j).operands().get(0).trim();
+				lines.add(j);
+				last = j;
+			}
+			if (lines.size() < 2) continue;
+			chains.add(new Chain(lines, value, dest));
+			uses.merge(value, 1, Integer::sum);
+			i = last;
+		}
+
+		// Most used values first, each to the highest free MR
+		List<Map.Entry<Integer,Integer>> order = new ArrayList<>(uses.entrySet());
+		order.sort((a, b) -> b.getValue() - a.getValue());
+		int mr = NUM_MR;
+		for (Map.Entry<Integer,Integer> e: order) {
+			mr = used.previousClearBit(mr-1);
+			if (mr < 0) break;
+			cp.pool.put(e.getKey(), mr);
+		}
+
+		Set<Integer> defined = new HashSet<>(); // Values with their .mreg written
+		for (Chain chain: chains) {
+			Integer n = cp.pool.get(chain.value());
+			if (n == null) continue;
+			List<Integer> lines = chain.lines();
+			opt.replace(lines.get(0), "cpy_cm", List.of(chain.dest(), "MR"+n), RULE);
+			for (int k=1; k<lines.size(); k++) {
+				opt.remove(lines.get(k), RULE);
+			}
+			if (defined.add(chain.value())) {
+				// The MR initializer goes where the chain was first built
+				int at = lines.get(lines.size()-1);
+				String hex = String.format("0x%08X", chain.value());
+				opt.define(at, ".mreg", List.of("MR"+n, hex), ".mreg"+SEP1+"MR"+n+"\t"+hex+SEP1+"; [opt] "+RULE);
+			}
+			opt.hit(RULE);
+			cp.loads++;
+		}
+		return cp;
+	}
+
+	/**
+	 * Assigns MRs to the constant pool placeholders of the translated program (see Toon.loadConstant()).
+	 * Loads of the same value share an MR, and only the first ".mreg" for each MR is kept. Returns the
+	 * pool that was made.
+	 * @param program
+	 * @return
+	 * @throws SyntaxException if the program reads MRs by index or there are not enough free MRs
+	 */
+	public static ConstantPool assign(List<Instr> program) throws SyntaxException {
+		ConstantPool cp = new ConstantPool();
+		BitSet used = namedMrs(program);
+		Map<String,Integer> mrs = new HashMap<>(); // Placeholder (upper case) -> MR number
+		int mr = NUM_MR;
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (instr.type() != Instr.Type.DIRECTIVE || !instr.opcode().equals(".mreg") || !isPlaceholder(instr.operands().get(0))) continue;
+			String key = instr.operands().get(0).toUpperCase();
+			String hex = instr.operands().get(1);
+			if (mrs.containsKey(key)) {
+				program.set(i, Instr.text("; .mreg MR"+mrs.get(key)+" "+hex+" (constant pool, shared)", instr.source()));
+				continue;
+			}
+			if (used == null) throw new SyntaxException("A constant pool MR is needed, but the "+INDEXED+" so no MR is known to be free.", instr.source());
+			mr = used.previousClearBit(mr-1);
+			if (mr < 0) throw new SyntaxException("No free MR for the constant pool, all "+NUM_MR+" MRs are used.", instr.source());
+			mrs.put(key, mr);
+			cp.pool.put((int)Long.decode(hex).longValue(), mr);
+			program.set(i, new Instr(Instr.Type.DIRECTIVE, "", ".mreg", List.of("MR"+mr, hex), "", "", ".mreg"+SEP1+"MR"+mr+"\t"+hex+SEP1+"; constant pool", instr.source()));
+		}
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (!instr.isInstruction()) continue;
+			List<String> operands = new ArrayList<>(instr.operands());
+			boolean changed = false;
+			for (int k=0; k<operands.size(); k++) {
+				Integer n = mrs.get(operands.get(k).trim().toUpperCase());
+				if (n != null) {
+					operands.set(k, "MR"+n);
+					changed = true;
+				}
+			}
+			if (changed) {
+				program.set(i, new Instr(instr.type(), instr.label(), instr.opcode(), List.copyOf(operands), instr.trailer(), instr.comment(), null, instr.source()));
+				cp.loads++;
+			}
+		}
+		return cp;
+	}
+
+	private static boolean isPlaceholder(String operand) {
+		return operand.trim().toLowerCase().startsWith(Toon.POOL_PREFIX);
+	}
+
+	/**
+	 * Returns the MRs named by any instruction or directive of the program, or null if the program
+	 * reads MRs by index.
+	 */
+	private static BitSet namedMrs(List<Instr> program) {
+		BitSet used = new BitSet(NUM_MR);
+		for (Instr instr: program) {
+			if (instr.opcode().equals("cpy_cmx")) return null;
+			if (instr.type() != Instr.Type.OP && instr.type() != Instr.Type.DIRECTIVE) continue;
+			for (String operand: instr.operands()) {
+				String t = operand.trim().toUpperCase();
+				if (RegAccess.isMemReg(t)) used.set(Integer.parseInt(t.substring(2)));
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the value of ACC32 after a chain instruction, or null if the instruction does not
+	 * continue the chain.
+	 */
+	private static Integer step(Optimizer opt, Instr instr, int value) {
+		if (!CHAIN.contains(instr.opcode()) || instr.operands().size() != 2 || !isAcc32(opt, instr, 0)) return null;
+		BigDecimal constant = StrengthReduction.constant(instr, opt.symbols());
+		if (constant == null) return null;
+		int imm;
+		try {
+			imm = Assembler.imm16(instr.operands().get(1), constant) & 0xFFFF;
+		}
+		catch (SyntaxException e) {
+			return null; // Left for the assembler to report
+		}
+		switch (instr.opcode()) {
+		case "wrdld":	return imm << 16; // The lower half is cleared
+		case "ori":		return value | imm;
+		case "xori":	return value ^ imm;
+		default:		return value & imm;
+		}
+	}
+
+	/**
+	 * Returns TRUE if the instruction is "cpy_cc <cr>,acc32" with a CR other than ACC32.
+	 */
+	private static boolean isCopyToCr(Optimizer opt, Instr instr) {
+		if (!instr.opcode().equals("cpy_cc") || instr.operands().size() != 2 || !isAcc32(opt, instr, 1)) return false;
+		String reg = opt.register(instr.operands().get(0));
+		return reg != null && RegAccess.isCoreReg(reg) && !reg.equals("ACC32");
+	}
+
+	/**
+	 * Returns TRUE if ACC32 is written after index i before it is read. Any branch, the end of the
+	 * program, or a directive ends the search and ACC32 is assumed to be used there.
+	 */
+	private static boolean acc32Dead(Optimizer opt, int i) {
+		int j = i;
+		for (int n=0; n<WINDOW; n++) {
+			j = opt.next(j);
+			if (j < 0) return false;
+			RegAccess next = opt.access(j);
+			if (next.opaque() || next.readsFlags() || next.reads().contains("ACC32")) return false;
+			if (next.writes().contains("ACC32")) return true;
+			if (next.branch()) return false;
+		}
+		return false;
+	}
+
+	private static boolean isAcc32(Optimizer opt, Instr instr, int operand) {
+		return operand < instr.operands().size() && "ACC32".equals(opt.register(instr.operands().get(operand)));
+	}
+
+	/**
+	 * Returns the number of MRs in the pool.
+	 * @return
+	 */
+	public int size() {
+		return pool.size();
+	}
+
+	/**
+	 * Returns the number of constant loads replaced by a pool MR.
+	 * @return
+	 */
+	public int getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Returns why no constants were pooled, or null if pooling was done.
+	 * @return
+	 */
+	public String getSkipped() {
+		return skipped;
+	}
+}
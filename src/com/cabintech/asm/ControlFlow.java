@@ -0,0 +1,218 @@
+package com.cabintech.asm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.Target;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Control flow cleanup, mostly of the branches generated for IF/ELSE/ENDIF. The program is split
+ * into basic blocks at branch targets and after branches, and these rewrites are applied:
+ *
+ *   jump-thread	A branch to a "jmp" goes directly to the final target.
+ *   jump-next		A branch to the label right after it is removed.
+ *   branch-invert	"jz r0,L1 / jmp L2 / L1:" becomes "jnz r0,L2 / L1:" (an empty THEN clause).
+ *   unreachable	Blocks that cannot be reached from the start of the program are removed, e.g. the
+ *   				"jmp _endif_N" generated at ELSE when the THEN clause ends with a GOTO.
+ *
+ * Labels are matched ignoring case, as the assembler does. If any branch target is not a label
+ * defined (once) in the program, the reachability analysis is skipped since any block might be a
+ * target (SymbolCheck reports the branch as an error).
+ */
+public class ControlFlow {
+
+	public static final List<String> RULES = List.of("jump-thread", "jump-next", "branch-invert", "unreachable");
+
+	// Conditional branches and their inverse, JZC has no inverse
+	private static final Map<String,String> INVERSE = Map.of(
+			"jz",	"jnz",
+			"jnz",	"jz",
+			"jgez",	"jneg",
+			"jneg",	"jgez"
+			);
+
+	private final Optimizer opt;
+	private final int size;
+	private final Map<String,Integer> labels = new HashMap<>(); // Label (upper case) -> line that defines it, -1 if defined more than once
+
+	private ControlFlow(Optimizer opt) {
+		this.opt = opt;
+		this.size = opt.size();
+		for (int i=0; i<size; i++) {
+			String label = opt.get(i).label().toUpperCase();
+			if (label.length() > 0) {
+				labels.put(label, labels.containsKey(label) ? -1 : i);
+			}
+		}
+	}
+
+	/**
+	 * Applies the control flow rewrites once over the program. Returns the number of rewrites.
+	 * @param opt
+	 * @return
+	 */
+	static int run(Optimizer opt) {
+		// Rewrites never move or remove a label, so the label table stays valid for the whole pass
+		ControlFlow cf = new ControlFlow(opt);
+		int count = 0;
+		for (int i=0; i<cf.size; i++) {
+			if (!cf.isBranch(i)) continue;
+			if (cf.jumpNext(i) || cf.branchInvert(i) || cf.jumpThread(i)) count++;
+		}
+		return count + cf.unreachable();
+	}
+
+	private boolean isBranch(int i) {
+		Instr instr = opt.get(i);
+		return instr.isInstruction() && instr.getDef() != null && instr.getDef().target() == Target.BRANCH
+				&& instr.operands().size() == instr.getDef().operandCount();
+	}
+
+	private static String target(Instr branch) {
+		return branch.operands().get(branch.operands().size()-1);
+	}
+
+	/**
+	 * Returns TRUE if the label is defined after line i and before (or on) the next instruction.
+	 */
+	private boolean definedNext(String label, int i) {
+		Integer at = labels.get(label.toUpperCase());
+		if (at == null || at <= i) return false;
+		for (int k=i+1; k<at; k++) {
+			if (opt.get(k).isInstruction()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the line of the first instruction at or after the label, or -1 if there is none or
+	 * the label is not defined once.
+	 */
+	private int instructionAt(String label) {
+		Integer at = labels.get(label.toUpperCase());
+		if (at == null || at < 0) return -1;
+		for (int k=at; k<size; k++) {
+			if (opt.get(k).isInstruction()) return k;
+		}
+		return -1;
+	}
+
+	private boolean jumpNext(int i) {
+		if (!definedNext(target(opt.get(i)), i)) return false;
+		opt.remove(i, "jump-next");
+		opt.hit("jump-next");
+		return true;
+	}
+
+	private boolean branchInvert(int i) {
+		Instr cond = opt.get(i);
+		String inverse = INVERSE.get(cond.opcode());
+		if (inverse == null) return false;
+		int j = opt.next(i);
+		if (j < 0 || opt.joinAt(i, j) || !opt.get(j).opcode().equals("jmp") || !isBranch(j)) return false;
+		if (!definedNext(target(cond), j)) return false;
+		opt.replace(i, inverse, List.of(cond.operands().get(0), target(opt.get(j))), "branch-invert");
+		opt.remove(j, "branch-invert");
+		opt.hit("branch-invert");
+		return true;
+	}
+
+	private boolean jumpThread(int i) {
+		Instr branch = opt.get(i);
+		String label = target(branch);
+		Set<String> seen = new HashSet<>();
+		seen.add(label.toUpperCase());
+		while (true) {
+			int t = instructionAt(label);
+			if (t < 0 || !opt.get(t).opcode().equals("jmp") || !isBranch(t)) break;
+			String next = target(opt.get(t));
+			if (!seen.add(next.toUpperCase())) return false; // Loop of jumps
+			label = next;
+		}
+		if (label.equals(target(branch))) return false;
+		List<String> ops = new ArrayList<>(branch.operands());
+		ops.set(ops.size()-1, label);
+		opt.replace(i, branch.opcode(), ops, "jump-thread");
+		opt.hit("jump-thread");
+		return true;
+	}
+
+	/**
+	 * Removes the instructions of basic blocks that cannot be reached from the start of the program.
+	 */
+	private int unreachable() {
+		// Every branch must target a known label
+		Set<String> targets = new HashSet<>();
+		for (int i=0; i<size; i++) {
+			if (!isBranch(i)) continue;
+			String label = target(opt.get(i)).toUpperCase();
+			Integer at = labels.get(label);
+			if (at == null || at < 0) return 0;
+			targets.add(label);
+		}
+
+		// Split into basic blocks: a block starts at a branch target or after a branch
+		List<Integer> starts = new ArrayList<>(); // First line of each block
+		int[] blockOf = new int[size]; // Line -> block
+		boolean newBlock = true;
+		for (int i=0; i<size; i++) {
+			Instr instr = opt.get(i);
+			if (targets.contains(instr.label().toUpperCase())) newBlock = true;
+			if (newBlock && instr.isInstruction()) {
+				starts.add(i);
+				newBlock = false;
+			}
+			blockOf[i] = starts.size()-1; // Lines before the first instruction are in block -1
+			if (isBranch(i)) newBlock = true;
+		}
+		if (starts.isEmpty()) return 0;
+
+		// Walk the blocks reachable from the first one
+		boolean[] reached = new boolean[starts.size()];
+		Deque<Integer> work = new ArrayDeque<>();
+		work.add(0);
+		reached[0] = true;
+		while (!work.isEmpty()) {
+			int b = work.removeFirst();
+			int end = b+1 < starts.size() ? starts.get(b+1) : size;
+			int last = -1;
+			for (int i=starts.get(b); i<end; i++) {
+				if (opt.get(i).isInstruction()) last = i;
+			}
+			List<Integer> succ = new ArrayList<>();
+			if (isBranch(last)) {
+				int t = instructionAt(target(opt.get(last)));
+				if (t >= 0) succ.add(blockOf[t]);
+			}
+			if (!opt.get(last).opcode().equals("jmp") && b+1 < starts.size()) {
+				succ.add(b+1); // Falls through
+			}
+			for (int s: succ) {
+				if (!reached[s]) {
+					reached[s] = true;
+					work.add(s);
+				}
+			}
+		}
+
+		int count = 0;
+		for (int i=0; i<size; i++) {
+			if (blockOf[i] >= 0 && !reached[blockOf[i]] && opt.get(i).isInstruction()) {
+				opt.remove(i, "unreachable");
+				opt.hit("unreachable");
+				count++;
+			}
+		}
+		return count;
+	}
+}
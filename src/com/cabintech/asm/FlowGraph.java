@@ -0,0 +1,96 @@
+package com.cabintech.asm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Target;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * The possible successors of each instruction of a program, for analyses that need to follow
+ * branches. Instructions are numbered in program order (only OP lines are counted). The end of the
+ * program is numbered size(), a branch to a label after the last instruction goes there. Labels are
+ * matched ignoring case, as the assembler does.
+ *
+ * A branch to a label that is not defined in the program has no known successor, the analyses
+ * using the graph check undefinedAt() and give up (SymbolCheck reports the branch as an error).
+ */
+final class FlowGraph {
+
+	private final List<Integer> lines = new ArrayList<>();	// Instruction number -> program line
+	private final List<int[]> succ = new ArrayList<>();		// Instruction number -> successor instruction numbers
+	private int undefinedAt = -1;							// Program line of the first branch to an undefined label
+
+	FlowGraph(List<Instr> program) {
+		// Instruction number of each label, the first instruction at or after the line that defines it
+		Map<String,Integer> labels = new HashMap<>();
+		List<String> pending = new ArrayList<>();
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (instr.label().length() > 0) pending.add(instr.label());
+			if (instr.isInstruction()) {
+				for (String label: pending) labels.putIfAbsent(label.toUpperCase(), lines.size());
+				pending.clear();
+				lines.add(i);
+			}
+		}
+		for (String label: pending) labels.putIfAbsent(label.toUpperCase(), lines.size());
+
+		int end = lines.size();
+		for (int n=0; n<end; n++) {
+			Instr instr = program.get(lines.get(n));
+			InstrDef def = instr.getDef();
+			if (def != null && def.target() == Target.BRANCH && instr.operands().size() == def.operandCount()) {
+				Integer target = labels.get(instr.operands().get(def.operandCount()-1).trim().toUpperCase());
+				if (target == null) {
+					if (undefinedAt < 0) undefinedAt = lines.get(n);
+					succ.add(new int[] {});
+				}
+				else if (instr.opcode().equals("jmp")) {
+					succ.add(new int[] {target});
+				}
+				else {
+					succ.add(new int[] {n+1, target});
+				}
+			}
+			else {
+				succ.add(new int[] {n+1});
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of instructions.
+	 */
+	int size() {
+		return lines.size();
+	}
+
+	/**
+	 * Returns the program line of instruction n.
+	 */
+	int line(int n) {
+		return lines.get(n);
+	}
+
+	/**
+	 * Returns the program line of the first branch to a label that is not defined, or -1 if every
+	 * branch target is defined. The successors of such a branch are not known.
+	 */
+	int undefinedAt() {
+		return undefinedAt;
+	}
+
+	/**
+	 * Returns the instruction numbers that can follow instruction n, size() for the end of the program.
+	 */
+	int[] successors(int n) {
+		return succ.get(n);
+	}
+}
@@ -0,0 +1,247 @@
+package com.cabintech.asm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.utils.Util;
+import com.ezylang.evalex.Expression;
+import com.ezylang.evalex.config.ExpressionConfiguration;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Optimizes the translated program (--optimize). Constant operands are simplified by StrengthReduction,
+ * the Peephole rules are tried at every instruction, then redundant loads are removed by ValueTracking
+ * and the ControlFlow cleanup is done, and the whole program is passed over again until nothing changes.
+ * Finally constants built in ACC32 are moved to MR initializers by the ConstantPool.
+ *
+ * Lines are never deleted from the program list, a removed instruction is replaced by a comment line
+ * (or a label line if it defined a label). The output shows what was removed, and the lines still
+ * line up with the source statements they were translated from.
+ *
+ * Rules only look at straight line code, a look ahead stops at the end of the program, at any
+ * directive (so ".rn" names are constant within a window), and at a branch.
+ */
+public class Optimizer {
+
+	private static final String SEP1 = "\t\t";
+	private static final ExpressionConfiguration exprConfig = ExpressionConfiguration.builder().decimalPlacesRounding(12).build();
+
+	private List<Instr> program = null;
+	private final Map<String,String> rn = new HashMap<>();			// ".rn" names in effect at the current line
+	private final Map<String,Object> equ = new HashMap<>();			// ".equ" symbol values in effect at the current line
+	private final Map<String,Integer> hits = new LinkedHashMap<>();	// Rule name -> number of times applied
+	private ConstantPool pool = null;
+	private int before = 0;
+	private int after = 0;
+
+	public Optimizer() {
+		for (String name: StrengthReduction.RULES) {
+			hits.put(name, 0);
+		}
+		for (Peephole.Rule rule: Peephole.RULES) {
+			hits.put(rule.name(), 0);
+		}
+		hits.put(ValueTracking.RULE, 0);
+		for (String name: ControlFlow.RULES) {
+			hits.put(name, 0);
+		}
+		hits.put(ConstantPool.RULE, 0);
+	}
+
+	/**
+	 * Optimizes the program in place. The number of lines in the list is not changed.
+	 * @param program
+	 */
+	public void optimize(List<Instr> program) {
+		this.program = program;
+		before = countInstructions(program);
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			if (StrengthReduction.run(this) > 0) {
+				changed = true;
+			}
+			resetNames();
+			for (int i=0; i<program.size(); i++) {
+				Instr instr = program.get(i);
+				if (instr.type() == Instr.Type.DIRECTIVE) {
+					directive(instr);
+					continue;
+				}
+				for (Peephole.Rule rule: Peephole.RULES) {
+					if (!program.get(i).isInstruction()) break; // Removed by a previous rule
+					if (rule.matcher().apply(this, i)) {
+						hit(rule.name());
+						changed = true;
+					}
+				}
+			}
+			if (ValueTracking.run(this) > 0) {
+				changed = true;
+			}
+			if (ControlFlow.run(this) > 0) {
+				changed = true;
+			}
+		}
+		pool = ConstantPool.run(this);
+
+		after = countInstructions(program);
+	}
+
+	/**
+	 * Writes the optimization summary.
+	 */
+	public void report() {
+		Util.info("  Optimizer           : "+(before-after)+" instructions removed ("+before+" --> "+after+")");
+		for (Map.Entry<String,Integer> e: hits.entrySet()) {
+			Util.info(String.format("    %-18s: %d", e.getKey(), e.getValue()));
+		}
+	}
+
+	/**
+	 * Returns the constant pool made by the last optimize(), or null if it has not been run.
+	 * @return
+	 */
+	public ConstantPool getConstantPool() {
+		return pool;
+	}
+
+	//---------------------------------------------------------------
+	// Window access for the rules
+	//---------------------------------------------------------------
+
+	/**
+	 * Forgets the ".rn" names and ".equ" symbols, for a pass that starts again at the top of the program.
+	 */
+	void resetNames() {
+		rn.clear();
+		equ.clear();
+	}
+
+	/**
+	 * Tracks the ".rn" names and ".equ" symbols given by a directive line, in program order.
+	 */
+	void directive(Instr instr) {
+		RegAccess.rename(instr, rn);
+		if (instr.opcode().equals(".equ") && instr.operands().size() >= 2) {
+			String symbol = instr.operands().get(0).toUpperCase();
+			String expr = String.join(" ", instr.operands().subList(1, instr.operands().size())).toUpperCase();
+			try {
+				equ.put(symbol, new Expression(expr, exprConfig).withValues(equ).evaluate().getValue());
+			}
+			catch (Throwable t) {
+				equ.put(symbol, expr); // Not a constant expression
+			}
+		}
+	}
+
+	/**
+	 * Returns the ".equ" symbol values in effect at the current line (upper case name to value).
+	 */
+	Map<String,Object> symbols() {
+		return equ;
+	}
+
+	/**
+	 * Returns the number of lines in the program.
+	 */
+	int size() {
+		return program.size();
+	}
+
+	/**
+	 * Returns the program line at index i.
+	 */
+	Instr get(int i) {
+		return program.get(i);
+	}
+
+	/**
+	 * Returns the registers read and written by the instruction at index i.
+	 */
+	RegAccess access(int i) {
+		return RegAccess.of(program.get(i), rn);
+	}
+
+	/**
+	 * Returns the register name of an operand, or null if it is not a register.
+	 */
+	String register(String operand) {
+		return RegAccess.register(operand, rn);
+	}
+
+	/**
+	 * Returns the index of the next instruction after index i, or -1 if the end of the program or
+	 * a directive is reached first.
+	 */
+	int next(int i) {
+		for (int j=i+1; j<program.size(); j++) {
+			Instr instr = program.get(j);
+			if (instr.isInstruction()) return j;
+			if (instr.type() == Instr.Type.DIRECTIVE) return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns TRUE if a label is defined after index i, up to and including index j. Code at j can
+	 * then be reached without passing through i.
+	 */
+	boolean joinAt(int i, int j) {
+		for (int k=i+1; k<=j; k++) {
+			if (program.get(k).label().length() > 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the instruction at index i, leaving a comment (and its label, if it had one).
+	 */
+	void remove(int i, String rule) {
+		Instr instr = program.get(i);
+		String note = "; [opt] "+rule+": "+instr.opcode()+(instr.operands().isEmpty() ? "" : " "+String.join(",", instr.operands()));
+		if (instr.label().length() > 0) {
+			program.set(i, Instr.label(instr.label(), "", SEP1+note, instr.source()));
+		}
+		else {
+			program.set(i, Instr.text(note, instr.source()));
+		}
+	}
+
+	/**
+	 * Replaces the instruction at index i with a different opcode and/or operands, keeping its label.
+	 */
+	void replace(int i, String opcode, List<String> operands, String rule) {
+		Instr instr = program.get(i);
+		String comment = instr.comment().length() > 0 ? instr.comment()+" [opt] "+rule : SEP1+"; [opt] "+rule;
+		program.set(i, new Instr(Instr.Type.OP, instr.label(), opcode, List.copyOf(operands), "", comment, null, instr.source()));
+	}
+
+	/**
+	 * Replaces the instruction at index i with a directive line, e.g. an initializer for a removed load.
+	 */
+	void define(int i, String directive, List<String> operands, String text) {
+		program.set(i, new Instr(Instr.Type.DIRECTIVE, "", directive, List.copyOf(operands), "", "", text, program.get(i).source()));
+	}
+
+	/**
+	 * Counts one application of a rule.
+	 */
+	void hit(String rule) {
+		hits.merge(rule, 1, Integer::sum);
+	}
+
+	private static int countInstructions(List<Instr> program) {
+		int n = 0;
+		for (Instr instr: program) {
+			if (instr.isInstruction()) n++;
+		}
+		return n;
+	}
+}
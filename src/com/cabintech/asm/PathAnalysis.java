@@ -0,0 +1,78 @@
+package com.cabintech.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cabintech.toon.Instr;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Finds the longest and shortest number of instructions executed for one sample. The program runs
+ * from the first instruction to the end once per sample, and the conditional branches generated for
+ * "if ... goto" and IF/ELSE/ENDIF skip forward over code, so the longest path can be much shorter
+ * than the program size.
+ *
+ * Every branch must go forward, the control flow graph is then acyclic and both paths are found in
+ * one pass from the end of the program back to the start. A backward branch (a loop) makes the
+ * execution time unknown and no paths are computed, as does a branch to a label that is not defined.
+ */
+public class PathAnalysis {
+
+	/**
+	 * Result of the analysis.
+	 *
+	 * @param instructions	Number of instructions in the program
+	 * @param longest		Instructions executed on the longest path
+	 * @param shortest		Instructions executed on the shortest path
+	 * @param criticalPath	Program lines of the instructions on the longest path, in execution order
+	 * @param loopAt		Program line of a backward branch, -1 if none (the paths are then not computed)
+	 * @param undefinedAt	Program line of a branch to an undefined label, -1 if none (the paths are then not computed)
+	 */
+	public record Paths(int instructions, int longest, int shortest, List<Integer> criticalPath, int loopAt, int undefinedAt) {
+	}
+
+	private PathAnalysis() {
+	}
+
+	/**
+	 * Analyzes the paths through a program.
+	 * @param program
+	 * @return
+	 */
+	public static Paths analyze(List<Instr> program) {
+		FlowGraph flow = new FlowGraph(program);
+		int n = flow.size();
+		if (flow.undefinedAt() >= 0) {
+			return new Paths(n, -1, -1, List.of(), -1, flow.undefinedAt());
+		}
+		for (int k=0; k<n; k++) {
+			for (int s: flow.successors(k)) {
+				if (s <= k) return new Paths(n, -1, -1, List.of(), flow.line(k), -1);
+			}
+		}
+
+		// Path lengths from each instruction to the end, the end of the program is n
+		int[] longest = new int[n+1];
+		int[] shortest = new int[n+1];
+		int[] nextOnLongest = new int[n+1];
+		for (int k=n-1; k>=0; k--) {
+			longest[k] = -1;
+			shortest[k] = Integer.MAX_VALUE;
+			for (int s: flow.successors(k)) {
+				if (longest[s] + 1 > longest[k]) {
+					longest[k] = longest[s] + 1;
+					nextOnLongest[k] = s;
+				}
+				shortest[k] = Math.min(shortest[k], shortest[s] + 1);
+			}
+		}
+
+		List<Integer> path = new ArrayList<>();
+		for (int k=0; k<n; k=nextOnLongest[k]) {
+			path.add(flow.line(k));
+		}
+		return new Paths(n, longest[0], shortest[0], path, -1, -1);
+	}
+}
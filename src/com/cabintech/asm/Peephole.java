@@ -0,0 +1,123 @@
+package com.cabintech.asm;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Peephole optimization rules. Each rule is tried at an instruction and looks ahead a few
+ * instructions of straight line code. A rule that applies rewrites the program through the
+ * Optimizer and returns TRUE. All rules preserve the values of every register, delay memory, and
+ * SFR at the end of the window, so they are safe for any code that follows.
+ *
+ * Rules:
+ *   self-copy		cpy_cc rX,rX
+ *   copy-back		cpy_cc rX,rY ... cpy_cc rY,rX (second copy is removed, also cpy_mc/cpy_cm pairs)
+ *   dead-store		A core register (or ACC32) write that is overwritten before it is read, e.g.
+ *   				"xor acc32,acc32" followed by "cpy_cc acc32,r1", or a WRDLD that is never used
+ */
+public class Peephole {
+
+	private static final int WINDOW = 16; // Max instructions a rule looks ahead
+
+	@FunctionalInterface
+	interface Matcher {
+		boolean apply(Optimizer opt, int i);
+	}
+
+	public record Rule(String name, Matcher matcher) {}
+
+	public static final List<Rule> RULES = List.of(
+			new Rule("self-copy",	Peephole::selfCopy),
+			new Rule("copy-back",	Peephole::copyBack),
+			new Rule("dead-store",	Peephole::deadStore)
+			);
+
+	private Peephole() {
+	}
+
+	/**
+	 * cpy_cc rX,rX does nothing.
+	 */
+	private static boolean selfCopy(Optimizer opt, int i) {
+		Instr instr = opt.get(i);
+		if (!instr.opcode().equals("cpy_cc") || instr.operands().size() != 2) return false;
+		String dest = opt.register(instr.operands().get(0));
+		if (dest == null || !dest.equals(opt.register(instr.operands().get(1)))) return false;
+		opt.remove(i, "self-copy");
+		return true;
+	}
+
+	/**
+	 * After "cpy_cc rX,rY" the two registers hold the same value, so a following "cpy_cc rY,rX" does
+	 * nothing as long as neither register was written in between and the second copy cannot be reached
+	 * from anywhere else.
+	 */
+	private static boolean copyBack(Optimizer opt, int i) {
+		Instr first = opt.get(i);
+		String reverse = reverseCopy(first.opcode());
+		if (reverse == null || first.operands().size() != 2) return false;
+		String a = opt.register(first.operands().get(0));
+		String b = opt.register(first.operands().get(1));
+		if (a == null || b == null) return false;
+
+		int j = i;
+		for (int n=0; n<WINDOW; n++) {
+			j = opt.next(j);
+			if (j < 0 || opt.joinAt(i, j)) return false;
+			Instr instr = opt.get(j);
+			if (instr.opcode().equals(reverse) && instr.operands().size() == 2
+					&& b.equals(opt.register(instr.operands().get(0))) && a.equals(opt.register(instr.operands().get(1)))) {
+				opt.remove(j, "copy-back");
+				return true;
+			}
+			RegAccess acc = opt.access(j);
+			if (acc.opaque() || acc.branch() || acc.writes().contains(a) || acc.writes().contains(b)) return false;
+			if (instr.getDef().effects().sideEffects() && (a.startsWith("MR") || b.startsWith("MR"))) return false; // All-pass may update its MR
+		}
+		return false;
+	}
+
+	private static String reverseCopy(String opcode) {
+		switch (opcode) {
+		case "cpy_cc":	return "cpy_cc";
+		case "cpy_cm":	return "cpy_mc";
+		case "cpy_mc":	return "cpy_cm";
+		default:		return null;
+		}
+	}
+
+	/**
+	 * An instruction whose only effect is writing core registers is removed if every register it
+	 * writes is written again before it is read. Any branch, the end of the program, or a directive
+	 * ends the search and the registers are assumed to be used there.
+	 */
+	private static boolean deadStore(Optimizer opt, int i) {
+		RegAccess acc = opt.access(i);
+		if (!acc.removable()) return false;
+
+		Set<String> pending = new HashSet<>(acc.writes()); // Written, not yet overwritten
+		int j = i;
+		for (int n=0; n<WINDOW; n++) {
+			j = opt.next(j);
+			if (j < 0) return false;
+			RegAccess next = opt.access(j);
+			if (next.opaque() || next.readsFlags()) return false;
+			for (String reg: next.reads()) {
+				if (pending.contains(reg)) return false;
+			}
+			pending.removeAll(next.writes());
+			if (pending.isEmpty()) {
+				opt.remove(i, "dead-store");
+				return true;
+			}
+			if (next.branch()) return false;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,135 @@
+package com.cabintech.asm;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.Effects;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.cabintech.toon.InstructionTable.Target;
+import com.cabintech.toon.Operand;
+import com.cabintech.toon.Toon;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * The registers one instruction reads and writes, with register names resolved through the ".rn"
+ * names in effect where the instruction appears. Register names are upper case, e.g. "R3", "ACC32",
+ * "MR12", "IN0".
+ *
+ * An instruction that is not in the InstructionTable, or that has an operand which is not a known
+ * register where a register is expected, is OPAQUE. Optimizations must assume it reads and writes
+ * everything.
+ */
+public record RegAccess(
+		Set<String> reads,		// Registers read
+		Set<String> writes,		// Registers written
+		boolean opaque,			// Effects are not known
+		boolean branch,			// Conditional or unconditional jump
+		boolean removable		// Only writes core registers and has no other effect
+		) {
+
+	public static final RegAccess OPAQUE = new RegAccess(Set.of(), Set.of(), true, false, false);
+
+	/**
+	 * Returns the registers read and written by an instruction line.
+	 * @param instr
+	 * @param rn ".rn" names in effect (upper case name to upper case register)
+	 * @return
+	 */
+	public static RegAccess of(Instr instr, Map<String,String> rn) {
+		InstrDef def = instr.getDef();
+		if (def == null || def.operandCount() != instr.operands().size()) return OPAQUE;
+
+		Effects fx = def.effects();
+		Set<String> reads = new HashSet<>(fx.uses());
+		Set<String> writes = new HashSet<>(fx.defs());
+		for (int i=0; i<def.operandCount(); i++) {
+			Kind k = def.operand(i);
+			if (k != Kind.CR && k != Kind.MR && k != Kind.SFR) continue;
+			String reg = register(instr.operands().get(i), rn);
+			if (reg == null) return OPAQUE; // Not something we can follow, e.g. an expression
+			if (i == fx.dest()) {
+				writes.add(reg);
+			}
+			else {
+				reads.add(reg);
+			}
+		}
+
+		boolean branch = def.target() == Target.BRANCH;
+		boolean removable = !branch && !def.special() && !fx.sideEffects() && !writes.isEmpty();
+		for (String reg: writes) {
+			if (!isCoreReg(reg)) removable = false; // MR/SFR/ACC64/FLAGS writes are kept
+		}
+		for (String reg: reads) {
+			if (reg.equals("FLAGS") || Toon.SrfNameSet.contains(reg.toLowerCase())) removable = false; // Hardware status reads are kept
+		}
+		return new RegAccess(reads, writes, false, branch, removable);
+	}
+
+	/**
+	 * Tracks the ".rn" name given by a directive line. Directives are seen in program order so
+	 * the map holds the names in effect at each following line.
+	 * @param directive
+	 * @param rn
+	 */
+	public static void rename(Instr directive, Map<String,String> rn) {
+		if (directive.opcode().equals(".rn") && directive.operands().size() >= 2) {
+			rn.put(directive.operands().get(0).toUpperCase(), directive.operands().get(1).toUpperCase());
+		}
+	}
+
+	/**
+	 * Returns the upper case register name of an assembler operand resolved with the ".rn" names,
+	 * or null if the operand is not a register.
+	 * @param operand
+	 * @param rn
+	 * @return
+	 */
+	public static String register(String operand, Map<String,String> rn) {
+		String name = operand.trim().toUpperCase();
+		String reg = rn.get(name);
+		if (reg != null) name = reg;
+		return Operand.isRegisterName(name) ? name : null;
+	}
+
+	/**
+	 * Returns TRUE if the register is ACC32 or R0-R15.
+	 * @param reg
+	 * @return
+	 */
+	public static boolean isCoreReg(String reg) {
+		if (reg.equals("ACC32")) return true;
+		if (reg.length() < 2 || reg.charAt(0) != 'R') return false;
+		for (int i=1; i<reg.length(); i++) {
+			if (reg.charAt(i) < '0' || reg.charAt(i) > '9') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns TRUE if the register is MR0-MR127 (or a higher MR number, which is not a valid register).
+	 * @param reg
+	 * @return
+	 */
+	public static boolean isMemReg(String reg) {
+		if (reg.length() < 3 || reg.charAt(0) != 'M' || reg.charAt(1) != 'R') return false;
+		for (int i=2; i<reg.length(); i++) {
+			if (reg.charAt(i) < '0' || reg.charAt(i) > '9') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns TRUE if this instruction reads the FLAGS register. FLAGS status bits are not modelled,
+	 * so optimizations treat such a read as reading everything.
+	 * @return
+	 */
+	public boolean readsFlags() {
+		return reads.contains("FLAGS");
+	}
+}
@@ -0,0 +1,156 @@
+package com.cabintech.asm;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.ezylang.evalex.Expression;
+import com.ezylang.evalex.config.ExpressionConfiguration;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Rewrites instructions whose immediate operand has a known constant value. The immediate is
+ * evaluated as an expression of numbers and the ".equ" symbols defined before it in the program
+ * (the same way the macro processor evaluates $_eval()), so "acc32 = r0 mult HALF" is seen as a
+ * multiply by 0.5 when HALF is ".equ HALF 0.5". An immediate that cannot be evaluated is left alone.
+ *
+ *   const-identity	ADDI, ADDSI, ORI or XORI with 0, or SL, SR, SRA or SLS by 0, leave the register
+ *   				unchanged. The instruction becomes "cpy_cc acc32,<cr>", or is removed if the
+ *   				register is ACC32. Zero is zero in every immediate encoding.
+ *   mult-to-shift	MULTRI by 2^-k (0.5, 0.25, ... 2^-15, exactly representable in S.15) becomes
+ *   				"sra <cr>,k". Both keep the upper bits of the fixed point product and drop the
+ *   				rest, so the result is rounded toward minus infinity the same way. Integer
+ *   				immediates are raw S.15 values and never match. A multiply by 1 cannot be
+ *   				written (1.0 is out of the S.15 range) so there is nothing to remove.
+ *   shift-fold		Two shifts of the same kind by constants, the second shifting the ACC32 result
+ *   				of the first, become one shift by the sum. SL and SR are folded while the sum is
+ *   				below 32 (beyond that the result is 0, which is left to the programmer), SRA
+ *   				shifts past 31 are the same as 31.
+ */
+public class StrengthReduction {
+
+	public static final List<String> RULES = List.of("const-identity", "mult-to-shift", "shift-fold");
+
+	// Instructions that leave the register unchanged when the immediate is zero
+	private static final Set<String> ZERO_IDENTITY = Set.of("addi", "addsi", "ori", "xori", "sl", "sr", "sra", "sls");
+
+	// Shifts that can be folded, by constant amounts
+	private static final Set<String> SHIFTS = Set.of("sl", "sr", "sra");
+
+	private static final ExpressionConfiguration exprConfig = ExpressionConfiguration.builder().decimalPlacesRounding(12).build();
+
+	private StrengthReduction() {
+	}
+
+	/**
+	 * Makes one pass over the program applying the rewrites. Returns the number applied.
+	 * @param opt
+	 * @return
+	 */
+	static int run(Optimizer opt) {
+		int count = 0;
+		opt.resetNames();
+		for (int i=0; i<opt.size(); i++) {
+			Instr instr = opt.get(i);
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				opt.directive(instr);
+				continue;
+			}
+			if (!instr.isInstruction() || opt.access(i).opaque()) continue;
+			if (constIdentity(opt, i) || multToShift(opt, i) || shiftFold(opt, i)) count++;
+		}
+		return count;
+	}
+
+	private static boolean constIdentity(Optimizer opt, int i) {
+		Instr instr = opt.get(i);
+		if (!ZERO_IDENTITY.contains(instr.opcode())) return false;
+		BigDecimal value = constant(instr, opt.symbols());
+		if (value == null || value.signum() != 0) return false;
+		String source = instr.operands().get(0);
+		if ("ACC32".equals(opt.register(source))) {
+			opt.remove(i, "const-identity");
+		}
+		else {
+			opt.replace(i, "cpy_cc", List.of("ACC32", source), "const-identity");
+		}
+		opt.hit("const-identity");
+		return true;
+	}
+
+	private static boolean multToShift(Optimizer opt, int i) {
+		Instr instr = opt.get(i);
+		if (!instr.opcode().equals("multri")) return false;
+		BigDecimal value = constant(instr, opt.symbols());
+		if (value == null || value.signum() <= 0) return false;
+		BigDecimal power = BigDecimal.ONE;
+		for (int k=1; k<=15; k++) {
+			power = power.divide(BigDecimal.valueOf(2));
+			if (value.compareTo(power) == 0) {
+				opt.replace(i, "sra", List.of(instr.operands().get(0), Integer.toString(k)), "mult-to-shift");
+				opt.hit("mult-to-shift");
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean shiftFold(Optimizer opt, int i) {
+		Instr first = opt.get(i);
+		if (!SHIFTS.contains(first.opcode()) || !opt.access(i).removable()) return false;
+		int j = opt.next(i);
+		if (j < 0 || opt.joinAt(i, j)) return false;
+		Instr second = opt.get(j);
+		if (!second.opcode().equals(first.opcode()) || !"ACC32".equals(opt.register(second.operands().get(0)))) return false;
+		Integer a = shiftCount(first, opt.symbols());
+		Integer b = shiftCount(second, opt.symbols());
+		if (a == null || b == null) return false;
+		int sum = a + b;
+		if (sum > 31) {
+			if (!first.opcode().equals("sra")) return false;
+			sum = 31;
+		}
+		opt.replace(j, first.opcode(), List.of(first.operands().get(0), Integer.toString(sum)), "shift-fold");
+		opt.remove(i, "shift-fold");
+		opt.hit("shift-fold");
+		return true;
+	}
+
+	/**
+	 * Returns the value of a shift count immediate, or null if it is not a constant from 0 to 31.
+	 */
+	private static Integer shiftCount(Instr instr, Map<String,Object> symbols) {
+		BigDecimal value = constant(instr, symbols);
+		if (value == null) return null;
+		try {
+			int n = value.intValueExact();
+			return n >= 0 && n <= 31 ? n : null;
+		}
+		catch (ArithmeticException e) {
+			return null; // Not an integer
+		}
+	}
+
+	/**
+	 * Returns the value of the immediate (last) operand of an instruction, or null if the instruction
+	 * has no immediate or it is not a constant expression.
+	 */
+	static BigDecimal constant(Instr instr, Map<String,Object> symbols) {
+		InstrDef def = instr.getDef();
+		if (def == null || def.operandCount() != instr.operands().size()) return null;
+		int last = def.operandCount()-1;
+		if (def.operand(last) != Kind.IMM) return null;
+		try {
+			return new Expression(instr.operands().get(last).trim().toUpperCase(), exprConfig).withValues(symbols).evaluate().getNumberValue();
+		}
+		catch (Throwable t) {
+			return null; // Not something we can evaluate, e.g. a symbol defined by the assembler
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.cabintech.asm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Checks the symbols of the translated program before it goes to the assembler: every branch
+ * target is a label defined once, every ".rn" names a register, no name is both a ".rn" and an
+ * ".equ" symbol, and every register operand is the kind of register the instruction needs (which
+ * catches a mistyped ".rn" name). This is a single pass with hash tables and no expression
+ * evaluation, so it is always run. Assembler.resolve() does the complete check of the operands.
+ *
+ * Instructions that are not in the InstructionTable are not checked.
+ */
+public class SymbolCheck {
+
+	private SymbolCheck() {
+	}
+
+	/**
+	 * Checks the program. Returns the errors found, in program order.
+	 * @param program
+	 * @return
+	 */
+	public static List<Assembler.Error> check(List<Instr> program) {
+		List<Assembler.Error> errors = new ArrayList<>();
+
+		Set<String> labels = new HashSet<>();
+		for (int i=0; i<program.size(); i++) {
+			String label = program.get(i).label();
+			if (label.length() > 0 && !labels.add(label.toUpperCase())) {
+				errors.add(new Assembler.Error(i, "Label '"+label+"' is defined more than once."));
+			}
+		}
+
+		Map<String,String> rn = new HashMap<>();
+		Set<String> equ = new HashSet<>();
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			List<String> ops = instr.operands();
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				switch (instr.opcode()) {
+				case ".rn":
+					if (ops.size() < 2) {
+						errors.add(new Assembler.Error(i, ".rn requires a name and a register."));
+						break;
+					}
+					String reg = RegAccess.register(ops.get(1), rn);
+					if (!isRegister(ops.get(1), reg)) {
+						errors.add(new Assembler.Error(i, ".rn name '"+ops.get(0)+"' is given '"+ops.get(1)+"', which is not a register."));
+						break;
+					}
+					if (equ.contains(ops.get(0).toUpperCase())) {
+						errors.add(new Assembler.Error(i, "'"+ops.get(0)+"' is defined by both .equ and .rn."));
+					}
+					rn.put(ops.get(0).toUpperCase(), reg);
+					break;
+				case ".equ":
+					if (ops.size() > 0) {
+						equ.add(ops.get(0).toUpperCase());
+						if (rn.containsKey(ops.get(0).toUpperCase())) {
+							errors.add(new Assembler.Error(i, "'"+ops.get(0)+"' is defined by both .rn and .equ."));
+						}
+					}
+					break;
+				}
+				continue;
+			}
+
+			InstrDef def = instr.getDef();
+			if (def == null) continue;
+			if (ops.size() != def.operandCount()) {
+				errors.add(new Assembler.Error(i, "Instruction '"+instr.opcode()+"' requires "+def.operandCount()+" operand"+(def.operandCount()==1?"":"s")+", found "+ops.size()+"."));
+				continue;
+			}
+			for (int k=0; k<ops.size(); k++) {
+				String text = ops.get(k).trim();
+				Kind kind = def.operand(k);
+				if (kind == Kind.LABEL) {
+					if (!labels.contains(text.toUpperCase())) {
+						errors.add(new Assembler.Error(i, "Branch target '"+text+"' is not defined."));
+					}
+				}
+				else if (kind == Kind.CR || kind == Kind.MR || kind == Kind.SFR) {
+					String error = Assembler.registerError(text, RegAccess.register(text, rn), kind);
+					if (error != null) errors.add(new Assembler.Error(i, error));
+				}
+			}
+		}
+		errors.sort(Comparator.comparingInt(Assembler.Error::line));
+		return errors;
+	}
+
+	/**
+	 * Returns TRUE if the operand resolves to a CR, MR or SFR.
+	 */
+	private static boolean isRegister(String text, String reg) {
+		for (Kind kind: List.of(Kind.CR, Kind.MR, Kind.SFR)) {
+			if (Assembler.registerError(text, reg, kind) == null) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,156 @@
+package com.cabintech.asm;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cabintech.fxcoremp.Stmt;
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.SyntaxException;
+import com.ezylang.evalex.Expression;
+import com.ezylang.evalex.config.ExpressionConfiguration;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * The assembler symbols of a program: ".rn" register names, ".equ" constants, and ".mem" delay
+ * memory buffers. Directives are given to the table in program order, so lookups give the
+ * symbols in effect at the current line.
+ *
+ * Delay memory buffers are laid out in the order they are declared starting at address 0. In an
+ * expression a buffer name is its first address and "name#" is its last address, the same as the
+ * FXCore assembler. Expressions are evaluated the same way the macro processor evaluates $_eval().
+ */
+public class SymbolTable {
+
+	/**
+	 * Size of the FXCore delay memory, in words.
+	 */
+	public static final int DELAY_MEMORY_SIZE = 32768;
+
+	/**
+	 * A delay memory buffer.
+	 *
+	 * @param name		Name as declared
+	 * @param base		First address
+	 * @param size		Number of words
+	 * @param source	".mem" statement that declared it
+	 */
+	public record Mem(String name, int base, int size, Stmt source) {
+	}
+
+	private static final Pattern END_REF = Pattern.compile("([A-Za-z_][A-Za-z0-9_]*)#");
+	private static final String END_SUFFIX = "__END";
+
+	private final ExpressionConfiguration exprConfig = ExpressionConfiguration.builder().decimalPlacesRounding(12).build();
+	private final Map<String,String> rn = new HashMap<>();		// Name (upper case) -> register (upper case)
+	private final Map<String,Object> values = new HashMap<>();	// Symbol (upper case) -> value
+	private final List<Mem> mems = new ArrayList<>();
+	private int nextAddress = 0;
+
+	public SymbolTable() {
+	}
+
+	/**
+	 * Records the symbol defined by a directive line. Directives other than ".rn", ".equ" and ".mem"
+	 * are ignored.
+	 * @param directive
+	 * @throws SyntaxException if a ".mem" size is not a constant
+	 */
+	public void directive(Instr directive) throws SyntaxException {
+		List<String> ops = directive.operands();
+		switch (directive.opcode()) {
+		case ".rn":
+			RegAccess.rename(directive, rn);
+			break;
+		case ".equ":
+			if (ops.size() < 2) break;
+			String expr = String.join(" ", ops.subList(1, ops.size()));
+			try {
+				values.put(ops.get(0).toUpperCase(), evaluate(expr));
+			}
+			catch (SyntaxException e) {
+				values.put(ops.get(0).toUpperCase(), expr.toUpperCase()); // Not a constant expression
+			}
+			break;
+		case ".mem":
+			if (ops.size() < 2) throw new SyntaxException(".mem requires a name and a size.", directive.source());
+			int size = intValue(String.join(" ", ops.subList(1, ops.size())), directive.source());
+			if (size < 1) throw new SyntaxException("Size of delay memory buffer '"+ops.get(0)+"' must be at least 1, found "+size+".", directive.source());
+			Mem mem = new Mem(ops.get(0), nextAddress, size, directive.source());
+			mems.add(mem);
+			values.put(mem.name().toUpperCase(), BigDecimal.valueOf(mem.base()));
+			values.put(mem.name().toUpperCase()+END_SUFFIX, BigDecimal.valueOf(mem.base()+size-1));
+			nextAddress += size;
+			break;
+		}
+	}
+
+	/**
+	 * Returns the value of a constant expression.
+	 * @param expr
+	 * @return
+	 * @throws SyntaxException if the expression is not a constant
+	 */
+	public BigDecimal evaluate(String expr) throws SyntaxException {
+		Matcher m = END_REF.matcher(expr.trim().toUpperCase());
+		String text = m.replaceAll("$1"+END_SUFFIX);
+		try {
+			return new Expression(text, exprConfig).withValues(values).evaluate().getNumberValue();
+		}
+		catch (Throwable t) {
+			throw new SyntaxException("'"+expr.trim()+"' is not a constant expression.");
+		}
+	}
+
+	/**
+	 * Returns the value of a constant expression rounded to an integer.
+	 * @param expr
+	 * @param stmt Statement for errors
+	 * @return
+	 * @throws SyntaxException if the expression is not a constant
+	 */
+	public int intValue(String expr, Stmt stmt) throws SyntaxException {
+		try {
+			return evaluate(expr).setScale(0, RoundingMode.HALF_UP).intValueExact();
+		}
+		catch (ArithmeticException e) {
+			throw new SyntaxException("Value of '"+expr.trim()+"' is out of range.", stmt);
+		}
+		catch (SyntaxException e) {
+			throw new SyntaxException(e.getMessage(), stmt);
+		}
+	}
+
+	/**
+	 * Returns the upper case register name of an operand resolved with the ".rn" names, or null if
+	 * it is not a register.
+	 * @param operand
+	 * @return
+	 */
+	public String register(String operand) {
+		return RegAccess.register(operand, rn);
+	}
+
+	/**
+	 * Returns the delay memory buffers in the order they were declared.
+	 * @return
+	 */
+	public List<Mem> getMems() {
+		return mems;
+	}
+
+	/**
+	 * Returns the number of delay memory words used by the buffers.
+	 * @return
+	 */
+	public int getMemUsed() {
+		return nextAddress;
+	}
+}
@@ -0,0 +1,218 @@
+package com.cabintech.asm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.Operand;
+import com.cabintech.toon.SyntaxException;
+import com.cabintech.utils.Util;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Assigns core registers to macro auto temp arguments. A macro argument declared with the '~'
+ * marker, e.g. "$macro CALC_DELAY(base, offset, temp1~)", need not be supplied on the invocation.
+ * It is then given a placeholder name (e.g. "_auto_3") which TOON treats as a CR, and after the
+ * program is translated this assigns each placeholder one of R0-R15.
+ *
+ * Liveness of R0-R15 and the placeholders is computed over the whole program, following branches.
+ * The program runs again from the top for every sample, so the end of the program flows back to
+ * the start and registers that hold a value from one sample to the next are live everywhere they
+ * are not written. A placeholder gets the lowest numbered register that does not hold a live value
+ * anywhere the placeholder is written or live, so a register is reused as soon as its value is dead.
+ *
+ * Instructions with unknown effects are assumed to read every register.
+ */
+public class TempAllocator {
+
+	private static final int NUM_CR = 16; // R0-R15
+
+	private TempAllocator() {
+	}
+
+	/**
+	 * Replaces the auto temp placeholders in the program with core registers.
+	 * @param program
+	 * @param temps Placeholder name (upper case) -> description of the macro argument, for errors
+	 * @return Placeholder name -> register assigned, in order of first use
+	 * @throws SyntaxException if there is no free register for a placeholder or a branch target is not defined
+	 */
+	public static Map<String,String> allocate(List<Instr> program, Map<String,String> temps) throws SyntaxException {
+		FlowGraph flow = new FlowGraph(program);
+		int n = flow.size();
+		if (flow.undefinedAt() >= 0) {
+			// Liveness cannot follow the branch
+			Instr branch = program.get(flow.undefinedAt());
+			throw new SyntaxException("Branch target '"+branch.operands().get(branch.operands().size()-1).trim()+"' is not defined.", branch.source());
+		}
+
+		// Registers read and written by each instruction. R0-R15 are numbered 0-15, placeholders 16 and up.
+		Map<String,Integer> tempIndex = new LinkedHashMap<>();
+		Map<String,Instr> firstUse = new HashMap<>();
+		BitSet[] use = new BitSet[n];
+		BitSet[] def = new BitSet[n];
+		Map<String,String> rn = new HashMap<>();
+		int next = 0; // Next instruction number
+		for (Instr instr: program) {
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				RegAccess.rename(instr, rn);
+				continue;
+			}
+			if (!instr.isInstruction()) continue;
+
+			use[next] = new BitSet();
+			def[next] = new BitSet();
+			RegAccess acc = RegAccess.of(instr, rn);
+			if (acc.opaque()) {
+				use[next].set(0, NUM_CR);
+				for (String op: instr.operands()) {
+					String reg = RegAccess.register(op, rn);
+					if (reg != null && Operand.isAutoTemp(reg)) use[next].set(index(reg, tempIndex, firstUse, instr));
+				}
+			}
+			else {
+				for (String reg: acc.reads()) {
+					int r = index(reg, tempIndex, firstUse, instr);
+					if (r >= 0) use[next].set(r);
+				}
+				for (String reg: acc.writes()) {
+					int r = index(reg, tempIndex, firstUse, instr);
+					if (r >= 0) def[next].set(r);
+				}
+			}
+			next++;
+		}
+		if (tempIndex.isEmpty()) return Map.of();
+
+		// Live registers after each instruction. The end of the program is followed by the first instruction.
+		BitSet[] liveIn = new BitSet[n];
+		BitSet[] liveOut = new BitSet[n];
+		for (int k=0; k<n; k++) {
+			liveIn[k] = new BitSet();
+			liveOut[k] = new BitSet();
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k=n-1; k>=0; k--) {
+				BitSet out = new BitSet();
+				for (int s: flow.successors(k)) {
+					out.or(liveIn[s < n ? s : 0]);
+				}
+				BitSet in = (BitSet)out.clone();
+				in.andNot(def[k]);
+				in.or(use[k]);
+				if (!in.equals(liveIn[k]) || !out.equals(liveOut[k])) {
+					liveIn[k] = in;
+					liveOut[k] = out;
+					changed = true;
+				}
+			}
+		}
+
+		// A placeholder interferes with every register that is live where it is written, and every
+		// register written where it is live
+		int numTemps = tempIndex.size();
+		BitSet[] interferes = new BitSet[numTemps];
+		for (int t=0; t<numTemps; t++) {
+			interferes[t] = new BitSet();
+		}
+		for (int k=0; k<n; k++) {
+			for (int d=def[k].nextSetBit(0); d>=0; d=def[k].nextSetBit(d+1)) {
+				for (int r=liveOut[k].nextSetBit(0); r>=0; r=liveOut[k].nextSetBit(r+1)) {
+					if (r == d) continue;
+					if (d >= NUM_CR) interferes[d-NUM_CR].set(r);
+					if (r >= NUM_CR) interferes[r-NUM_CR].set(d);
+				}
+			}
+		}
+
+		// Assign registers in order of first use
+		int[] assigned = new int[numTemps];
+		Map<String,String> result = new LinkedHashMap<>();
+		for (Map.Entry<String,Integer> e: tempIndex.entrySet()) {
+			int t = e.getValue() - NUM_CR;
+			assigned[t] = -1;
+			for (int reg=0; reg<NUM_CR && assigned[t]<0; reg++) {
+				if (interferes[t].get(reg)) continue;
+				boolean free = true;
+				for (int u=0; u<t && free; u++) {
+					if (assigned[u] == reg && interferes[t].get(u+NUM_CR)) free = false;
+				}
+				if (free) assigned[t] = reg;
+			}
+			if (assigned[t] < 0) {
+				String desc = temps.getOrDefault(e.getKey(), e.getKey());
+				throw new SyntaxException("No free core register for auto temp argument "+desc+", all "+NUM_CR+" CRs hold live values where it is used.", firstUse.get(e.getKey()).source());
+			}
+			result.put(e.getKey(), "R"+assigned[t]);
+		}
+
+		// Rewrite the program with the assigned registers
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (!mentionsTemp(instr)) continue;
+			List<String> ops = new ArrayList<>();
+			for (String op: instr.operands()) {
+				ops.add(substitute(op, result));
+			}
+			program.set(i, new Instr(instr.type(), instr.label(), instr.opcode(), ops, substitute(instr.trailer(), result),
+					substitute(instr.comment(), result), substitute(instr.text(), result), instr.source()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the register number of R0-R15 or a placeholder (adding it if not seen before), or -1 for
+	 * any other register.
+	 */
+	private static int index(String reg, Map<String,Integer> tempIndex, Map<String,Instr> firstUse, Instr instr) {
+		if (Operand.isAutoTemp(reg)) {
+			firstUse.putIfAbsent(reg, instr);
+			return tempIndex.computeIfAbsent(reg, r -> NUM_CR + tempIndex.size());
+		}
+		if (RegAccess.isCoreReg(reg) && !reg.equals("ACC32")) {
+			int r = Integer.parseInt(reg.substring(1));
+			return r < NUM_CR ? r : -1;
+		}
+		return -1;
+	}
+
+	private static boolean mentionsTemp(Instr instr) {
+		if (instr.text() != null) return Util.indexOfIgnoreCase(instr.text(), Operand.AUTO_TEMP_PREFIX) >= 0;
+		for (String op: instr.operands()) {
+			if (Util.indexOfIgnoreCase(op, Operand.AUTO_TEMP_PREFIX) >= 0) return true;
+		}
+		return Util.indexOfIgnoreCase(instr.trailer(), Operand.AUTO_TEMP_PREFIX) >= 0 || Util.indexOfIgnoreCase(instr.comment(), Operand.AUTO_TEMP_PREFIX) >= 0;
+	}
+
+	/**
+	 * Replaces the assigned placeholder names in the text, keeping the case the name was written in.
+	 */
+	private static String substitute(String s, Map<String,String> assigned) {
+		if (s == null) return null;
+		String prefix = Operand.AUTO_TEMP_PREFIX;
+		int i = Util.indexOfIgnoreCase(s, prefix);
+		if (i < 0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		int from = 0;
+		while (i >= 0) {
+			int j = i + prefix.length();
+			while (j < s.length() && Character.isDigit(s.charAt(j))) j++;
+			String reg = assigned.get(s.substring(i, j).toUpperCase());
+			if (reg != null && (j == s.length() || !Character.isJavaIdentifierPart(s.charAt(j)))) {
+				sb.append(s, from, i).append(Character.isUpperCase(s.charAt(i+1)) ? reg : reg.toLowerCase());
+				from = j;
+			}
+			i = Util.indexOfIgnoreCase(s, prefix, j);
+		}
+		sb.append(s, from, s.length());
+		return sb.toString();
+	}
+}
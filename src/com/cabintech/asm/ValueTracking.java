@@ -0,0 +1,162 @@
+package com.cabintech.asm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.Effects;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.cabintech.toon.Toon;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Removes loads of a value a register is already known to hold, e.g. the "cpy_cc r15,r3" generated
+ * for a CHORUS statement when R15 was set from R3 just before, or a macro reloading ACC32 from a
+ * register it was just copied to.
+ *
+ * Values are numbered as the code is scanned forward: each register (ACC32, R0-R15, MRs, and ACC64)
+ * maps to a value number, copies share the number of their source, and instructions that compute a
+ * result from their inputs get the same number for the same inputs. A CPY_CC, CPY_CM, CPY_MC,
+ * WRDLD or RDACC64U/L that would give its destination the number it already has is removed.
+ *
+ * Everything known is forgotten at a label (the start of a basic block), at any instruction whose
+ * effects are not known, and at a read of an SFR. FLAGS and SFR values are never known. Results read
+ * from delay memory or through an MR index are always new values.
+ */
+public class ValueTracking {
+
+	public static final String RULE = "redundant-load";
+
+	// Instructions that can be removed if they do not change the value of their destination
+	private static final Set<String> LOADS = Set.of("cpy_cc", "cpy_cm", "cpy_mc", "wrdld", "rdacc64u", "rdacc64l");
+
+	// Results that are not a function of the registers read
+	private static final Set<String> MEMORY_READS = Set.of("rddel", "rddelx", "rddirx", "cpy_cmx");
+
+	private final Optimizer opt;
+	private final Map<String,Integer> values = new HashMap<>();		// Register -> value number
+	private final Map<String,Integer> exprs = new HashMap<>();		// Expression -> value number
+	private int nextValue = 0;
+
+	private ValueTracking(Optimizer opt) {
+		this.opt = opt;
+	}
+
+	/**
+	 * Makes one pass over the program removing redundant loads. Returns the number removed.
+	 * @param opt
+	 * @return
+	 */
+	static int run(Optimizer opt) {
+		ValueTracking vt = new ValueTracking(opt);
+		int count = 0;
+		opt.resetNames();
+		for (int i=0; i<opt.size(); i++) {
+			Instr instr = opt.get(i);
+			if (instr.label().length() > 0) {
+				vt.values.clear(); // Start of a basic block, may be reached from anywhere
+			}
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				opt.directive(instr);
+			}
+			else if (instr.isInstruction() && vt.step(i)) {
+				opt.remove(i, RULE);
+				opt.hit(RULE);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Updates the known values for the instruction at line i. Returns TRUE if the instruction does
+	 * nothing and can be removed.
+	 */
+	private boolean step(int i) {
+		Instr instr = opt.get(i);
+		RegAccess acc = opt.access(i);
+		if (acc.opaque()) {
+			values.clear();
+			return false;
+		}
+		for (String reg: acc.reads()) {
+			if (Toon.SrfNameSet.contains(reg.toLowerCase())) {
+				values.clear(); // Hardware may have changed anything
+				break;
+			}
+		}
+
+		InstrDef def = instr.getDef();
+		Effects fx = def.effects();
+		String op = instr.opcode();
+		if (LOADS.contains(op)) {
+			String dest = opt.register(instr.operands().get(0));
+			if (!isTracked(dest)) return false;
+			Integer current = values.get(dest);
+			int v;
+			if (op.equals("wrdld")) {
+				// The whole register is written (the lower half is cleared), the same immediate gives the same value
+				v = expr("wrdld("+instr.operands().get(1).trim().toUpperCase()+")");
+			}
+			else if (op.startsWith("rdacc64")) {
+				v = expr(op+"("+value("ACC64")+")");
+			}
+			else {
+				v = value(opt.register(instr.operands().get(1)));
+			}
+			if (current != null && current == v) return true;
+			values.put(dest, v);
+			return false;
+		}
+
+		// Everything else: a new value for each register written, the same one for the same inputs
+		boolean computed = !def.special() && !fx.sideEffects() && !MEMORY_READS.contains(op);
+		StringBuilder inputs = new StringBuilder(op);
+		for (int k=0; k<def.operandCount(); k++) {
+			if (k == fx.dest()) continue;
+			Kind kind = def.operand(k);
+			String text = instr.operands().get(k);
+			inputs.append(',').append(kind == Kind.CR || kind == Kind.MR || kind == Kind.SFR ? "v"+value(opt.register(text)) : text.trim().toUpperCase());
+		}
+		for (String reg: fx.uses()) {
+			inputs.append(',').append(reg).append('=').append(value(reg));
+		}
+		for (String reg: acc.writes()) {
+			if (isTracked(reg)) values.put(reg, computed ? expr(inputs+"->"+reg) : newValue());
+		}
+		if (fx.sideEffects()) {
+			// All-pass filters may also update the MR they read
+			for (String reg: acc.reads()) {
+				if (reg.startsWith("MR")) values.remove(reg);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns TRUE if the value of the register is tracked (not FLAGS or an SFR).
+	 */
+	private static boolean isTracked(String reg) {
+		return reg != null && (RegAccess.isCoreReg(reg) || reg.equals("ACC64") || (reg.startsWith("MR") && !Toon.SrfNameSet.contains(reg.toLowerCase())));
+	}
+
+	/**
+	 * Returns the value number held by a register, a new one if it is not known.
+	 */
+	private int value(String reg) {
+		if (!isTracked(reg)) return newValue();
+		return values.computeIfAbsent(reg, r -> newValue());
+	}
+
+	private int expr(String key) {
+		return exprs.computeIfAbsent(key, k -> newValue());
+	}
+
+	private int newValue() {
+		return nextValue++;
+	}
+}
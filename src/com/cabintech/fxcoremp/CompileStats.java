@@ -0,0 +1,214 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Collects the time and memory used by each phase of a build and writes them with the build counts
+ * to a JSON file (see --stats=json), so compile time can be tracked from build to build.
+ *
+ * For each phase the wall time, the CPU time and the bytes allocated by the thread of the build are
+ * recorded. Work done on other threads (--threads) is only seen in the wall time. Phases can nest:
+ * the pass 1 of an included file is inside the pass 1 of the file that includes it, and optimize is
+ * inside toon. The numbers of a phase include its nested phases. The peak heap is of the whole
+ * process, with --variant it includes the other builds running at the same time.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.cabintech.utils.Util;
+
+public class CompileStats {
+
+	/**
+	 * One timed phase of the build, started by CompileStats.start() and ended by stop().
+	 */
+	public class Phase {
+		private final String name;
+		private final String file;		// Source file of a pass 1 phase, otherwise null
+		private final long wall0;
+		private final long cpu0;
+		private final long alloc0;
+		private long wall = -1;
+		private long cpu = -1;
+		private long alloc = -1;
+
+		private Phase(String name, String file) {
+			this.name = name;
+			this.file = file;
+			wall0 = System.nanoTime();
+			cpu0 = cpuTime();
+			alloc0 = allocated();
+		}
+
+		/**
+		 * Ends the phase.
+		 */
+		public void stop() {
+			wall = System.nanoTime() - wall0;
+			cpu = cpu0 < 0 ? -1 : cpuTime() - cpu0;
+			alloc = alloc0 < 0 ? -1 : allocated() - alloc0;
+		}
+	}
+
+	private final List<Phase> phases = new ArrayList<>(); // In the order they started
+	private final Map<String,Number> counts = new LinkedHashMap<>();
+	private final ThreadMXBean threads;		// Null if not enabled
+	private final Phase total;
+	private int sourceLines = 0;
+
+	/**
+	 * Starts the statistics of a build. If not enabled the phases are not recorded, so the build
+	 * does not pay for the management beans.
+	 * @param enabled
+	 */
+	public CompileStats(boolean enabled) {
+		threads = enabled ? ManagementFactory.getThreadMXBean() : null;
+		if (enabled) {
+			for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage(); // Peak from the start of this build
+			}
+		}
+		total = new Phase("total", null);
+	}
+
+	/**
+	 * Starts a phase.
+	 * @param name
+	 * @return
+	 */
+	public Phase start(String name) {
+		return start(name, null);
+	}
+
+	/**
+	 * Starts a phase that processes a source file.
+	 * @param name
+	 * @param file
+	 * @return
+	 */
+	public Phase start(String name, String file) {
+		Phase p = new Phase(name, file);
+		if (threads != null) phases.add(p);
+		return p;
+	}
+
+	/**
+	 * Adds to the number of source lines read.
+	 * @param n
+	 */
+	public void addSourceLines(int n) {
+		sourceLines += n;
+	}
+
+	/**
+	 * Sets a count of the build (e.g. instructions), written in the order they are first set.
+	 * @param name
+	 * @param value
+	 */
+	public void count(String name, Number value) {
+		counts.put(name, value);
+	}
+
+	/**
+	 * Ends the build and writes "<name>.stats.json" in the same directory as the output file.
+	 * @param outFile
+	 * @param srcFile
+	 * @throws IOException
+	 */
+	public void write(File outFile, File srcFile) throws IOException {
+		total.stop();
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peakHeap += pool.getPeakUsage().getUsed();
+		}
+		double seconds = total.wall / 1e9;
+
+		File statsFile = Listing.siblingFile(outFile, ".stats.json");
+		try (BufferedWriter w = new BufferedWriter(new FileWriter(statsFile))) {
+			w.write("{");
+			w.newLine();
+			w.write("  \"source\": "+quote(srcFile.getName())+",");
+			w.newLine();
+			w.write("  \"output\": "+quote(outFile.getName())+",");
+			w.newLine();
+			w.write("  \"wallMs\": "+millis(total.wall)+",");
+			w.newLine();
+			w.write("  \"cpuMs\": "+millis(total.cpu)+",");
+			w.newLine();
+			w.write("  \"allocatedBytes\": "+total.alloc+",");
+			w.newLine();
+			w.write("  \"peakHeapBytes\": "+peakHeap+",");
+			w.newLine();
+			w.write("  \"sourceLines\": "+sourceLines+",");
+			w.newLine();
+			w.write("  \"linesPerSecond\": "+(seconds > 0 ? Math.round(sourceLines / seconds) : 0)+",");
+			w.newLine();
+			w.write("  \"phases\": [");
+			w.newLine();
+			for (int i=0; i<phases.size(); i++) {
+				Phase p = phases.get(i);
+				w.write("    {\"name\": "+quote(p.name)+(p.file != null ? ", \"file\": "+quote(p.file) : "")
+						+", \"wallMs\": "+millis(p.wall)+", \"cpuMs\": "+millis(p.cpu)+", \"allocatedBytes\": "+p.alloc+"}"+(i < phases.size()-1 ? "," : ""));
+				w.newLine();
+			}
+			w.write("  ],");
+			w.newLine();
+			w.write("  \"counts\": {");
+			w.newLine();
+			int n = 0;
+			for (Map.Entry<String,Number> e: counts.entrySet()) {
+				w.write("    "+quote(e.getKey())+": "+e.getValue()+(++n < counts.size() ? "," : ""));
+				w.newLine();
+			}
+			w.write("  }");
+			w.newLine();
+			w.write("}");
+			w.newLine();
+		}
+		Util.info("  Statistics file     : "+statsFile.getAbsolutePath());
+	}
+
+	/**
+	 * Returns the CPU time of this thread in nanoseconds, or -1 if it is not available.
+	 */
+	private long cpuTime() {
+		return threads != null && threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+	}
+
+	/**
+	 * Returns the bytes allocated by this thread so far, or -1 if it is not available.
+	 */
+	private long allocated() {
+		if (threads instanceof com.sun.management.ThreadMXBean t && t.isThreadAllocatedMemorySupported()) {
+			return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String millis(long nanos) {
+		return nanos < 0 ? "-1" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < ' ') sb.append(String.format("\\u%04x", (int)c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+}
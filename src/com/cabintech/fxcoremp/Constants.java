@@ -9,6 +9,7 @@ package com.cabintech.fxcoremp;
 
 //v1.1 - Added optional 'direction' indicators on macro arguments
 //       Added optional TOON statement syntax (Target Of Operation Notation)
+//       Added auto temp ('~') macro arguments, assigned a free CR if not supplied
 
 public interface Constants {
 
@@ -16,10 +17,12 @@ public interface Constants {
 	public static final int DIR_IN = 1;
 	public static final int DIR_OUT = 2;
 	public static final int DIR_INOUT = 3;
+	public static final int DIR_TEMP = 4;
 	
 	public static final String DIR_ANY_TEXT   = "=";
 	public static final String DIR_IN_TEXT    = "<=";
 	public static final String DIR_OUT_TEXT   = "=>";
 	public static final String DIR_INOUT_TEXT = "<=>";
+	public static final String DIR_TEMP_TEXT  = "~";
 	
 }
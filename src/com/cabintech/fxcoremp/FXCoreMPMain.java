@@ -75,13 +75,32 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.cabintech.asm.Assembler;
+import com.cabintech.asm.ConstantPool;
+import com.cabintech.asm.Optimizer;
+import com.cabintech.asm.PathAnalysis;
+import com.cabintech.asm.SymbolCheck;
+import com.cabintech.asm.SymbolTable;
+import com.cabintech.asm.TempAllocator;
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.ParallelTranslator;
 import com.cabintech.toon.SyntaxException;
 import com.cabintech.toon.Toon;
 import com.cabintech.utils.SafeMap;
@@ -96,25 +115,63 @@ import com.cabintech.utils.Util.FirstAndRemainder;
 
 public class FXCoreMPMain {
 	
-	private static File sourceDir = null;
+	// Build running on each thread, the builds of a --variant run are done at the same time
+	private static final ThreadLocal<FXCoreMPMain> current = new ThreadLocal<>();
 	
-	// Global list of defined macros, case-insensitive mapped by name
-	public static Map<String,Macro> macroMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	private File sourceDir = null;
+	
+	// List of defined macros of this build, case-insensitive mapped by name
+	public Map<String,Macro> macroMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 	
 	public static String verbose = ""; // 'info' or 'debug' for cmdline output
 	
 	// Env variables specified on cmd line, used by $if statements
-	public static SafeMap envMap = new SafeMap();
+	public SafeMap envMap = new SafeMap();
 	
 	public static SourceContext context = new SourceContext();
 	
-	public static File srcFile = null;
-	public static File outFile = null;
+	public File srcFile = null;
+	public File outFile = null;
+	
+	// Phase times and counts of this build (see --stats)
+	private CompileStats stats = new CompileStats(false);
 	
 	public FXCoreMPMain() {
 		// TODO Auto-generated constructor stub
 	}
 	
+	/**
+	 * Returns the build running on this thread.
+	 * @return
+	 */
+	public static FXCoreMPMain current() {
+		return current.get();
+	}
+	
+	/**
+	 * Replaces the expression of each ".equ" statement for a name given with -D by the -D value.
+	 * Returns the -D names that no ".equ" statement defines.
+	 * @param source Pass 1 output
+	 * @param defines Lower case name -> value
+	 * @return
+	 */
+	private static Set<String> applyDefines(List<Stmt> source, Map<String,String> defines) {
+		Set<String> unused = new TreeSet<>(defines.keySet());
+		for (int i=0; i<source.size(); i++) {
+			Stmt stmt = source.get(i);
+			if (stmt.isIgnore()) continue; // Block comment
+			String[] tokens = Util.splitWhitespace(stmt.getText());
+			if (tokens.length < 2 || !tokens[0].equalsIgnoreCase(".equ")) continue;
+			String value = defines.get(tokens[1].toLowerCase());
+			if (value != null) {
+				String text = stmt.getLabel()+tokens[0]+"\t"+tokens[1]+"\t"+value+(stmt.getComment().length() > 0 ? "\t"+stmt.getComment() : "");
+				source.set(i, new Stmt(text, stmt.getLineNum(), stmt.getFileName()));
+				unused.remove(tokens[1].toLowerCase());
+			}
+		}
+		return unused;
+	}
+	
 	/**
 	 * Pass 1 processes all $include and $macro definition statements and returns the input
 	 * file with all $include files embedded, and all $macro definitions removed. Also processes
@@ -124,27 +181,22 @@ public class FXCoreMPMain {
 	 * @param includedFiles
 	 * @throws Throwable
 	 */
-	private static void processFilePass1(File inFile, List<Stmt> writer, List<String> includedFiles) throws Throwable {
+	private void processFilePass1(File inFile, List<Stmt> writer, List<String> includedFiles) throws Throwable {
 		
 		if (!inFile.exists()) {
 			throw new IOException("Input file '"+inFile.getAbsolutePath()+"' not found.");
 		}
 		SourceContext.startFile(inFile.getName());
+		CompileStats.Phase phase = stats.start("pass1", inFile.getName());
+		ProcessingEvents.SourceFile event = new ProcessingEvents.SourceFile();
+		event.begin();
+		int emitted = writer.size();
 		
 		int lineNum = 0;
 		// Process the input file one line at a time
-		try (BufferedReader reader = Files.newBufferedReader(inFile.toPath())) {
-			List<String> srcLines = new ArrayList<>();
-			
-			String readLine = reader.readLine();
-			while (readLine != null) {
-				srcLines.add(readLine);
-				readLine = reader.readLine();
-			}
-			
-			// Add a blank line at the end to insure any multi-line macro at the end
-			// of the file is terminated
-			srcLines.add("");
+		try {
+			ParsedSource source = ParsedSource.read(inFile); // Includes a blank line at the end to terminate any multi-line macro
+			stats.addSourceLines(source.getLineCount());
 			
 			boolean inDefine = false;
 			boolean inIf = false;
@@ -153,14 +205,14 @@ public class FXCoreMPMain {
 //			Stmt multilineStartStmt = null;    // Statement that started a block comment
 			List<Stmt> macroLines = new ArrayList<Stmt>();
 			List<Stmt> multiLines = new ArrayList<Stmt>();
-			for (String inLine: srcLines) {
+			for (ParsedSource.Line line: source.getLines()) {
 				boolean omitOutput = false; // Do not write the current statement to the output stream
 				lineNum++;
 				SourceContext.atLine(lineNum);
-				Stmt stmt = new Stmt(inLine, lineNum, inFile.getName());
+				Stmt stmt = line.copy();
 				
-				// Parse out the first word (and remainder) with tabs converted to blanks
-				FirstAndRemainder parsed = Util.getFirstAndRemainder(stmt.getText().replaceAll("\t"," "));
+				// First word (and remainder) with tabs converted to blanks
+				FirstAndRemainder parsed = line.parsed();
 				
 				// If we are in a multiline comment, just output it and skip all processing. This takes
 				// precedence over all other source code processing.
@@ -199,7 +251,7 @@ public class FXCoreMPMain {
 						conditionExp = Util.jsSubstring(conditionExp, 1, conditionExp.length()-1);
 					}
 					
-					String[] expParts = Util.split(conditionExp, "="); // Note if this is "!=" the ! stays with the left operand
+					String[] expParts = Util.splitLiteral(conditionExp, "="); // Note if this is "!=" the ! stays with the left operand
 					if (expParts.length != 2) throw new SyntaxException("Invalid $ifenv expression.", stmt);
 					boolean operator = true;
 					if (expParts[0].endsWith("!")) {
@@ -241,7 +293,7 @@ public class FXCoreMPMain {
 				//-------------------------------------------------------------------
 				
 				else if (inDefine && parsed.firstWord().equals("$endmacro")) {
-					Macro m = new Macro(macroLines);
+					Macro m = source.getMacro(macroLines);
 					String macroName = m.getName();
 					if (macroMap.containsKey(macroName)) {
 						throw new SyntaxException("Macro name '"+m.getName()+"' is already defined.", stmt);
@@ -276,7 +328,7 @@ public class FXCoreMPMain {
 						macroLines.clear();
 						inDefine = false;
 						macroLines.add(stmt); // Add first and only line to macro
-						Macro m = new Macro(macroLines);
+						Macro m = source.getMacro(macroLines);
 						String macroName = m.getName();
 						if (macroMap.containsKey(macroName)) {
 							throw new SyntaxException("Macro name '"+m.getName()+"' is already defined.", stmt);
@@ -291,7 +343,7 @@ public class FXCoreMPMain {
 				//-----------------------------------------
 				else if (parsed.firstWord().equals("$setenv") || parsed.firstWord().equals("$set")) { // '$set' is legacy, keeping for backward compatibility
 					// Expected format: $set env-var-name=value
-					String parts[] = Util.split(parsed.remainder(), "=");
+					String parts[] = Util.splitLiteral(parsed.remainder(), "=");
 					if (parts.length != 2) {
 						throw new SyntaxException("$setenv statement invalid expression syntax", stmt);
 					}
@@ -350,6 +402,8 @@ public class FXCoreMPMain {
 			}
 			
 			SourceContext.endFile();
+			phase.stop();
+			event.finish(inFile.getName(), source.getLineCount(), writer.size() - emitted);
 		}
 		catch (Throwable t) {
 			System.out.println("Error at line "+lineNum+" in '"+inFile.getAbsolutePath()+"': "+t.getMessage());
@@ -359,18 +413,340 @@ public class FXCoreMPMain {
 		
 	}
 
+	/**
+	 * Writes the longest and shortest per-sample execution paths of the translated program, and the
+	 * instructions on the longest path with the source they came from.
+	 * @param program
+	 * @param origins Origin statement of each line of the program
+	 */
+	private static void reportPaths(List<Instr> program, List<Stmt> origins) {
+		PathAnalysis.Paths paths = PathAnalysis.analyze(program);
+		if (paths.loopAt() >= 0) {
+			Util.info("  Per-sample path     : Not computed, backward branch at "+Listing.location(origins.get(paths.loopAt())));
+			return;
+		}
+		if (paths.undefinedAt() >= 0) {
+			Util.info("  Per-sample path     : Not computed, branch to an undefined label at "+Listing.location(origins.get(paths.undefinedAt())));
+			return;
+		}
+		Util.info("  Per-sample path     : longest "+paths.longest()+", shortest "+paths.shortest()+" of "+paths.instructions()+" instructions");
+		int[] address = new int[program.size()];
+		int pc = 0;
+		for (int i=0; i<program.size(); i++) {
+			address[i] = pc;
+			if (program.get(i).isInstruction()) pc++;
+		}
+		for (int line: paths.criticalPath()) {
+			Instr instr = program.get(line);
+			String asm = instr.opcode() + (instr.operands().size() > 0 ? " "+String.join(",", instr.operands()) : "");
+			Stmt origin = origins.get(line);
+			Util.info(String.format("    %04d  %-34s  %s  %s", address[line], asm, Listing.location(origin), origin.getText().trim()));
+		}
+	}
+
+	/**
+	 * Checks the labels, branch targets, ".rn" names and register operands of the translated program
+	 * and reports errors against the source statements they came from.
+	 * @param program
+	 * @param origins Origin statement of each line of the program
+	 * @return Number of errors
+	 */
+	private static int checkSymbols(List<Instr> program, List<Stmt> origins) {
+		List<Assembler.Error> errors = SymbolCheck.check(program);
+		for (Assembler.Error e: errors) {
+			printError("Symbol error:", e.message(), origins.get(e.line()));
+		}
+		return errors.size();
+	}
+
+	/**
+	 * Writes an error found in the translated program with the source statement it came from.
+	 * @param title
+	 * @param message
+	 * @param origin
+	 */
+	private static void printError(String title, String message, Stmt origin) {
+		System.out.println(title);
+		System.out.println("  "+message);
+		System.out.println("  "+Listing.location(origin)+": "+origin.getFullText().trim());
+	}
+
+	/**
+	 * Lays out the ".mem" delay memory buffers of the translated program in declaration order, the
+	 * same as the FXCore assembler, and checks they fit in the delay memory. Buffers in $ifenv
+	 * sections that are not selected are not in the program, so only the buffers of the variant
+	 * being built take space.
+	 * @param program
+	 * @param origins Origin statement of each line of the program
+	 * @param report TRUE to report the layout and buffers with sizes that are not constants
+	 * @return Number of errors
+	 */
+	private static int planDelayMemory(List<Instr> program, List<Stmt> origins, boolean report) {
+		int errors = 0;
+		SymbolTable symbols = new SymbolTable();
+		Map<Stmt,Stmt> memOrigin = new HashMap<>(); // .mem statement -> origin statement
+		for (int i=0; i<program.size(); i++) {
+			Instr instr = program.get(i);
+			if (instr.type() != Instr.Type.DIRECTIVE) continue;
+			memOrigin.put(instr.source(), origins.get(i));
+			try {
+				symbols.directive(instr);
+			}
+			catch (SyntaxException se) {
+				// Left for the assembler unless a plan was requested
+				if (report) {
+					printError("Delay memory error:", se.getMessage(), origins.get(i));
+					errors++;
+				}
+			}
+		}
+		List<SymbolTable.Mem> mems = symbols.getMems();
+		int used = symbols.getMemUsed();
+		if (report && mems.size() > 0) {
+			Util.info("  Delay memory        : "+used+" words used of "+SymbolTable.DELAY_MEMORY_SIZE+" available ("+mems.size()+" buffers, "+(int)((used/(double)SymbolTable.DELAY_MEMORY_SIZE)*100)+"%)");
+			for (SymbolTable.Mem mem: mems) {
+				Util.info(String.format("    %-24s %6d words  %05d-%05d  %s", mem.name(), mem.size(), mem.base(), mem.base()+mem.size()-1, Listing.location(memOrigin.get(mem.source()))));
+			}
+		}
+		if (used > SymbolTable.DELAY_MEMORY_SIZE) {
+			System.out.println("ERROR: Delay memory buffers use "+used+" of "+SymbolTable.DELAY_MEMORY_SIZE+" available words.");
+			for (SymbolTable.Mem mem: mems) {
+				if (mem.base()+mem.size() > SymbolTable.DELAY_MEMORY_SIZE) {
+					System.out.println("  First buffer that does not fit is '"+mem.name()+"' ("+mem.size()+" words) at "+Listing.location(memOrigin.get(mem.source())));
+					break;
+				}
+			}
+			errors++;
+		}
+		return errors;
+	}
+
+	/**
+	 * Resolves the symbols and operands of the translated program and writes it to a ".res" file
+	 * next to the output file, one instruction per line with its program address. Errors are
+	 * reported against the source statements they came from.
+	 * @param program
+	 * @param origins Origin statement of each line of the program
+	 * @param outFile
+	 * @return Number of errors
+	 * @throws IOException
+	 */
+	private static int writeResolved(List<Instr> program, List<Stmt> origins, File outFile) throws IOException {
+		Assembler.Result result = Assembler.resolve(program);
+		for (Assembler.Error e: result.errors()) {
+			printError("Assembler error:", e.message(), origins.get(e.line()));
+		}
+		File resFile = Listing.siblingFile(outFile, ".res");
+		try (BufferedWriter w = new BufferedWriter(new FileWriter(resFile))) {
+			for (int pc=0; pc<result.lines().size(); pc++) {
+				w.write(String.format("%04d  %s", pc, result.lines().get(pc)));
+				w.newLine();
+			}
+		}
+		Util.info("  Resolved program    : "+result.lines().size()+" instructions, "+result.memUsed()+" of "+SymbolTable.DELAY_MEMORY_SIZE+" delay memory words ("+resFile.getAbsolutePath()+")");
+		return result.errors().size();
+	}
+
+	/**
+	 * Writes a make dependency file (".d") next to the output file. The output file depends on the
+	 * source file and every file it included (once each, as they were found). The output file is
+	 * named as it was on the command line so it matches the build's rule for it, the prerequisites
+	 * are absolute paths. A make rule with no prerequisites is written for each included file so a
+	 * deleted include does not stop make. The -E settings the output was built with are written as
+	 * a comment, a build that compares them can tell when the output must be rebuilt with other
+	 * settings.
+	 * @param outFile
+	 * @param srcFile
+	 * @param includedFiles Names of the included files, relative to the source directory
+	 * @param envArgs -E settings (name, value) from the command line
+	 * @throws IOException
+	 */
+	private void writeDependencies(File outFile, File srcFile, List<String> includedFiles, Map<String,String> envArgs) throws IOException {
+		List<String> includes = new ArrayList<>();
+		for (String name: includedFiles) {
+			includes.add(makePath(new File(sourceDir, name)));
+		}
+		StringBuilder env = new StringBuilder();
+		for (Map.Entry<String,String> e: envArgs.entrySet()) {
+			env.append(" -E").append(e.getKey()).append('=').append(e.getValue());
+		}
+		File depFile = Listing.siblingFile(outFile, ".d");
+		try (BufferedWriter w = new BufferedWriter(new FileWriter(depFile))) {
+			w.write("# FXCoreMP dependencies of "+outFile.getName());
+			w.newLine();
+			w.write("# env:"+env);
+			w.newLine();
+			w.write(makeEscape(outFile.getPath())+": "+makePath(srcFile));
+			for (String inc: includes) {
+				w.write(" \\");
+				w.newLine();
+				w.write("  "+inc);
+			}
+			w.newLine();
+			for (String inc: includes) {
+				w.newLine();
+				w.write(inc+":");
+				w.newLine();
+			}
+		}
+		Util.info("  Dependency file     : "+(includes.size()+1)+" prerequisites ("+depFile.getAbsolutePath()+")");
+	}
+	
+	/**
+	 * Returns the absolute path of a file for a make rule.
+	 */
+	private static String makePath(File f) throws IOException {
+		return makeEscape(f.getCanonicalPath());
+	}
+	
+	/**
+	 * Returns a file name with spaces, '#' and '$' escaped for make.
+	 */
+	private static String makeEscape(String name) {
+		return name.replace(" ", "\\ ").replace("#", "\\#").replace("$", "$$");
+	}
+
 	public static void main(String[] args) {
+		List<String> baseArgs = new ArrayList<>();
+		List<String> variants = new ArrayList<>();
+		for (String arg: args) {
+			if (arg.toLowerCase().startsWith("--variant=")) {
+				variants.add(Util.jsSubstring(arg, 10));
+			}
+			else {
+				baseArgs.add(arg);
+			}
+		}
+		System.exit(variants.isEmpty() ? new FXCoreMPMain().process(args) : processVariants(baseArgs, variants));
+	}
+	
+	/**
+	 * Builds each variant, "<name>:<arg>,<arg>..." where each arg is a -E or -D setting added to the
+	 * common args. Each variant is written to the output file with "-<name>" added to its name, e.g.
+	 * "patch-mono.fxc-mp". The variants are built at the same time on different threads, and share
+	 * the source and include files, which are read and parsed once (see ParsedSource). The output of
+	 * each build is held and printed in the order of the variants, the same as building them one after
+	 * the other. Returns the highest exit code of the variants.
+	 * @param baseArgs Command line args without the --variant args
+	 * @param variants
+	 * @return
+	 */
+	private static int processVariants(List<String> baseArgs, List<String> variants) {
+		int outIndex = -1; // Index of the output file arg
+		int files = 0;
+		for (int i=0; i<baseArgs.size(); i++) {
+			String arg = baseArgs.get(i);
+			if (arg.trim().length() == 0 || arg.startsWith("-")) continue;
+			if (++files == 2) outIndex = i;
+		}
+		if (outIndex < 0) {
+			System.err.println("No input and output files specified");
+			return 1;
+		}
+		File out = new File(baseArgs.get(outIndex));
+		String name = out.getName();
+		int dot = name.lastIndexOf('.');
+		Set<String> names = new HashSet<>();
+		List<String> headers = new ArrayList<>();
+		List<Callable<Integer>> builds = new ArrayList<>();
+		for (String v: variants) {
+			int colon = v.indexOf(':');
+			String variant = colon < 0 ? v : Util.jsSubstring(v, 0, colon);
+			if (!variant.matches("[A-Za-z0-9_.-]+") || !names.add(variant)) {
+				System.err.println("Invalid --variant cmd arg '"+v+"', expecting '--variant=name:-Ename=value,-Dname=value' with a different name for each variant");
+				return 1;
+			}
+			File variantOut = new File(out.getParentFile(), dot > 0 ? name.substring(0, dot)+"-"+variant+name.substring(dot) : name+"-"+variant);
+			List<String> variantArgs = new ArrayList<>(baseArgs);
+			variantArgs.set(outIndex, variantOut.getPath());
+			if (colon >= 0) {
+				variantArgs.addAll(Arrays.asList(Util.jsSubstring(v, colon+1).split(",")));
+			}
+			headers.add("--- Variant "+variant+" ("+variantOut.getPath()+")");
+			builds.add(() -> new FXCoreMPMain().process(variantArgs.toArray(new String[0])));
+		}
+		
+		PrintStream console = System.out;
+		PrintStream consoleErr = System.err;
+		System.setOut(ThreadOutput.stream(console, false));
+		System.setErr(ThreadOutput.stream(consoleErr, true));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(builds.size(), Runtime.getRuntime().availableProcessors()));
+		int rc = 0;
+		try {
+			List<ThreadOutput.Buffers> output = new ArrayList<>();
+			List<Future<Integer>> results = new ArrayList<>();
+			for (Callable<Integer> build: builds) {
+				ThreadOutput.Buffers buffers = new ThreadOutput.Buffers();
+				output.add(buffers);
+				results.add(pool.submit(() -> {
+					ThreadOutput.capture(buffers);
+					try {
+						return build.call();
+					}
+					finally {
+						ThreadOutput.capture(null);
+					}
+				}));
+			}
+			for (int i=0; i<results.size(); i++) {
+				int variantRc;
+				try {
+					variantRc = results.get(i).get();
+				}
+				catch (ExecutionException | InterruptedException e) {
+					// Unexpected
+					PrintStream log = new PrintStream(output.get(i).out(), true);
+					log.println("Unexpected program error:");
+					(e.getCause() != null ? e.getCause() : e).printStackTrace(log);
+					variantRc = 3;
+				}
+				console.println(headers.get(i));
+				output.get(i).print(console, consoleErr);
+				rc = Math.max(rc, variantRc);
+			}
+		}
+		finally {
+			pool.shutdown();
+			System.setOut(console);
+			System.setErr(consoleErr);
+		}
+		return rc;
+	}
+	
+	/**
+	 * Runs one build with the given command line args. Returns the process exit code.
+	 * @param args
+	 * @return
+	 */
+	private int process(String[] args) {
+		
+		// Start clean, the thread may have run another build of a --variant run
+		current.set(this);
+		Macro.reset();
+		MrAllocator.reset();
+		SourceContext.reset();
 		
 		boolean doAnnotation = false;
 		boolean doToon = true;
 		boolean doMacro = true;
 		boolean toonModeNormal = true;
+		boolean doListing = false;
+		boolean doOptimize = false;
+		boolean doPaths = false;
+		boolean doResolve = false;
+		boolean doMemPlan = false;
+		int threads = 1;
+		boolean doLean = false;
+		boolean doDeps = false;
+		boolean doStats = false;
+		Map<String,String> envArgs = new TreeMap<>(); // -E settings, for the dependency file
+		Map<String,String> defines = new TreeMap<>(); // -D overrides of .equ values, lower case name -> value
 		
 		List<String> argsList = new ArrayList<>(Arrays.asList(args));
 		for (int i=0; i<argsList.size(); i++) {
 			String arg = argsList.get(i);
 			if (arg.equalsIgnoreCase("--annotate")) {
-				doAnnotation = false;
+				doAnnotation = true;
 				argsList.remove(i--);
 				continue;
 			}
@@ -393,25 +769,104 @@ public class FXCoreMPMain {
 				continue;
 			}
 			
+			if (arg.equalsIgnoreCase("--listing")) { // Write .lst and .map files with the output
+				doListing = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--optimize")) { // Peephole optimize the TOON output
+				doOptimize = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--paths")) { // Report the longest and shortest per-sample execution paths
+				doPaths = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--resolve")) { // Write a .res file of the program with all symbols resolved
+				doResolve = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--memplan")) { // Report the delay memory layout of the .mem buffers
+				doMemPlan = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.toLowerCase().startsWith("--stats=")) { // Write phase times and counts to a .stats.json file
+				if (!arg.equalsIgnoreCase("--stats=json")) {
+					System.err.println("Invalid --stats cmd arg, expecting '--stats=json'");
+					return 1;
+				}
+				doStats = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--deps")) { // Write a make dependency (.d) file
+				doDeps = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.equalsIgnoreCase("--lean")) { // Output only labels, directives and instructions, with a .srcmap file
+				doLean = true;
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.toLowerCase().startsWith("--threads=")) { // Translate TOON on this many threads
+				try {
+					threads = Integer.parseInt(Util.jsSubstring(arg, 10));
+				}
+				catch (NumberFormatException e) {
+					threads = 0;
+				}
+				if (threads < 1) {
+					System.err.println("Invalid --threads cmd arg, expecting '--threads=n' with n of 1 or more");
+					return 1;
+				}
+				argsList.remove(i--);
+				continue;
+			}
+			
 			if (arg.startsWith("-E")) { // Env variable for $if
 				String v = Util.jsSubstring(arg, 2);
 				if (v.length()==0) continue; // Skip empty -E arg
-				String vs[] = Util.split(v, "=");
+				String vs[] = Util.splitLiteral(v, "=");
 				if (vs.length != 2) {
 					System.err.println("Invalid -E cmd arg, expecting '-Ename=true|false'");
-					System.exit(1);
+					return 1;
 				}
 				if (!vs[1].equals("true") && !vs[1].equals("false")) {
 					System.err.println("Invalid -E cmd arg, value must be true or false");
-					System.exit(1);
+					return 1;
 				}
 				envMap.put(vs[0].toLowerCase(), vs[1]);
+				envArgs.put(vs[0].toLowerCase(), vs[1]);
+				argsList.remove(i--);
+				continue;
+			}
+			
+			if (arg.startsWith("-D")) { // Override the value of a .equ symbol
+				String vs[] = Util.splitLiteral(Util.jsSubstring(arg, 2), "=");
+				if (vs.length != 2 || vs[0].trim().length() == 0 || vs[1].trim().length() == 0) {
+					System.err.println("Invalid -D cmd arg, expecting '-Dname=value'");
+					return 1;
+				}
+				defines.put(vs[0].trim().toLowerCase(), vs[1].trim());
 				argsList.remove(i--);
 				continue;
 			}
 			
 			if (arg.toLowerCase().startsWith("--debug")) { // Debug output level
-				String[] parts = Util.split(arg, "=");
+				String[] parts = Util.splitLiteral(arg, "=");
 				if (parts.length < 2) {
 					verbose = "debug";
 				} else {
@@ -432,13 +887,13 @@ public class FXCoreMPMain {
 		// First 2 args are required
 		if (argsList.size() < 2) {
 			System.err.println("No input and output files specified");
-			System.exit(1);
+			return 1;
 		}
 		
 		// Cannot run TOON in reverse and macro
 		if (doMacro && doToon && !toonModeNormal) {
 			System.err.println("Cannot run macros and reverse TOON.");
-			System.exit(1);
+			return 1;
 		}
 
 		srcFile= new File(argsList.get(0));
@@ -446,9 +901,10 @@ public class FXCoreMPMain {
 		
 		if (!srcFile.exists()) {
 			System.out.println("Input file '"+srcFile.getAbsolutePath()+"' not found.");
-			System.exit(1);
+			return 1;
 		}
 		sourceDir = srcFile.getParentFile();
+		stats = new CompileStats(doStats);
 		
 		List<Stmt> newSource = new ArrayList<>();
 		int syntaxErrors = 0; // Toon syntax errors
@@ -462,18 +918,30 @@ public class FXCoreMPMain {
 			//---------------------------------------------------------------
 			
 			List<String> outSource = new ArrayList<>();;
+			List<Stmt> outOrigin = new ArrayList<>(); // Where each line of outSource came from
 			List<String> includedFiles = new ArrayList<>();
 			try {
 				if (doMacro) {
 					// Pass 1, $include and $macro statements
 					processFilePass1(srcFile, newSource, includedFiles);
+					for (String name: applyDefines(newSource, defines)) {
+						System.out.println("NOTE: -D"+name+" is not defined by a .equ statement.");
+					}
 					
 					// Pass 2, now expand all macro invocations in the source code
-					outSource = Macro.doMacroEval(newSource);
+					CompileStats.Phase phase = stats.start("macros");
+					outOrigin = Macro.doMacroEval(newSource);
+					phase.stop();
+					for (Stmt stmt: outOrigin) {
+						outSource.add(stmt.getFullText());
+					}
 				}
 				else {
 					// No macro step, read raw source for next operation
 					outSource = Files.readAllLines(srcFile.toPath());
+					for (int i=0; i<outSource.size(); i++) {
+						outOrigin.add(new Stmt(outSource.get(i), i+1, srcFile.getName(), false));
+					}
 				}
 			}
 			catch (SyntaxException se) {
@@ -490,36 +958,47 @@ public class FXCoreMPMain {
 			//---------------------------------------------------------------
 			
 			int pc = 0; // Program (instruction) counter
+			Map<String,String> autoTemps = Map.of(); // Auto temp placeholder -> assigned CR
+			ConstantPool loadPool = null; // Pool MRs of TOON constant loads
+			Listing listing = (doListing && doToon && toonModeNormal) ? new Listing() : null;
+			Optimizer optimizer = (doOptimize && doToon && toonModeNormal) ? new Optimizer() : null;
+			SourceMap leanMap = null; // Source map of the lean output
+			List<Instr> finalProgram = new ArrayList<>(); // Final TOON-->ASM program
+			List<Stmt> finalOrigins = new ArrayList<>(); // Origin statement of each line of the final program
 			if (doToon) {
+				CompileStats.Phase toonPhase = stats.start("toon");
 				int lineCnt = 0;
 				List<String> toonOutput = new ArrayList<>();
+				List<List<Instr>> translated = new ArrayList<>(); // TOON-->ASM lines of each source line
+				List<Stmt> translatedStmts = new ArrayList<>(); // Statement of each source line, null if it had errors
 				boolean inBlockComment = false;
+				List<ParallelTranslator.Line> parallel = null; // Translation of each source line, if done in parallel
+				if (threads > 1 && toonModeNormal) {
+					parallel = ParallelTranslator.translate(tooner, outSource, srcFile.getAbsolutePath(), threads);
+				}
 				for (String s: outSource) {
 					lineCnt++;
+					List<Instr> lines = null;
+					Stmt stmt = null;
 					// Translate TOON (target-of-operation notation) which is not understood by the rest of the tool chain. We
 					// only xlate TOON-->Asm when doing macro expansion (never Asm-->TOON).
 					try {
-						if (toonModeNormal) {
+						if (parallel != null) {
+							ParallelTranslator.Line line = parallel.get(lineCnt-1);
+							stmt = line.stmt();
+							if (line.error() != null) throw line.error();
+							lines = line.lines();
+						}
+						else if (toonModeNormal) {
 							// Create a Stmt so any errors can have context (e.g. line number, etc)
-							Stmt stmt = new Stmt(s, lineCnt, srcFile.getAbsolutePath());
+							stmt = new Stmt(s, lineCnt, srcFile.getAbsolutePath());
 							if (stmt.isBlockCommentEnd()) {
 								inBlockComment = false;
 							}
-							s = inBlockComment ? "; "+s : tooner.toonToAsm(stmt);
+							lines = inBlockComment ? List.of(Instr.text("; "+s, stmt)) : tooner.translate(stmt);
 							if (stmt.isBlockCommentStart()) {
 								inBlockComment = true;
 							}
-							if (!inBlockComment) {
-								//TODO: Improve this ad-hoc way of counting instructions. The Stmt object is probably a better place to
-								// know if the statement generates 0, 1, or more machine instructions.
-								String t = stmt.getText();
-								if ((t.length() > 0) && !t.startsWith(".") && !t.endsWith(":") && !t.equalsIgnoreCase("endif")) { // Count non-empty, non-directive, non-label-only lines
-									//System.out.println("PC "+pc+": "+t);
-									// Number of physical lines is presumed to be number of FXCore instructions
-									// Currently only the 'allpass' TOON statement produces > 1 instruction
-									pc = pc + 1 + (int)s.chars().filter(ch -> ch=='\n').count();
-								}
-							}
 						} else {
 							s = tooner.asmToToon(s);
 						}
@@ -530,24 +1009,101 @@ public class FXCoreMPMain {
 						System.out.println("  "+se.getMessage());
 						System.out.println("  "+se.getStmtMessage());
 						// Continue processing the next line
+						lines = null; // Output the line unchanged
+					}
+					if (toonModeNormal) {
+						translated.add(lines != null ? lines : List.of(Instr.text(s, stmt)));
+						translatedStmts.add(lines != null ? stmt : null);
+					}
+					else {
+						toonOutput.add(s);
 					}
-					toonOutput.add(s);
 				};
+				
+				if ((optimizer != null || Macro.getAutoTemps().size() > 0 || tooner.usesConstantPool()) && toonModeNormal) {
+					if (syntaxErrors == 0) {
+						CompileStats.Phase phase = stats.start("optimize");
+						// Process the whole program, then split it back into the lines of each source statement
+						List<Instr> program = new ArrayList<>();
+						for (List<Instr> lines: translated) {
+							program.addAll(lines);
+						}
+						try {
+							if (tooner.usesConstantPool()) {
+								loadPool = ConstantPool.assign(program);
+							}
+							if (Macro.getAutoTemps().size() > 0) {
+								autoTemps = TempAllocator.allocate(program, Macro.getAutoTemps());
+							}
+							if (optimizer != null) {
+								optimizer.optimize(program);
+							}
+						}
+						catch (SyntaxException se) {
+							syntaxErrors++;
+							optimizer = null;
+							System.out.println("Register allocation error:");
+							System.out.println("  "+se.getMessage());
+							System.out.println("  "+se.getStmtMessage());
+						}
+						int k = 0;
+						for (int i=0; i<translated.size(); i++) {
+							int n = translated.get(i).size();
+							translated.set(i, program.subList(k, k+n));
+							k += n;
+						}
+						phase.stop();
+					}
+					else if (optimizer != null) {
+						optimizer = null;
+						System.out.println("NOTE: Optimization skipped because of errors.");
+					}
+				}
+				
+				try (SourceMap sourceMap = (doLean && toonModeNormal) ? new SourceMap(outFile, srcFile) : null) {
+					for (int i=0; i<translated.size(); i++) {
+						List<Instr> lines = translated.get(i);
+						for (Instr instr: lines) {
+							if (instr.isInstruction()) pc++;
+							finalProgram.add(instr);
+							finalOrigins.add(outOrigin.get(i));
+						}
+						if (listing != null && translatedStmts.get(i) != null) {
+							listing.add(lines, translatedStmts.get(i), outOrigin.get(i));
+						}
+						if (sourceMap != null) {
+							// Only what the assembler needs, one map record for each output line
+							for (Instr instr: lines) {
+								String lean = instr.renderLean();
+								if (lean == null) continue;
+								toonOutput.add(lean);
+								sourceMap.add(outOrigin.get(i));
+							}
+						}
+						else {
+							toonOutput.add(Instr.render(lines));
+						}
+					}
+					leanMap = sourceMap;
+				}
 				outSource = toonOutput; // Replace with the TOON results
+				toonPhase.stop();
 			}
 			
 			// Write final results to output file
+			CompileStats.Phase writePhase = stats.start("write");
 			try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
 				for (String out : outSource) {
 					writer.write(out);
 					writer.newLine();
 				}
 			}
+			writePhase.stop();
 			
-			if (Toon.ifStmtStack.size() > 0) { // Unclosed IF statement
-				Stmt stmt = Toon.ifStmtStack.getLast().startedAt();
+			if (tooner.getOpenIf() != null) { // Unclosed IF statement
+				Stmt stmt = tooner.getOpenIf().startedAt();
 				System.out.println("ERROR: Missing ENDIF to IF statement started at "+stmt.getLineNum()+" in "+stmt.getFileName());
-				System.exit(1); // Stop assembly process
+				return 1; // Stop assembly process
 			}
 			
 			// Output warning if using >80% of the instruction storage //TODO: Make this trigger point a program arg '-warnCodePercent=80'
@@ -556,31 +1112,122 @@ public class FXCoreMPMain {
 			
 			Util.info("FXCoreMP processing completed ("+(doMacro?"macros=yes":"macros=no")+", "+(doToon?"toon=yes":"toon=no")+(toonModeNormal?" [TOON-->ASM]":" [ASM-->TOON]")+")");
 			Util.info("  FXCore instructions : "+pc+" used of 1024 available");
-			Util.info("  Auto assigned MRs   : "+ (Macro.counterMap.containsKey("nextmr") ? (Macro.counterMap.get("nextmr").intValue())+" used of 128 available" : "None"));
+			if (doToon && toonModeNormal && tooner.getCacheLookups() > 0) {
+				Util.info("  TOON line cache     : "+tooner.getCacheHits()+" of "+tooner.getCacheLookups()+" statements reused ("+(100*tooner.getCacheHits()/tooner.getCacheLookups())+"%)");
+			}
+			if (optimizer != null) {
+				optimizer.report();
+			}
+			if (doPaths && doToon && toonModeNormal) {
+				reportPaths(finalProgram, finalOrigins);
+			}
+			CompileStats.Phase checkPhase = stats.start("checks");
+			if (doToon && toonModeNormal && syntaxErrors == 0) {
+				syntaxErrors += checkSymbols(finalProgram, finalOrigins);
+			}
+			if (doToon && toonModeNormal && syntaxErrors == 0) {
+				syntaxErrors += planDelayMemory(finalProgram, finalOrigins, doMemPlan);
+			}
+			if (doResolve && doToon && toonModeNormal && syntaxErrors == 0) {
+				syntaxErrors += writeResolved(finalProgram, finalOrigins, outFile);
+			}
+			checkPhase.stop();
+			if (doDeps) {
+				writeDependencies(outFile, srcFile, includedFiles, envArgs);
+			}
+			if (Macro.getAutoTemps().size() > 0) {
+				Util.info("  Auto temp registers : "+autoTemps.size()+" temps in "+new HashSet<>(autoTemps.values()).size()+" CRs");
+				for (Map.Entry<String,String> e: autoTemps.entrySet()) {
+					Util.debug("    "+e.getKey().toLowerCase()+" "+Macro.getAutoTemps().get(e.getKey())+" = "+e.getValue());
+				}
+			}
+			Number nextmr = Macro.getCounter("nextmr");
+			Util.info("  Auto assigned MRs   : "+ (nextmr != null ? nextmr.intValue()+" used of 128 available" : "None"));
+			if (MrAllocator.getAllocations() > 0) {
+				Util.info("  Allocated MRs       : "+MrAllocator.getTotal()+" used of "+MrAllocator.NUM_MR+" available, peak "+MrAllocator.getPeak()+" at once ("+MrAllocator.getAllocations()+" allocations)");
+				for (String s: MrAllocator.getAllocated()) {
+					Util.debug("    "+s);
+				}
+			}
+			if (loadPool != null || (optimizer != null && optimizer.getConstantPool() != null)) {
+				ConstantPool pool = optimizer != null ? optimizer.getConstantPool() : null;
+				int mrs = (loadPool != null ? loadPool.size() : 0) + (pool != null ? pool.size() : 0);
+				int loads = (loadPool != null ? loadPool.getLoads() : 0) + (pool != null ? pool.getLoads() : 0);
+				String skipped = pool != null && pool.getSkipped() != null ? ", optimizer pooling skipped, "+pool.getSkipped() : "";
+				Util.info("  Constant pool MRs   : "+(mrs > 0 ? mrs+" used for "+loads+" constant loads" : "None")+skipped);
+			}
+			if (MrAllocator.openScopes() > 0 && syntaxErrors == 0) {
+				System.out.println("ERROR: "+MrAllocator.openScopes()+" $_mrscope(begin) without a matching $_mrscope(end).");
+				syntaxErrors++;
+			}
 			Util.info("  Errors              : "+syntaxErrors);
 			Util.info("  Included files      : "+includedFiles.size());
 			Util.info("  Macro definitions   : "+macroMap.size()); // +macroMap.keySet().toString());
 			Util.info("  Output lines        : "+outSource.size()+" ("+outFile.getAbsolutePath()+")");
+			if (leanMap != null) {
+				Util.info("  Source map file     : "+leanMap.getRecords()+" lines mapped ("+leanMap.getFile().getAbsolutePath()+")");
+			}
+			if (doStats) {
+				stats.count("instructions", pc);
+				stats.count("autoMrs", nextmr != null ? nextmr.intValue() : 0);
+				stats.count("allocatedMrs", MrAllocator.getTotal());
+				stats.count("macros", macroMap.size());
+				stats.count("includes", includedFiles.size());
+				stats.count("outputLines", outSource.size());
+				stats.count("errors", syntaxErrors);
+				stats.write(outFile, srcFile);
+			}
+			if (listing != null) {
+				listing.write(outFile, srcFile);
+			}
+			else if (doListing) {
+				System.out.println("NOTE: Listing and map files are only written for TOON-->ASM processing.");
+			}
+			if (Macro.getAutoTemps().size() > 0 && (!doToon || !toonModeNormal) && syntaxErrors == 0) {
+				System.out.println("ERROR: Macro auto temp arguments are only assigned registers in TOON-->ASM processing.");
+				syntaxErrors++;
+			}
+			if (doOptimize && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Optimization is only done for TOON-->ASM processing.");
+			}
+			if (doPaths && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Execution paths are only reported for TOON-->ASM processing.");
+			}
+			if (doMemPlan && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Delay memory is only planned for TOON-->ASM processing.");
+			}
+			if (doResolve && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Resolved output is only written for TOON-->ASM processing.");
+			}
+			if (defines.size() > 0 && !doMacro) {
+				System.out.println("NOTE: -D overrides are only applied with macro processing.");
+			}
+			if (doLean && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Lean output is only written for TOON-->ASM processing.");
+			}
+			if (threads > 1 && (!doToon || !toonModeNormal)) {
+				System.out.println("NOTE: Parallel translation is only done for TOON-->ASM processing.");
+			}
 			
 			// Output warning if using >80% of the instruction storage //TODO: Make this trigger point a program arg '-warnCodePercent=80'
 			if (pc>1024) System.out.println("\nERROR: Too many instructions, using "+pc+" of 1024 available instructions.");
 			else if (pc>819) System.out.println("\nNOTE: Using "+pc+" of 1024 available instructions ("+(int)((pc/1024.0)*100)+"%).");
 			
-			if (pc>1024) System.exit(1); // Stop assembly process
+			if (pc>1024) return 1; // Stop assembly process
 			
 		}
 		catch (Throwable t) {
 			// Unexpected
 			System.out.println("Unexpected program error:");
 			t.printStackTrace(System.out);
-			System.exit(3);
+			return 3;
 		}
 		
 		if (syntaxErrors > 0) {
-			System.exit(2);
+			return 2;
 		}
 		
-		System.exit(0);
+		return 0;
 	}
 
 }
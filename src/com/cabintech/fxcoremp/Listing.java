@@ -0,0 +1,145 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Collects the translated program and writes a listing (.lst) and a program map (.map)
+ * next to the output file.
+ *
+ * The listing shows every FXCore instruction with its program address, the generated assembler,
+ * and the source statement it came from (file, line, and the chain of macros that generated
+ * it). The map is a table of all labels, both user labels and the ones generated for
+ * IF/ELSE/ENDIF, and the program address each one refers to.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.cabintech.toon.Instr;
+import com.cabintech.utils.Util;
+
+public class Listing {
+
+	private record Line(int address, Instr instr, String sourceText, Stmt origin) {}
+	private record LabelAddr(String label, int address, Stmt origin) {}
+
+	private List<Line> lines = new ArrayList<>();
+	private List<LabelAddr> labels = new ArrayList<>();
+	private int pc = 0; // Address of the next instruction
+
+	public Listing() {
+	}
+
+	/**
+	 * Adds the lines translated from one source statement.
+	 * @param instrs
+	 * @param stmt Statement that was translated
+	 * @param origin Statement (from macro processing) the lines came from
+	 */
+	public void add(List<Instr> instrs, Stmt stmt, Stmt origin) {
+		for (Instr instr: instrs) {
+			if (instr.label().length() > 0) {
+				labels.add(new LabelAddr(instr.label(), pc, origin));
+			}
+			if (instr.isInstruction()) {
+				lines.add(new Line(pc, instr, stmt.getText(), origin));
+				pc++;
+			}
+			else if (instr.type() == Instr.Type.LABEL) {
+				lines.add(new Line(-1, instr, stmt.getText(), origin));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of instructions added so far.
+	 * @return
+	 */
+	public int getInstructionCount() {
+		return pc;
+	}
+
+	/**
+	 * Writes "<name>.lst" and "<name>.map" files in the same directory as the output file.
+	 * @param outFile
+	 * @param srcFile
+	 * @throws IOException
+	 */
+	public void write(File outFile, File srcFile) throws IOException {
+		File lstFile = siblingFile(outFile, ".lst");
+		File mapFile = siblingFile(outFile, ".map");
+
+		try (BufferedWriter w = new BufferedWriter(new FileWriter(lstFile))) {
+			w.write("; FXCoreMP listing of "+srcFile.getName()+" ("+outFile.getName()+"), "+pc+" instructions");
+			w.newLine();
+			w.write("; ADDR  INSTRUCTION                         SOURCE");
+			w.newLine();
+			for (Line line: lines) {
+				Instr instr = line.instr();
+				if (line.address() < 0) {
+					// Label only line
+					w.write(String.format("%-6s  %s:", "", instr.label()));
+				}
+				else {
+					StringBuilder asm = new StringBuilder();
+					if (instr.label().length() > 0) asm.append(instr.label()).append(": ");
+					asm.append(instr.opcode());
+					if (instr.operands().size() > 0) asm.append(' ').append(String.join(",", instr.operands()));
+					w.write(String.format("%04d    %-34s  %s", line.address(), asm, location(line.origin()) + "  " + line.sourceText()));
+				}
+				w.newLine();
+			}
+		}
+
+		try (BufferedWriter w = new BufferedWriter(new FileWriter(mapFile))) {
+			w.write("; FXCoreMP program map of "+srcFile.getName()+" ("+outFile.getName()+")");
+			w.newLine();
+			w.write("; ADDR  LABEL                     DEFINED AT");
+			w.newLine();
+			List<LabelAddr> sorted = new ArrayList<>(labels);
+			sorted.sort(Comparator.comparingInt(LabelAddr::address)); // Stable, labels at the same address stay in source order
+			for (LabelAddr l: sorted) {
+				w.write(String.format("%04d    %-24s  %s", l.address(), l.label(), location(l.origin())));
+				w.newLine();
+			}
+		}
+
+		Util.info("  Listing file        : "+lstFile.getAbsolutePath());
+		Util.info("  Map file            : "+mapFile.getAbsolutePath());
+	}
+
+	/**
+	 * Returns "file:line", with the macro chain and invoking statement if the statement was
+	 * generated by a macro.
+	 * @param origin
+	 * @return
+	 */
+	static String location(Stmt origin) {
+		if (origin == null) return "";
+		String loc = origin.getFileName()+":"+origin.getLineNum();
+		if (origin.getMacroChain().length() > 0) {
+			loc = loc + " [" + origin.getMacroChain();
+			Stmt inv = origin.getInvokedAt();
+			if (inv != null) loc = loc + " @ " + inv.getFileName()+":"+inv.getLineNum();
+			loc = loc + "]";
+		}
+		return loc;
+	}
+
+	/**
+	 * Returns a file in the same directory as 'f' with its extension replaced by 'ext'.
+	 */
+	static File siblingFile(File f, String ext) {
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) name = name.substring(0, dot);
+		return new File(f.getAbsoluteFile().getParentFile(), name + ext);
+	}
+
+}
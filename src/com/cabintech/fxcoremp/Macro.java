@@ -150,10 +150,12 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import com.cabintech.toon.Operand;
 import com.cabintech.toon.SyntaxException;
 import com.cabintech.utils.Util;
 import com.ezylang.evalex.Expression;
@@ -164,12 +166,21 @@ public class Macro implements Constants {
 	private String macroName = null;							// Macro name
 	private List<MacroParm> argNames = new ArrayList<>();				// List of argument name/direction
 	private List<Stmt> macroLines = new ArrayList<Stmt>();		// List of lines (one or more)
-	static private Map<String, Object> equMap = new HashMap<>();		// Map of symbols and expressions created by .equ statements
-	static Map<String, Number> counterMap = new HashMap<>();	// Map of counter names to current values
 	private String sourceFile = null;
 	private static ExpressionConfiguration exprConfig = ExpressionConfiguration.builder().decimalPlacesRounding(12).build();
 	
-	private static int lastUnique = 0; // Last used ${:unique} macro-scope virtual arg value
+	/**
+	 * Symbols, counters and auto temps of one build. Each build has its own, the builds of a --variant
+	 * run are done at the same time on different threads.
+	 */
+	private static class State {
+		private final Map<String, Object> equMap = new HashMap<>();		// Map of symbols and expressions created by .equ statements
+		private final Map<String, Number> counterMap = new HashMap<>();	// Map of counter names to current values
+		private int lastUnique = 0; // Last used ${:unique} macro-scope virtual arg value
+		private int lastAutoTemp = 0; // Last auto temp register number
+		private final Map<String, String> autoTemps = new LinkedHashMap<>(); // Auto temp register name (upper case) -> "MACRO(arg)" it was made for
+	}
+	private static final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
 	
 	/**
 	 * Creates a Macro from a set of source statements, the first of which is the $macro statement.
@@ -184,7 +195,7 @@ public class Macro implements Constants {
 		if (line1.endsWith("++")) {
 			line1 = Util.jsSubstring(line1, 0, line1.length()-3).trim(); // Remove multi-line continuation marker
 		}
-		line1 = line1.replaceAll("\t"," ").trim();
+		line1 = line1.replace('\t',' ').trim();
 		
 		// Find end of macro name
 		String padded = line1 + " ";
@@ -224,7 +235,7 @@ public class Macro implements Constants {
 				String argNameList = Util.jsSubstring(line1, paren1+1, paren2).trim();
 				if (argNameList.length() > 0) {
 					// Extract comma separated list of arg names
-					String names[] = argNameList.split(",");
+					String names[] = Util.splitLiteral(argNameList, ",", 0);
 					for (String name: names) {
 						// Check if arg name has direction indicator (prefix or postfix is allowed)
 						name = name.trim();
@@ -256,6 +267,16 @@ public class Macro implements Constants {
 								name = Util.jsSubstring(name, 2);
 							}
 						}
+						else if (name.endsWith(DIR_TEMP_TEXT) || name.startsWith(DIR_TEMP_TEXT)) {
+							// Scratch register, if not supplied by the invocation a free CR is assigned after translation
+							dir = DIR_TEMP;
+							if (name.endsWith(DIR_TEMP_TEXT)) {
+								name = Util.jsSubstring(name, 0, name.length()-1);
+							}
+							else {
+								name = Util.jsSubstring(name, 1);
+							}
+						}
 						//System.out.println("Macro defn: "+name+" direction "+dir);
 						argNames.add(new MacroParm(name.trim(), dir));
 					}
@@ -314,6 +335,43 @@ public class Macro implements Constants {
 		return argNames.size();
 	}
 	
+	/**
+	 * Returns the argument names that must be supplied on an invocation (all but the auto temps).
+	 * @return
+	 */
+	public List<MacroParm> getRequiredArgNames() {
+		List<MacroParm> required = new ArrayList<>();
+		for (MacroParm argName: argNames) {
+			if (argName.getDirection() != DIR_TEMP) required.add(argName);
+		}
+		return required;
+	}
+	
+	/**
+	 * Clears the .equ symbols, counters and auto temps, for a new build on this thread (see --variant).
+	 */
+	public static void reset() {
+		state.set(new State());
+	}
+	
+	/**
+	 * Returns the current value of a counter ($_count()), or null if it has not been used.
+	 * @param counterName Lower case name
+	 * @return
+	 */
+	public static Number getCounter(String counterName) {
+		return state.get().counterMap.get(counterName);
+	}
+	
+	/**
+	 * Returns the auto temp registers created by macro invocations, name (upper case) to a
+	 * description of the macro argument it was created for.
+	 * @return
+	 */
+	public static Map<String, String> getAutoTemps() {
+		return Collections.unmodifiableMap(state.get().autoTemps);
+	}
+	
 	public String getName() {
 		return macroName;
 	}
@@ -325,11 +383,20 @@ public class Macro implements Constants {
 	 * @param context
 	 * @return
 	 */
-	public List<String> eval(Map<String,MacroParm> argValues, Stmt context) throws Exception {
+	public List<Stmt> eval(Map<String,MacroParm> argValues, Stmt context) throws Exception {
 		
 		// Use case-insensitive map for arg names
 		Map<String, MacroParm> treeMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		treeMap.putAll(argValues);
+		
+		// Auto temp args that were not supplied get a placeholder register name, replaced by a free CR after translation
+		for (MacroParm argName: argNames) {
+			if (argName.getDirection() == DIR_TEMP && !treeMap.containsKey(argName.getString())) {
+				String temp = Operand.AUTO_TEMP_PREFIX.toLowerCase() + (++state.get().lastAutoTemp);
+				state.get().autoTemps.put(temp.toUpperCase(), macroName+"("+argName.getString()+")");
+				treeMap.put(argName.getString(), new MacroParm(temp, DIR_TEMP));
+			}
+		}
 
 		// All args must be supplied and match definition arg names
 		if (treeMap.size() != argNames.size()) {
@@ -349,11 +416,11 @@ public class Macro implements Constants {
 		}
 		
 		// Add virtual args
-		lastUnique++; // Unique ID at the macro-invocation scope
-		treeMap.put(":unique", new MacroParm(lastUnique+"", DIR_ANY));
+		int unique = ++state.get().lastUnique; // Unique ID at the macro-invocation scope
+		treeMap.put(":unique", new MacroParm(unique+"", DIR_ANY));
 		treeMap.put(":sourcefile", new MacroParm(sourceFile, DIR_ANY));
-		treeMap.put(":sourcefile_root", new MacroParm(FXCoreMPMain.srcFile.getName(), DIR_ANY));
-		treeMap.put(":outputfile", new MacroParm(FXCoreMPMain.outFile.getName(), DIR_ANY));
+		treeMap.put(":sourcefile_root", new MacroParm(FXCoreMPMain.current().srcFile.getName(), DIR_ANY));
+		treeMap.put(":outputfile", new MacroParm(FXCoreMPMain.current().outFile.getName(), DIR_ANY));
 		
 		// Do argument substitution on each line of the macro defn
 		List<Stmt> genCode = new ArrayList<Stmt>();
@@ -417,20 +484,25 @@ public class Macro implements Constants {
 	 * definitions have been removed from the source and included files have been expanded
 	 * in-place.
 	 * 
+	 * Each returned statement carries the file and line it came from. Lines generated by a
+	 * multi-line macro also carry the chain of macros that generated them and the statement
+	 * that invoked the outermost macro.
+	 * 
 	 * @param expanded
 	 * @return
 	 * @throws Exception
 	 */
-	public static List<String> doMacroEval(List<Stmt> sourceLines) throws Exception {
+	public static List<Stmt> doMacroEval(List<Stmt> sourceLines) throws Exception {
 		
-		List<String> expanded = new ArrayList<>(); // Expanded macro lines output of this method
+		List<Stmt> expanded = new ArrayList<>(); // Expanded macro lines output of this method
 		List<Stmt> multiLines = new ArrayList<Stmt>();
+		List<String> tokenList = new ArrayList<>(3); // Reused for tokenizing each line
 
 		for (Stmt stmt: sourceLines) {
 			
 			if (stmt.isIgnore()) {
 				// Do not process this line (part of a block comment), just copy it to the output
-				expanded.add(stmt.getFullText());
+				expanded.add(stmt);
 				continue;
 			}
 			
@@ -473,24 +545,20 @@ public class Macro implements Constants {
 			boolean expansionOccured = false;
 			while (start >= 0) {
 				// We expect the macro name is next, it ends at first non-identifier char
-				String macroName = "";
 				char c = ' ';
 				int nameEnd = start+1;
 				expansionOccured = true; // At least one expansion has been done
 				
-				// Build up macro name until non-valid identifier char. Since we added a blank to
+				// Find the end of the macro name (first non-valid identifier char). Since we added a blank to
 				// the end we will always find a non-valid char before the end of the text.
 				
 				for (; nameEnd<text.length(); nameEnd++) { 
 					c = text.charAt(nameEnd);
-					if (Character.isJavaIdentifierPart(c) && c!='$') { // '$' is never in a macro name
-						macroName = macroName + c;
-						continue; // Keep moving over the macro name
-					}
-					else {
+					if (!Character.isJavaIdentifierPart(c) || c=='$') { // '$' is never in a macro name
 						break; // Stop at first non-identifier char
 					}
 				}
+				String macroName = text.substring(start+1, nameEnd);
 				if (macroName.length()<1) {
 					throw new SyntaxException("Missing or invalid macro name in '"+text+"'.", stmt);
 				}
@@ -505,7 +573,7 @@ public class Macro implements Constants {
 					// list has no macros in it, just literal text.
 					rawArgs = extractArgList(text, nameEnd);
 					if (rawArgs == null) throw new SyntaxException("Invalid macro argument list, missing closing paren: '"+text+"'.", stmt);
-					args = Util.split(rawArgs, ",");
+					args = Util.splitLiteral(rawArgs, ",");
 					end = nameEnd + rawArgs.length() + 2; // start + name + args + parens + $ char
 				}
 				else {
@@ -514,23 +582,34 @@ public class Macro implements Constants {
 				}
 				
 				// Expand the macro
-				List<String> macExpanded = Macro.evalMacroInvocation(macroName, args, rawArgs, stmt);
+				List<Stmt> macExpanded = Macro.evalMacroInvocation(macroName, args, rawArgs, stmt);
 				
 				// The first line of expansion replaces the macro invocation in the current line. Any additional lines are added immediately following
 				if (macExpanded.size() == 0) {
-					text = Util.jsSubstring(text, 0, start) + Util.jsSubstring(text, end); // Macro expanded to nothing
-					if (stmt.getComment().length() > 0) text = text + " " + stmt.getComment();
+					StringBuilder sb = new StringBuilder(text.length() + stmt.getComment().length() + 1);
+					sb.append(Util.jsSubSequence(text, 0, start)).append(Util.jsSubSequence(text, end)); // Macro expanded to nothing
+					if (stmt.getComment().length() > 0) sb.append(' ').append(stmt.getComment());
+					text = sb.toString();
 				}
 				else if (macExpanded.size() == 1) {
-					text = Util.jsSubstring(text, 0, start) + macExpanded.get(0) + Util.jsSubstring(text, end); // Single string result replaced macro invocation
+					String value = macExpanded.get(0).getFullText();
+					text = new StringBuilder(text.length() + value.length())
+						.append(Util.jsSubSequence(text, 0, start)).append(value).append(Util.jsSubSequence(text, end))
+						.toString(); // Single string result replaced macro invocation
 					//if (stmt.getComment().length() > 0) text = text + " " + stmt.getComment();
 				}
 				else {
 					// Any multi-line expansion replaces the source line without any farther nested expansion
 					text = ""; // Current line is replaced
-					expanded.add(";--- BEGIN MACRO: "+macroName+" "+stmt.getComment());
-					expanded.addAll(macExpanded);
-					expanded.add(";--- END MACRO: "+macroName);
+					expanded.add(derived(";--- BEGIN MACRO: "+macroName+" "+stmt.getComment(), stmt));
+					for (Stmt m: macExpanded) {
+						// Record where this line came from. Outer levels of a nested expansion overwrite the
+						// invoking statement, so it ends up as the statement in the source file.
+						m.setMacroChain(m.getMacroChain().length()==0 ? macroName : macroName+" > "+m.getMacroChain());
+						m.setInvokedAt(stmt);
+						expanded.add(m);
+					}
+					expanded.add(derived(";--- END MACRO: "+macroName, stmt));
 				}
 
 				// Scan (leftward) for more macro invocations
@@ -540,15 +619,16 @@ public class Macro implements Constants {
 			
 			// After macros have been expanded, keep track of assembler .equ statements that give symbolic names to expressions
 			// so those symbolic names can be used in $_eval() expressions.
-			String[] tokenList = Util.split(text, "\\p{Space}+", 3); // Tokenize on white space including tabs
-			if (tokenList.length == 3 && tokenList[0].equalsIgnoreCase(".equ")) {
+			int tokenCnt = Util.splitWhitespace(text, 3, tokenList); // Tokenize on white space including tabs
+			if (tokenCnt == 3 && tokenList.get(0).equalsIgnoreCase(".equ")) {
 				// Syntax: .equ symbolic-name expression
 				// Try to evaluate the expression now so it can be used in subsequent expressions since
 				// our $_eval() function does not operate recursively. If we cannot evaluate it (FXCore assembler
 				// EQU expressions may not match the capability of our expression evaluator), then just store
 				// it as the raw string and hope it is not used in an $_eval() expression. 
-				String symbol = tokenList[1].toUpperCase();
-				String exprStr = tokenList[2].toUpperCase();
+				String symbol = tokenList.get(1).toUpperCase();
+				String exprStr = tokenList.get(2).toUpperCase();
+				Map<String, Object> equMap = state.get().equMap;
 				try {
 					Object value = new Expression(exprStr, exprConfig).withValues(equMap).evaluate().getValue();
 					equMap.put(symbol, value);
@@ -560,16 +640,29 @@ public class Macro implements Constants {
 			}
 
 			if (!expansionOccured) {
-				expanded.add(stmt.getFullText()); // Did nothing here, copy full text to output
+				expanded.add(stmt); // Did nothing here, copy full text to output
 			}
 			else {
-				expanded.add(text.trim()); // Output expanded line
+				expanded.add(derived(text.trim(), stmt)); // Output expanded line
 			}
 		}
 
 		return expanded;
 	}
 	
+	/**
+	 * Returns an (unparsed) statement with the given text that has the same origin as 'stmt'.
+	 * @param text
+	 * @param stmt
+	 * @return
+	 */
+	private static Stmt derived(String text, Stmt stmt) {
+		Stmt d = new Stmt(text, stmt.getLineNum(), stmt.getFileName(), false);
+		d.setMacroChain(stmt.getMacroChain());
+		d.setInvokedAt(stmt.getInvokedAt());
+		return d;
+	}
+	
 	/**
 	 * Extract the arg list from "macroname(arg1, arg2)" where 'from' is the
 	 * index of the opening paren. Although there are no nested macro invocations
@@ -587,14 +680,14 @@ public class Macro implements Constants {
 	 */
 	private static String extractArgList(String text, int from) {
 		int nestLevel = 0;
-		String argStr = "";
 		from++; // Skip opening paren
+		int argStart = from;
 		
 		// Loop until we find a matching closing paren, or end of string (which is an error and returns null)
 		while (true) {
 			if (text.charAt(from) == ')') {
 				if (nestLevel == 0) { // Found matching closing paren
-					return argStr; 
+					return text.substring(argStart, from); 
 				}
 				nestLevel--; // Go up one nesting level
 			}
@@ -604,7 +697,6 @@ public class Macro implements Constants {
 			if (from == text.length()-1) { // Reached end of text without finding matched closing paren
 				return null; // Error
 			}
-			argStr = argStr + text.charAt(from); // Add to arg string
 			from++; // Move to next char
 		}
 	}
@@ -619,6 +711,14 @@ public class Macro implements Constants {
 	 * @throws Exception
 	 */
 	public static List<String> evalBuiltInFunction(String funcName, String[] args, String rawArgs, Stmt stmt) throws Exception {
+		ProcessingEvents.BuiltInFunction event = new ProcessingEvents.BuiltInFunction();
+		event.begin();
+		List<String> result = builtInFunction(funcName, args, rawArgs, stmt);
+		event.finish(funcName, args, result.size(), stmt);
+		return result;
+	}
+	
+	private static List<String> builtInFunction(String funcName, String[] args, String rawArgs, Stmt stmt) throws Exception {
 		
 		List<String> result = new ArrayList<>();
 		
@@ -642,6 +742,7 @@ public class Macro implements Constants {
 				if (args.length < 3) throw new SyntaxException("Expected 3rd argument for _count() built-in macro but found only "+args.length+".", stmt);
 				parameter = args[2].trim();
 			}
+			Map<String, Number> counterMap = state.get().counterMap;
 			if (!counterMap.containsKey(counterName)) { // New counter never seen before, create and init a new one
 				counterMap.put(counterName, Integer.valueOf(0));
 			}
@@ -675,6 +776,7 @@ public class Macro implements Constants {
 			default:
 				throw new SyntaxException("Count operation '"+operation+"' is not recognized, must be one of GET,SET,ADD,INC.", stmt);
 			}
+			MrAllocator.checkCounter(counterName, stmt); // The nextmr counter must not reach allocated MRs
 			break; // _count
 			
 		case "_eval":
@@ -685,7 +787,7 @@ public class Macro implements Constants {
 			// macro argument (rawArgs), not the comma-delimited args[] array.
 			try {
 				Expression expr = new Expression(rawArgs, exprConfig);
-				Object value = expr.withValues(equMap).evaluate().getValue();
+				Object value = expr.withValues(state.get().equMap).evaluate().getValue();
 				// By default BigDecimal results use exponent notation, we never want that.
 				String valueStr = value instanceof BigDecimal ? ((BigDecimal)value).toPlainString() : value.toString();
 				result.add(valueStr);
@@ -729,7 +831,48 @@ public class Macro implements Constants {
 //				throw new SyntaxException("Invalid numeric value in _eval() expression '"+expr+"'.", stmt);
 //			}
 			break; // _eval
-			
+
+		case "_mralloc":
+			// Syntax: $_mralloc(name [,count]), allocates one MR (or a block of consecutive MRs) and names it
+			// with a .rn statement. The name of a block is the first MR, and an .equ of "name_n" gives its
+			// number for indexed access.
+			if (args.length < 1 || args.length > 2 || args[0].trim().length() == 0) throw new SyntaxException("Expected 1 or 2 arguments for _mralloc() built-in macro but found "+args.length+".", stmt);
+			String mrName = args[0].trim();
+			int mrCount = 1;
+			if (args.length > 1) {
+				try {
+					mrCount = Integer.decode(args[1].trim());
+				}
+				catch (NumberFormatException e) {
+					throw new SyntaxException("Invalid MR count '"+args[1].trim()+"' for _mralloc() built-in macro.", stmt);
+				}
+			}
+			int mr = MrAllocator.allocate(mrName, mrCount, stmt);
+			if (mrCount > 1) result.add(".equ\t"+mrName+"_n\t"+mr);
+			result.add(".rn\t\t"+mrName+"\tmr"+mr);
+			break; // _mralloc
+
+		case "_mrfree":
+			// Syntax: $_mrfree(name), returns the MRs allocated to the name by _mralloc(), result is always empty
+			if (args.length != 1 || args[0].trim().length() == 0) throw new SyntaxException("Expected 1 argument for _mrfree() built-in macro but found "+args.length+".", stmt);
+			MrAllocator.free(args[0].trim(), stmt);
+			break; // _mrfree
+
+		case "_mrscope":
+			// Syntax: $_mrscope([begin,end]), MRs allocated inside a scope are freed at the end of it, result is always empty
+			String scopeOp = args.length == 1 ? args[0].trim().toLowerCase() : "";
+			switch (scopeOp) {
+			case "begin":
+				MrAllocator.beginScope();
+				break;
+			case "end":
+				MrAllocator.endScope(stmt);
+				break;
+			default:
+				throw new SyntaxException("MR scope operation '"+String.join(",", args)+"' is not recognized, must be one of BEGIN,END.", stmt);
+			}
+			break; // _mrscope
+
 		default:
 			throw new SyntaxException("Build-in function named '"+funcName+"' is not recognized.", stmt);
 		}
@@ -745,22 +888,38 @@ public class Macro implements Constants {
 	 * @param evalText
 	 * @return
 	 */
-	public static List<String> evalMacroInvocation(String macroName, String[] args, String rawArgs, Stmt stmt) throws Exception {
+	public static List<Stmt> evalMacroInvocation(String macroName, String[] args, String rawArgs, Stmt stmt) throws Exception {
+		ProcessingEvents.MacroInvocation event = new ProcessingEvents.MacroInvocation();
+		event.begin();
+		List<Stmt> result = macroInvocation(macroName, args, rawArgs, stmt);
+		event.finish(macroName, args, result.size(), stmt);
+		return result;
+	}
+	
+	private static List<Stmt> macroInvocation(String macroName, String[] args, String rawArgs, Stmt stmt) throws Exception {
 		
 		// Built in functions have the same syntax as macros but start with underscore
 		if (macroName.startsWith("_")) {
-			return evalBuiltInFunction(macroName, args, rawArgs, stmt);
+			List<Stmt> result = new ArrayList<>();
+			for (String value: evalBuiltInFunction(macroName, args, rawArgs, stmt)) {
+				result.add(derived(value, stmt));
+			}
+			return result;
 		}
 			
 		// Find macro to be evaluated
-		Macro m = FXCoreMPMain.macroMap.get(macroName);
+		Macro m = FXCoreMPMain.current().macroMap.get(macroName);
 		if (m == null) {
 			throw new SyntaxException("No definition found for macro '"+macroName+"'.", stmt);
 		}
 		
-		// Verify number of args
+		// Verify number of args, auto temps may be left out
+		List<MacroParm> defArgs = m.getArgNames();
 		if (args.length != m.getArgCount()) {
-			throw new SyntaxException("Number of arguments ("+args.length+") does not match macro definition ("+m.getArgNames().size()+") of macro '"+macroName+"'.", stmt);
+			defArgs = m.getRequiredArgNames();
+			if (args.length != defArgs.size()) {
+				throw new SyntaxException("Number of arguments ("+args.length+") does not match macro definition ("+m.getArgNames().size()+") of macro '"+macroName+"'.", stmt);
+			}
 		}
 
 		// Build map of arg names to values
@@ -780,8 +939,8 @@ public class Macro implements Constants {
 				{
 				// No equal sign or arg starts with a direction indicator, so this is positional MACRO(value0, value1, ...) match each arg, in order, to macro definition arg names
 				if (numNamArgs > 0) throw new SyntaxException("The form of the '"+macroName+"' macro arguments appear have both named an positional styles which is not allowed.", stmt);
-				String defName = m.getArgNames().get(argNum).getString();		// Name from macro definition
-				int defDir = m.getArgNames().get(argNum).getDirection();
+				String defName = defArgs.get(argNum).getString();		// Name from macro definition
+				int defDir = defArgs.get(argNum).getDirection();
 				int argDir = DIR_ANY;
 				if (argText.startsWith("<=>")) {
 					argDir = DIR_INOUT;
@@ -808,16 +967,16 @@ public class Macro implements Constants {
 				
 				//v1.1 Allow in/out direction indicators
 				int dir = DIR_INOUT;
-				String namevalue[] = Util.split(argText, "<=>");
+				String namevalue[] = Util.splitLiteral(argText, "<=>");
 				if (namevalue.length < 2) {
 					dir = DIR_IN;
-					namevalue = Util.split(argText, "<=");
+					namevalue = Util.splitLiteral(argText, "<=");
 					if (namevalue.length < 2) {
 						dir = DIR_OUT;
-						namevalue = Util.split(argText, "=>");
+						namevalue = Util.splitLiteral(argText, "=>");
 						if (namevalue.length < 2) {
 							dir = DIR_ANY;
-							namevalue = Util.split(argText, "=");
+							namevalue = Util.splitLiteral(argText, "=");
 						}
 					}
 				}
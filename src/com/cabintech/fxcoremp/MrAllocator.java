@@ -0,0 +1,205 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Assigns memory registers (MRs) to names for the $_mralloc() built-in function, and takes them
+ * back for $_mrfree() and at the end of a $_mrscope(). A freed MR is given to the next allocation
+ * that fits, so MRs used for a short stretch of the program (e.g. scratch values of a macro) are
+ * packed into the same few MRs instead of each taking a new one.
+ *
+ * Allocation is done as the macros are expanded, in source order. Freeing an MR says its value is
+ * not needed in the rest of the program (or from one sample to the next), MRs that hold state
+ * across samples should never be freed.
+ *
+ * The allocator gives out MRs from MR127 down, and the "nextmr" counter ($_count(nextmr,...)) counts
+ * MRs out from MR0 up, so the two can be mixed. MRs below the counter are never allocated, and it
+ * is an error if the counter reaches an MR that has been allocated, whichever is done first.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cabintech.toon.SyntaxException;
+
+public class MrAllocator {
+
+	public static final int NUM_MR = 128;
+	private static final String NEXTMR = "nextmr"; // Counter used by the older MR assignment convention
+
+	private record Block(String name, int base, int count) {}
+
+	/**
+	 * Allocations of one build, the builds of a --variant run are done at the same time on different threads.
+	 */
+	private static class State {
+		private final BitSet inUse = new BitSet(NUM_MR);					// MRs currently allocated
+		private final BitSet everUsed = new BitSet(NUM_MR);					// MRs allocated at any point
+		private final Map<String, Block> blocks = new LinkedHashMap<>();	// Name (upper case) -> allocated MRs
+		private final Deque<List<String>> scopes = new ArrayDeque<>();		// Names allocated in each open scope
+		private int allocations = 0;
+		private int peak = 0;
+	}
+	private static final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+	private MrAllocator() {
+	}
+
+	/**
+	 * Allocates a block of consecutive MRs to a name. Returns the number of the first MR.
+	 * @param name
+	 * @param count
+	 * @param stmt
+	 * @return
+	 * @throws SyntaxException if the name already has MRs or there is no free block big enough
+	 */
+	public static int allocate(String name, int count, Stmt stmt) throws SyntaxException {
+		State s = state.get();
+		String key = name.toUpperCase();
+		if (s.blocks.containsKey(key)) {
+			throw new SyntaxException("MR name '"+name+"' is already allocated to MR"+s.blocks.get(key).base()+", it must be freed before it is allocated again.", stmt);
+		}
+		if (count < 1 || count > NUM_MR) {
+			throw new SyntaxException("Number of MRs to allocate must be 1 to "+NUM_MR+", found "+count+".", stmt);
+		}
+
+		// Highest free block above the MRs counted out by the "nextmr" counter
+		int floor = counter();
+		int base = -1;
+		for (int top=s.inUse.previousClearBit(NUM_MR-1); top-count+1 >= floor; top=s.inUse.previousClearBit(top)) {
+			int used = s.inUse.previousSetBit(top);
+			if (used < top-count+1) {
+				base = top-count+1;
+				break;
+			}
+			top = used;
+		}
+		if (base < 0) {
+			throw new SyntaxException("No free block of "+count+" MR"+(count>1?"s":"")+" for '"+name+"', "+s.inUse.cardinality()+" MRs are allocated"+(floor > 0 ? " and MR0-MR"+(floor-1)+" are counted out by "+NEXTMR : "")+".", stmt);
+		}
+
+		s.inUse.set(base, base+count);
+		s.everUsed.set(base, base+count);
+		s.blocks.put(key, new Block(name, base, count));
+		if (!s.scopes.isEmpty()) s.scopes.peek().add(key);
+		s.allocations++;
+		s.peak = Math.max(s.peak, s.inUse.cardinality());
+		return base;
+	}
+
+	/**
+	 * Checks a new value of a counter, the "nextmr" counter must stay below the allocated MRs.
+	 * @param counterName
+	 * @param stmt
+	 * @throws SyntaxException if the counter has reached an allocated MR
+	 */
+	public static void checkCounter(String counterName, Stmt stmt) throws SyntaxException {
+		if (!counterName.equals(NEXTMR)) return;
+		int lowest = state.get().everUsed.nextSetBit(0);
+		if (lowest >= 0 && counter() > lowest) {
+			throw new SyntaxException("The "+NEXTMR+" counter has reached MR"+lowest+", which is allocated by $_mralloc().", stmt);
+		}
+	}
+
+	/**
+	 * Returns the number of MRs counted out by the "nextmr" counter.
+	 */
+	private static int counter() {
+		Number n = Macro.getCounter(NEXTMR);
+		return n == null ? 0 : Math.max(0, (int)Math.ceil(n.doubleValue()));
+	}
+
+	/**
+	 * Returns the MRs allocated to a name to the free pool.
+	 * @param name
+	 * @param stmt
+	 * @throws SyntaxException if the name has no MRs allocated
+	 */
+	public static void free(String name, Stmt stmt) throws SyntaxException {
+		State s = state.get();
+		Block b = s.blocks.remove(name.toUpperCase());
+		if (b == null) {
+			throw new SyntaxException("MR name '"+name+"' is not allocated.", stmt);
+		}
+		s.inUse.clear(b.base(), b.base()+b.count());
+		for (List<String> scope: s.scopes) {
+			scope.remove(name.toUpperCase());
+		}
+	}
+
+	/**
+	 * Starts a scope, MRs allocated in the scope and not freed are freed when it ends.
+	 */
+	public static void beginScope() {
+		state.get().scopes.push(new ArrayList<>());
+	}
+
+	/**
+	 * Ends the innermost scope and frees the MRs that were allocated in it.
+	 * @param stmt
+	 * @throws SyntaxException if there is no open scope
+	 */
+	public static void endScope(Stmt stmt) throws SyntaxException {
+		State s = state.get();
+		if (s.scopes.isEmpty()) {
+			throw new SyntaxException("$_mrscope(end) without a matching $_mrscope(begin).", stmt);
+		}
+		for (String key: s.scopes.pop()) {
+			Block b = s.blocks.remove(key);
+			s.inUse.clear(b.base(), b.base()+b.count());
+		}
+	}
+
+	/**
+	 * Returns the number of scopes that have been started and not ended.
+	 */
+	public static int openScopes() {
+		return state.get().scopes.size();
+	}
+
+	/**
+	 * Returns the number of $_mralloc() allocations made.
+	 */
+	public static int getAllocations() {
+		return state.get().allocations;
+	}
+
+	/**
+	 * Returns the largest number of MRs allocated at one time.
+	 */
+	public static int getPeak() {
+		return state.get().peak;
+	}
+
+	/**
+	 * Returns the number of different MRs that were allocated at some point.
+	 */
+	public static int getTotal() {
+		return state.get().everUsed.cardinality();
+	}
+
+	/**
+	 * Frees all MRs and clears the counts, for a new build on this thread (see --variant).
+	 */
+	public static void reset() {
+		state.set(new State());
+	}
+
+	/**
+	 * Returns a description of the MRs still allocated at the end of the build.
+	 */
+	public static List<String> getAllocated() {
+		State s = state.get();
+		List<String> result = new ArrayList<>();
+		for (Block b: s.blocks.values()) {
+			result.add(b.name()+" = MR"+b.base()+(b.count() > 1 ? "-MR"+(b.base()+b.count()-1) : ""));
+		}
+		return result;
+	}
+}
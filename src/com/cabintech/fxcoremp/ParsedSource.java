@@ -0,0 +1,120 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * A source file parsed for pass 1, shared by the builds of a --variant run. Each file is read and
+ * each line is parsed into a statement once, a build takes a copy of the statement of each line
+ * since the later processing changes them. The macros defined by the file are also made once for
+ * all builds, each for the lines it was made from (the lines can differ from build to build when
+ * there is an $ifenv region in the definition).
+ *
+ * The lines a build keeps are still chosen by the pass 1 of each build, an $ifenv region depends on
+ * the block comments and continued lines before it as well as on the -E settings.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cabintech.utils.Util;
+import com.cabintech.utils.Util.FirstAndRemainder;
+
+public class ParsedSource {
+
+	/**
+	 * One line of the file, with the first word (and remainder) of its text.
+	 */
+	public record Line(Stmt stmt, FirstAndRemainder parsed) {
+		/**
+		 * Returns a copy of the statement of this line, for one build.
+		 * @return
+		 */
+		public Stmt copy() {
+			return new Stmt(stmt);
+		}
+	}
+
+	// Parsed files by canonical path, a file is read once for all the builds of a --variant run
+	private static final Map<String,ParsedSource> cache = new HashMap<>();
+
+	private final String name;
+	private final int lineCount;
+	private final List<Line> lines = new ArrayList<>();
+	private final Map<String,Macro> macros = new ConcurrentHashMap<>(); // Line numbers of the definition -> macro
+
+	private ParsedSource(File f) throws IOException {
+		name = f.getName();
+		List<String> srcLines = Files.readAllLines(f.toPath());
+		lineCount = srcLines.size();
+
+		// Add a blank line at the end to insure any multi-line macro at the end
+		// of the file is terminated
+		srcLines.add("");
+
+		int lineNum = 0;
+		for (String inLine: srcLines) {
+			Stmt stmt = new Stmt(inLine, ++lineNum, name);
+			// Parse out the first word (and remainder) with tabs converted to blanks
+			lines.add(new Line(stmt, Util.getFirstAndRemainder(stmt.getText().replace('\t',' '))));
+		}
+	}
+
+	/**
+	 * Returns a source file, parsed when it is first read.
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized ParsedSource read(File f) throws IOException {
+		String key = f.getCanonicalPath();
+		ParsedSource source = cache.get(key);
+		if (source == null || !source.name.equals(f.getName())) { // The statements have the name it was included by
+			source = new ParsedSource(f);
+			cache.put(key, source);
+		}
+		return source;
+	}
+
+	/**
+	 * Returns the lines of the file, with a blank line added at the end.
+	 * @return
+	 */
+	public List<Line> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Returns the number of lines in the file.
+	 * @return
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Returns the macro defined by statements of this file, the first of which is the $macro statement.
+	 * A macro is made once for each set of definition lines.
+	 * @param defStmts
+	 * @return
+	 * @throws Exception
+	 */
+	public Macro getMacro(List<Stmt> defStmts) throws Exception {
+		StringBuilder key = new StringBuilder();
+		for (Stmt s: defStmts) {
+			key.append(s.getLineNum()).append(',');
+		}
+		Macro m = macros.get(key.toString());
+		if (m == null) {
+			m = new Macro(defStmts);
+			macros.putIfAbsent(key.toString(), m);
+		}
+		return m;
+	}
+}
@@ -0,0 +1,165 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Java Flight Recorder events for macro and TOON processing, so a build can be profiled with JDK
+ * Mission Control and allocation and GC can be tied to the macros that caused them, e.g.
+ *
+ *   java -XX:StartFlightRecording=filename=build.jfr -jar FXCoreMP.jar patch.fxc patch.fxc-mp
+ *
+ * Each event is started with begin() and ended with finish(), which only fills in the fields when
+ * the event is being recorded. When no recording is running the cost is creating the event object.
+ */
+
+import java.util.List;
+
+import com.cabintech.toon.Instr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+public class ProcessingEvents {
+
+	private static final String CATEGORY = "FXCoreMP";
+
+	private ProcessingEvents() {
+	}
+
+	@Name("com.cabintech.fxcoremp.MacroInvocation")
+	@Label("Macro Invocation")
+	@Category({CATEGORY, "Macro"})
+	@Description("Expansion of one macro invocation")
+	@StackTrace(false)
+	public static class MacroInvocation extends Event {
+		@Label("Macro")
+		String macro;
+		@Label("Arguments")
+		int argCount;
+		@Label("Lines Emitted")
+		int lines;
+		@Label("Source")
+		String location;
+
+		/**
+		 * Ends the event.
+		 * @param macroName
+		 * @param args
+		 * @param expanded Lines the macro expanded to
+		 * @param stmt Statement with the invocation
+		 */
+		public void finish(String macroName, String[] args, int expanded, Stmt stmt) {
+			end();
+			if (shouldCommit()) {
+				macro = macroName;
+				argCount = args.length;
+				lines = expanded;
+				location = Listing.location(stmt);
+				commit();
+			}
+		}
+	}
+
+	@Name("com.cabintech.fxcoremp.BuiltInFunction")
+	@Label("Built-in Function")
+	@Category({CATEGORY, "Macro"})
+	@Description("Evaluation of one built-in function ($_name)")
+	@StackTrace(false)
+	public static class BuiltInFunction extends Event {
+		@Label("Function")
+		String function;
+		@Label("Arguments")
+		int argCount;
+		@Label("Lines Emitted")
+		int lines;
+		@Label("Source")
+		String location;
+
+		/**
+		 * Ends the event.
+		 * @param funcName
+		 * @param args
+		 * @param values Lines the function returned
+		 * @param stmt Statement with the function
+		 */
+		public void finish(String funcName, String[] args, int values, Stmt stmt) {
+			end();
+			if (shouldCommit()) {
+				function = funcName;
+				argCount = args.length;
+				lines = values;
+				location = Listing.location(stmt);
+				commit();
+			}
+		}
+	}
+
+	@Name("com.cabintech.fxcoremp.SourceFile")
+	@Label("Source File")
+	@Category({CATEGORY, "Pass 1"})
+	@Description("Pass 1 ($include, $macro, $ifenv) of one source file, including the files it includes")
+	@StackTrace(false)
+	public static class SourceFile extends Event {
+		@Label("File")
+		String file;
+		@Label("Lines Read")
+		int linesRead;
+		@Label("Lines Emitted")
+		int lines;
+
+		/**
+		 * Ends the event.
+		 * @param fileName
+		 * @param read Lines of the file
+		 * @param emitted Statements written by pass 1
+		 */
+		public void finish(String fileName, int read, int emitted) {
+			end();
+			if (shouldCommit()) {
+				file = fileName;
+				linesRead = read;
+				lines = emitted;
+				commit();
+			}
+		}
+	}
+
+	@Name("com.cabintech.fxcoremp.ToonStatement")
+	@Label("TOON Statement")
+	@Category({CATEGORY, "TOON"})
+	@Description("Translation of one statement to assembler")
+	@StackTrace(false)
+	public static class ToonStatement extends Event {
+		@Label("Statement")
+		String text;
+		@Label("Lines Emitted")
+		int lines;
+		@Label("Instructions")
+		int instructions;
+		@Label("Source")
+		String location;
+
+		/**
+		 * Ends the event.
+		 * @param stmt
+		 * @param translated Lines the statement was translated to
+		 */
+		public void finish(Stmt stmt, List<Instr> translated) {
+			end();
+			if (shouldCommit()) {
+				text = stmt.getText();
+				lines = translated.size();
+				for (Instr i: translated) {
+					if (i.isInstruction()) instructions++;
+				}
+				location = Listing.location(stmt);
+				commit();
+			}
+		}
+	}
+}
@@ -17,32 +17,38 @@ public class SourceContext {
 		}
 	}
 	
-	private static Stack<Ctx> contextStack = new Stack<>();
+	// Files being read by the build on this thread, the builds of a --variant run are done at the same time
+	private static final ThreadLocal<Stack<Ctx>> contextStack = ThreadLocal.withInitial(Stack::new);
 
 	public SourceContext() {
 		
 	}
 	
 	public static void startFile(String fileName) {
-		contextStack.push(new Ctx(fileName));
+		contextStack.get().push(new Ctx(fileName));
 	}
 	public static void endFile() {
-		contextStack.pop();
+		contextStack.get().pop();
 	}
 	public static void atLine(int lineNum) {
-		if (contextStack.size() == 0) {
+		Stack<Ctx> stack = contextStack.get();
+		if (stack.size() == 0) {
 			System.out.println("Internal error, context stack is unexpectedly empty");
 		}
 		else {
-			contextStack.lastElement().sourceLine = lineNum;
+			stack.lastElement().sourceLine = lineNum;
 		}
 	}
+	public static void reset() {
+		contextStack.get().clear();
+	}
 	public static void dumpContext() {
 		System.out.println("Source context:");
-		if (contextStack.size() == 0) {
+		Stack<Ctx> stack = contextStack.get();
+		if (stack.size() == 0) {
 			System.out.println("  (none)");
 		}
-		else for (Ctx ctx: contextStack) {
+		else for (Ctx ctx: stack) {
 			System.out.println("  "+ctx.sourceFile+" at line "+ctx.sourceLine);
 		}
 	}
@@ -0,0 +1,100 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Writes the source map (.srcmap) of a lean output file (see --lean), which has only the labels,
+ * directives and instructions and no comments to show where each line came from. The map has one
+ * record for each output line, in order, written as the output is built:
+ *
+ *   +1		Source line number of this output line, as the change from the previous record
+ *
+ * preceded by a line that sets the source file or the macro chain when it changes:
+ *
+ *   @file <name>						Following records are from this file, the line number restarts at 0
+ *   @macro <chain> @ <file>:<line>		Following records were generated by these macros, invoked at <file>:<line>
+ *   @macro								Following records are not from a macro
+ *
+ * so output line N is the Nth record. Lines starting with ';' are comments.
+ */
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class SourceMap implements Closeable {
+
+	private final File mapFile;
+	private final BufferedWriter w;
+	private String file = null;		// Source file of the previous record
+	private String macro = "";		// Macro chain of the previous record
+	private int line = 0;			// Source line of the previous record
+	private int records = 0;
+
+	/**
+	 * Starts "<name>.srcmap" in the same directory as the output file.
+	 * @param outFile
+	 * @param srcFile
+	 * @throws IOException
+	 */
+	public SourceMap(File outFile, File srcFile) throws IOException {
+		mapFile = Listing.siblingFile(outFile, ".srcmap");
+		w = new BufferedWriter(new FileWriter(mapFile));
+		w.write("; FXCoreMP source map of "+srcFile.getName()+" ("+outFile.getName()+")");
+		w.newLine();
+	}
+
+	/**
+	 * Adds the record of the next output line.
+	 * @param origin Statement (from macro processing) the line came from
+	 * @throws IOException
+	 */
+	public void add(Stmt origin) throws IOException {
+		if (!origin.getFileName().equals(file)) {
+			file = origin.getFileName();
+			line = 0;
+			w.write("@file "+file);
+			w.newLine();
+		}
+		String m = "";
+		if (origin.getMacroChain().length() > 0) {
+			m = origin.getMacroChain();
+			Stmt inv = origin.getInvokedAt();
+			if (inv != null) m = m + " @ " + inv.getFileName()+":"+inv.getLineNum();
+		}
+		if (!m.equals(macro)) {
+			macro = m;
+			w.write(m.length() > 0 ? "@macro "+m : "@macro");
+			w.newLine();
+		}
+		int delta = origin.getLineNum() - line;
+		w.write(delta > 0 ? "+"+delta : Integer.toString(delta));
+		w.newLine();
+		line = origin.getLineNum();
+		records++;
+	}
+
+	/**
+	 * Returns the map file.
+	 * @return
+	 */
+	public File getFile() {
+		return mapFile;
+	}
+
+	/**
+	 * Returns the number of output lines mapped.
+	 * @return
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+		w.close();
+	}
+}
@@ -23,6 +23,8 @@ public class Stmt {
 	private boolean isBlockCommentEnd = false;
 	private boolean isContinued = false;
 	private boolean ignore = false; // Ignore this statement for any processing purposes
+	private String macroChain = ""; // Macros this statement was generated by, outermost first, e.g. "OUTER > INNER"
+	private Stmt invokedAt = null;  // Source statement that invoked the outermost macro, null if not macro generated
 	
 	public Stmt(String line, int lineNum, String fileName) {
 		this(line, lineNum, fileName, true); // Default is to parse the input line
@@ -111,6 +113,25 @@ public class Stmt {
 		}
 	}
 	
+	/**
+	 * Creates a copy of a statement, which can be changed without changing the original.
+	 * @param other
+	 */
+	public Stmt(Stmt other) {
+		fullText = other.fullText;
+		text = other.text;
+		label = other.label;
+		cmnt = other.cmnt;
+		lineNum = other.lineNum;
+		fileName = other.fileName;
+		isBlockCommentStart = other.isBlockCommentStart;
+		isBlockCommentEnd = other.isBlockCommentEnd;
+		isContinued = other.isContinued;
+		ignore = other.ignore;
+		macroChain = other.macroChain;
+		invokedAt = other.invokedAt;
+	}
+
 	/**
 	 * Returns true IFF the statement ends with a statement-continuation character (which
 	 * has been removed from the statement text).
@@ -174,6 +195,33 @@ public class Stmt {
 		return ignore;
 	}
 	
+	/**
+	 * Returns the names of the macros that generated this statement, outermost first and
+	 * separated by " > ". Returns an empty string if the statement is not from a multi-line
+	 * macro expansion.
+	 * @return
+	 */
+	public String getMacroChain() {
+		return macroChain;
+	}
+	
+	public void setMacroChain(String macroChain) {
+		this.macroChain = macroChain;
+	}
+	
+	/**
+	 * Returns the source statement that invoked the (outermost) macro that generated
+	 * this statement, or null if it was not generated by a macro.
+	 * @return
+	 */
+	public Stmt getInvokedAt() {
+		return invokedAt;
+	}
+	
+	public void setInvokedAt(Stmt invokedAt) {
+		this.invokedAt = invokedAt;
+	}
+	
 	public void removeComment() {
 		cmnt = "";
 		fullText = text;
@@ -0,0 +1,88 @@
+package com.cabintech.fxcoremp;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Holds the console output of a build that runs on its own thread, so the builds of a --variant run
+ * can be done at the same time and their output still printed one build after the other. Once
+ * System.out and System.err are replaced by stream(), what a thread writes goes to the buffers set
+ * with capture() (also for the threads it starts, e.g. for --threads), or to the console if it has
+ * none.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class ThreadOutput extends OutputStream {
+
+	/**
+	 * Output of one build.
+	 */
+	public record Buffers(ByteArrayOutputStream out, ByteArrayOutputStream err) {
+		public Buffers() {
+			this(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+		}
+
+		/**
+		 * Prints the output held to the console streams.
+		 * @param console Console stdout
+		 * @param consoleErr Console stderr
+		 */
+		public void print(PrintStream console, PrintStream consoleErr) {
+			console.write(out.toByteArray(), 0, out.size());
+			console.flush();
+			consoleErr.write(err.toByteArray(), 0, err.size());
+			consoleErr.flush();
+		}
+	}
+
+	private static final InheritableThreadLocal<Buffers> buffers = new InheritableThreadLocal<>();
+
+	private final PrintStream console;
+	private final boolean isErr;
+
+	private ThreadOutput(PrintStream console, boolean isErr) {
+		this.console = console;
+		this.isErr = isErr;
+	}
+
+	/**
+	 * Returns a stream to use for System.out or System.err.
+	 * @param console The stream replaced
+	 * @param isErr True for System.err
+	 * @return
+	 */
+	public static PrintStream stream(PrintStream console, boolean isErr) {
+		return new PrintStream(new ThreadOutput(console, isErr), true);
+	}
+
+	/**
+	 * Sends the output of this thread (and the threads it starts from now on) to the given buffers,
+	 * or to the console if null.
+	 * @param b
+	 */
+	public static void capture(Buffers b) {
+		buffers.set(b);
+	}
+
+	@Override
+	public void write(int b) {
+		Buffers t = buffers.get();
+		if (t == null) console.write(b);
+		else (isErr ? t.err() : t.out()).write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		Buffers t = buffers.get();
+		if (t == null) console.write(b, off, len);
+		else (isErr ? t.err() : t.out()).write(b, off, len);
+	}
+
+	@Override
+	public void flush() {
+		if (buffers.get() == null) console.flush();
+	}
+}
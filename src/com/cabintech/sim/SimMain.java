@@ -0,0 +1,273 @@
+package com.cabintech.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.cabintech.fxcoremp.Stmt;
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.SyntaxException;
+import com.cabintech.utils.Util;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Runs an FXCore assembler program (e.g. the output of FXCoreMP) in the Simulator and reports how
+ * many times each instruction was executed and how many instructions each sample executed.
+ *
+ *   java -cp FXCoreMP.jar com.cabintech.sim.SimMain <program> [options]
+ *
+ *   --in=<file.wav>			Input audio, channels 1-4 go to in0-in3
+ *   --out=<file.wav>			Write out0-out3 to a 24 bit WAV file
+ *   --channels=<n>				Number of output channels (default is the number of input channels, or 2)
+ *   --samples=<n>				Number of samples to run (default is the length of the input, or 1 second)
+ *   --seconds=<s>				Time to run
+ *   --rate=<hz>				Sample rate without an input file (default 48000)
+ *   --sine=in<n>:<hz>[:<amp>]	Synthetic sine wave input
+ *   --noise=in<n>[:<amp>]		Synthetic white noise input
+ *   --impulse=in<n>			Synthetic impulse on the first sample
+ *   --pot<n>=<v>				Pot value 0.0-1.0, or a script of <seconds>:<value> points joined by
+ *   							commas, e.g. "--pot0=0:0,2:1" sweeps pot0 from 0 to 1 over 2 seconds
+ *   --switch=<n>				Value of the switch and pin inputs
+ *
+ * Process exit codes:
+ * 0 = No errors
+ * 1 = Invalid program args
+ * 2 = Error in the program
+ * 3 = Unexpected system error
+ */
+public class SimMain {
+
+	private static final double S31 = 2147483647.0;
+
+	private SimMain() {
+	}
+
+	public static void main(String[] args) {
+		File progFile = null;
+		File inFile = null;
+		File outFile = null;
+		int outChannels = -1;
+		long numSamples = -1;
+		double seconds = -1;
+		float rate = 48000;
+		int switches = 0;
+		List<String> synth = new ArrayList<>();
+		double[][][] potScripts = new double[6][][];
+
+		try {
+			for (String arg: args) {
+				String lower = arg.toLowerCase();
+				String value = arg.indexOf('=') > 0 ? Util.jsSubstring(arg, arg.indexOf('=')+1) : "";
+				if (lower.startsWith("--in=")) inFile = new File(value);
+				else if (lower.startsWith("--out=")) outFile = new File(value);
+				else if (lower.startsWith("--channels=")) outChannels = Integer.parseInt(value);
+				else if (lower.startsWith("--samples=")) numSamples = Long.parseLong(value);
+				else if (lower.startsWith("--seconds=")) seconds = Double.parseDouble(value);
+				else if (lower.startsWith("--rate=")) rate = Float.parseFloat(value);
+				else if (lower.startsWith("--switch=")) switches = Integer.decode(value);
+				else if (lower.startsWith("--sine=") || lower.startsWith("--noise=") || lower.startsWith("--impulse=")) synth.add(lower);
+				else if (lower.matches("--pot[0-5]=.*")) potScripts[lower.charAt(5) - '0'] = potScript(value);
+				else if (arg.startsWith("--")) throw new IllegalArgumentException("Unknown option '"+arg+"'.");
+				else if (arg.trim().length() == 0) continue; // Batch files can pass empty args
+				else if (progFile == null) progFile = new File(arg);
+				else throw new IllegalArgumentException("Unexpected argument '"+arg+"'.");
+			}
+			if (progFile == null) throw new IllegalArgumentException("No program file specified.");
+			if (outChannels > 4) throw new IllegalArgumentException("At most 4 output channels (out0-out3).");
+		}
+		catch (IllegalArgumentException e) { // Includes NumberFormatException
+			System.err.println("Invalid cmd args: "+e.getMessage());
+			System.exit(1);
+		}
+
+		try {
+			Simulator sim = new Simulator(load(progFile));
+
+			// Input signals
+			int[][] input = new int[4][];
+			if (inFile != null) {
+				WavFile wav = WavFile.read(inFile);
+				rate = wav.getSampleRate();
+				for (int c=0; c<Math.min(4, wav.getChannels().length); c++) {
+					input[c] = wav.getChannels()[c];
+				}
+				if (numSamples < 0 && seconds < 0) numSamples = wav.getChannels()[0].length;
+				if (outChannels < 0) outChannels = Math.min(4, wav.getChannels().length);
+			}
+			if (seconds >= 0) numSamples = Math.round(seconds * rate);
+			if (numSamples < 0) numSamples = Math.round(rate);
+			if (outChannels < 0) outChannels = 2;
+			double[][] synthAmp = new double[4][];
+			for (String s: synth) {
+				addSynth(s, synthAmp);
+			}
+			Random noise = new Random(1);
+
+			int[][] output = new int[outChannels][(int)numSamples];
+			sim.setSwitches(switches);
+			long start = System.nanoTime();
+			for (int i=0; i<numSamples; i++) {
+				for (int c=0; c<4; c++) {
+					long v = input[c] != null && i < input[c].length ? input[c][i] : 0;
+					if (synthAmp[c] != null) {
+						double[] s = synthAmp[c];
+						v += (long)(S31 * (s[1] * Math.sin(2*Math.PI*s[0]*i/rate) + s[2] * (2*noise.nextDouble()-1) + (i == 0 ? s[3] : 0)));
+					}
+					sim.setInput(c, (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v)));
+				}
+				for (int p=0; p<6; p++) {
+					if (potScripts[p] != null) sim.setPot(p, (int)(S31 * potValue(potScripts[p], i/rate)));
+				}
+				sim.runSample();
+				for (int c=0; c<outChannels; c++) {
+					output[c][i] = sim.getOutput(c);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+
+			if (outFile != null) {
+				new WavFile(rate, output).write(outFile);
+			}
+			report(sim, progFile, rate, nanos, outFile);
+		}
+		catch (SyntaxException se) {
+			System.out.println("Simulation error:");
+			System.out.println("  "+se.getMessage());
+			System.out.println("  "+se.getStmtMessage());
+			System.exit(2);
+		}
+		catch (IOException e) {
+			System.out.println("ERROR: "+e.getMessage());
+			System.exit(2);
+		}
+		catch (Throwable t) {
+			System.out.println("Unexpected program error:");
+			t.printStackTrace(System.out);
+			System.exit(3);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Reads an assembler program into lines.
+	 */
+	private static List<Instr> load(File file) throws IOException {
+		List<Instr> program = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath())) {
+			boolean inBlockComment = false;
+			int lineNum = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Stmt stmt = new Stmt(line, ++lineNum, file.getName());
+				if (stmt.isBlockCommentEnd()) {
+					inBlockComment = false;
+				}
+				if (!inBlockComment) {
+					program.add(Instr.passThrough(stmt));
+				}
+				if (stmt.isBlockCommentStart()) {
+					inBlockComment = true;
+				}
+			}
+		}
+		return program;
+	}
+
+	/**
+	 * Parses a synthetic input option into [frequency, sine amplitude, noise amplitude, impulse] for the input.
+	 */
+	private static void addSynth(String option, double[][] synthAmp) {
+		String kind = option.substring(2, option.indexOf('='));
+		String[] parts = Util.jsSubstring(option, option.indexOf('=')+1).split(":");
+		if (!parts[0].matches("in[0-3]")) throw new IllegalArgumentException("Synthetic input must be in0-in3, found '"+parts[0]+"'.");
+		int c = parts[0].charAt(2) - '0';
+		if (synthAmp[c] == null) synthAmp[c] = new double[4];
+		switch (kind) {
+		case "sine":
+			if (parts.length < 2) throw new IllegalArgumentException("Sine input requires a frequency, e.g. --sine=in0:440.");
+			synthAmp[c][0] = Double.parseDouble(parts[1]);
+			synthAmp[c][1] = parts.length > 2 ? Double.parseDouble(parts[2]) : 0.5;
+			break;
+		case "noise":
+			synthAmp[c][2] = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.5;
+			break;
+		case "impulse":
+			synthAmp[c][3] = parts.length > 1 ? Double.parseDouble(parts[1]) : 1.0;
+			break;
+		}
+	}
+
+	/**
+	 * Parses a pot value or script into [seconds, value] points.
+	 */
+	private static double[][] potScript(String script) {
+		String[] points = script.split(",");
+		double[][] result = new double[points.length][2];
+		for (int i=0; i<points.length; i++) {
+			String[] tv = points[i].split(":");
+			result[i][0] = tv.length > 1 ? Double.parseDouble(tv[0]) : 0;
+			result[i][1] = Double.parseDouble(tv[tv.length-1]);
+			if (result[i][1] < 0 || result[i][1] > 1) throw new IllegalArgumentException("Pot values must be 0.0 to 1.0, found '"+points[i]+"'.");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the value of a pot script at a time, interpolating between points.
+	 */
+	private static double potValue(double[][] script, double t) {
+		if (t <= script[0][0]) return script[0][1];
+		for (int i=1; i<script.length; i++) {
+			if (t < script[i][0]) {
+				double f = (t - script[i-1][0]) / (script[i][0] - script[i-1][0]);
+				return script[i-1][1] + f * (script[i][1] - script[i-1][1]);
+			}
+		}
+		return script[script.length-1][1];
+	}
+
+	private static void report(Simulator sim, File progFile, float rate, long nanos, File outFile) {
+		long samples = sim.getSamples();
+		long[] hist = sim.getHistogram();
+		long total = 0;
+		int min = -1;
+		int max = 0;
+		for (int k=0; k<hist.length; k++) {
+			if (hist[k] == 0) continue;
+			total += hist[k] * k;
+			if (min < 0) min = k;
+			max = k;
+		}
+		double audioSecs = samples / (double)rate;
+		double simSecs = nanos / 1e9;
+
+		System.out.println("FXCoreMP simulation of "+progFile.getName());
+		System.out.println("  Samples             : "+samples+" ("+String.format("%.3f", audioSecs)+" seconds at "+(int)rate+" Hz)");
+		System.out.println("  Simulation time     : "+String.format("%.3f", simSecs)+" seconds ("+String.format("%.1f", simSecs > 0 ? audioSecs/simSecs : 0)+" times real time)");
+		System.out.println("  FXCore instructions : "+sim.size()+" in the program");
+		System.out.println("  Executed per sample : min "+Math.max(min, 0)+", average "+String.format("%.1f", samples > 0 ? total/(double)samples : 0)+", max "+max);
+		if (outFile != null) {
+			System.out.println("  Output file         : "+outFile.getAbsolutePath());
+		}
+
+		System.out.println("  Instructions per sample:");
+		for (int k=0; k<hist.length; k++) {
+			if (hist[k] > 0) System.out.println(String.format("    %5d : %d samples", k, hist[k]));
+		}
+
+		System.out.println("  Execution counts:");
+		System.out.println("    ADDR  COUNT          %  INSTRUCTION                         SOURCE");
+		for (int n=0; n<sim.size(); n++) {
+			Instr instr = sim.line(n);
+			String asm = instr.opcode() + (instr.operands().isEmpty() ? "" : " "+String.join(",", instr.operands()));
+			double pct = samples > 0 ? 100.0 * sim.count(n) / samples : 0;
+			System.out.println(String.format("    %04d  %-12d %5.1f  %-34s  %s:%d", n, sim.count(n), pct, asm, instr.source().getFileName(), instr.source().getLineNum()));
+		}
+	}
+}
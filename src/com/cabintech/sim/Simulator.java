@@ -0,0 +1,572 @@
+package com.cabintech.sim;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.cabintech.asm.Assembler;
+import com.cabintech.asm.SymbolTable;
+import com.cabintech.toon.Instr;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.cabintech.toon.SyntaxException;
+import com.cabintech.toon.Toon;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Instruction set simulator for FXCore assembler programs, for profiling generated code without
+ * hardware. The program is decoded once into an array of operations with register indexes,
+ * immediates, addresses and branch targets resolved, and each sample runs the array from the top.
+ *
+ * The arithmetic model (audio and coefficients are signed fractions):
+ *
+ *   Registers			32 bit S.31. CRs, MRs and SFRs keep their values from one sample to the next.
+ *   Immediates			16 bits. A value written with a decimal point is S.15, an integer is the raw
+ *   					16 bit value. ADDI/ADDSI add the immediate to the upper half, ANDI/ORI/XORI use
+ *   					it zero extended in the lower half, WRDLD loads it into the upper half and
+ *   					clears the lower half.
+ *   Multiplies			MULTRR/MULTRI keep the upper bits of the product (rounded toward minus
+ *   					infinity) and saturate.
+ *   ACC64				S1.62 sum of S.31 products. RDACC64U/L read the upper/lower 32 bits, SAT64 reads
+ *   					the sum as S.31 saturated. The MACH variants are simulated the same as MAC.
+ *   LOG2/EXP2			LOG2 gives log2(x)/16, EXP2 is the inverse, as S.31.
+ *   Delay memory		DELAY_MEMORY_SIZE words, addressed relative to a pointer that moves back one word
+ *   					every sample, except RDDIRX/WRDIRX which are absolute. Register addresses are
+ *   					in the upper 16 bits of the CR, the lower 16 bits are the fraction for INTERP.
+ *   ALLPASS			APA: R15 = (tail), ACC32 = ACC32 - k*R15. APB: (head) = ACC32, ACC32 = k*ACC32 + R15.
+ *   CHR				Interpolated read at addr + R15 * lfo (R15 in delay memory words as for INTERP).
+ *   LFOs				lfoN_f is the phase step per sample as a fraction of a cycle, lfoN_s/lfoN_c are
+ *   					the sine and cosine. Ramps step by rampN_f and read back in rampN_r.
+ *   Other SFRs			in0-in3, pots, switch and pin are set by the caller, samplecnt counts samples,
+ *   					noise is white noise. Everything else is plain storage.
+ *
+ * The simulation is for profiling and checking program flow, results may differ from the hardware
+ * in the least significant bits and in the LFO/ramp frequencies.
+ */
+public class Simulator {
+
+	public static final int MAX_MR = 128;
+
+	// Register file indexes
+	private static final int R15 = 15;
+	private static final int ACC32 = 16;
+	private static final int FLAGS = 17;
+	private static final int MR0 = 32;
+	private static final int SFR0 = MR0 + MAX_MR;
+	private static final String[] SFRS = new TreeSet<>(Toon.SrfNameSet).toArray(new String[0]);
+
+	private static final int DM_MASK = SymbolTable.DELAY_MEMORY_SIZE - 1;
+	private static final double S31 = 2147483648.0;
+
+	private enum Code {
+		ABS, NEG, INV, LOG2, EXP2, INTERP, CHR,
+		ADD, ADDI, ADDS, ADDSI, SUB, SUBS, SL, SLR, SLS, SLSR, SR, SRR, SRA, SRAR,
+		OR, ORI, AND, ANDI, XOR, XORI, MULTRR, MULTRI,
+		APA, APB, APRA, APRB, APRRA, APRRB, APMA, APMB,
+		MACRR, MACRI, MACRD, MACID, MACHRR, MACHRI, MACHRD, MACHID,
+		CPY_CC, CPY_CM, CPY_MC, CPY_CS, CPY_SC, CPY_CMX, WRDLD,
+		RDACC64U, RDACC64L, SAT64, LDACC64U, LDACC64L,
+		RDDEL, WRDEL, RDDELX, WRDELX, RDDIRX, WRDIRX,
+		JGEZ, JNEG, JNZ, JZ, JZC, JMP
+	}
+
+	/**
+	 * One decoded instruction. Register operands are register file indexes, immediates are already
+	 * scaled for the instruction, and a branch target is the index of the operation to go to.
+	 */
+	private record Op(Code code, int a, int b) {
+	}
+
+	private final Op[] ops;
+	private final List<Instr> lines = new ArrayList<>();	// Source line of each operation
+	private final int[] reg = new int[SFR0 + SFRS.length];
+	private final int[] dm = new int[SymbolTable.DELAY_MEMORY_SIZE];
+	private long acc64 = 0;
+	private int dmPtr = 0;
+	private final int maxSteps;
+
+	// Dynamic SFR indexes
+	private final int[] in = new int[4];
+	private final int[] out = new int[4];
+	private final int[] pot = new int[6];
+	private final int[] potSmooth = new int[6];
+	private final int[] lfoF = new int[4];
+	private final int[] lfoS = new int[4];
+	private final int[] lfoC = new int[4];
+	private final int[] rampF = new int[2];
+	private final int[] rampR = new int[2];
+	private final int sampleCnt;
+	private final int noise;
+	private final int switches;
+	private final int pin;
+	private final double[] lfoPhase = new double[4];
+	private final int[] rampPhase = new int[2];
+	private final boolean modulated; // Program may use the LFOs or ramps
+	private int random = 0x2545F491;
+
+	// Profile
+	private final long[] counts;
+	private final long[] histogram; // Instructions executed in a sample -> number of samples
+	private long samples = 0;
+
+	/**
+	 * Decodes a program.
+	 * @param program Lines of the program in order
+	 * @throws SyntaxException if a line cannot be decoded
+	 */
+	public Simulator(List<Instr> program) throws SyntaxException {
+		SymbolTable symbols = new SymbolTable();
+		Map<String,Integer> labels = new HashMap<>();
+
+		// Labels refer to the next instruction
+		int n = 0;
+		for (Instr instr: program) {
+			if (instr.label().length() > 0) {
+				if (labels.put(instr.label().toUpperCase(), n) != null) {
+					throw new SyntaxException("Label '"+instr.label()+"' is defined more than once.", instr.source());
+				}
+			}
+			if (instr.isInstruction()) n++;
+		}
+
+		// Decode, with the directives applied in program order
+		List<Op> decoded = new ArrayList<>();
+		List<int[]> inits = new ArrayList<>(); // Register index and value from .mreg/.creg/.sreg
+		for (Instr instr: program) {
+			if (instr.type() == Instr.Type.DIRECTIVE) {
+				symbols.directive(instr);
+				if (instr.opcode().equals(".mreg") || instr.opcode().equals(".creg") || instr.opcode().equals(".sreg")) {
+					if (instr.operands().size() < 2) throw new SyntaxException("Register and value are required on "+instr.opcode()+".", instr.source());
+					int r = registerIndex(instr.operands().get(0), symbols, instr);
+					inits.add(new int[] {r, fraction(String.join(" ", instr.operands().subList(1, instr.operands().size())), symbols, instr)});
+				}
+				continue;
+			}
+			if (!instr.isInstruction()) continue;
+			decoded.add(decode(instr, symbols, labels));
+			lines.add(instr);
+		}
+		ops = decoded.toArray(new Op[0]);
+		for (int[] init: inits) {
+			reg[init[0]] = init[1];
+		}
+
+		sampleCnt = sfr("samplecnt");
+		noise = sfr("noise");
+		switches = sfr("switch");
+		pin = sfr("pin");
+		for (int i=0; i<4; i++) {
+			in[i] = sfr("in"+i);
+			out[i] = sfr("out"+i);
+			lfoF[i] = sfr("lfo"+i+"_f");
+			lfoS[i] = sfr("lfo"+i+"_s");
+			lfoC[i] = sfr("lfo"+i+"_c");
+		}
+		for (int i=0; i<6; i++) {
+			pot[i] = sfr("pot"+i);
+			potSmooth[i] = sfr("pot"+i+"_smth");
+		}
+		for (int i=0; i<2; i++) {
+			rampF[i] = sfr("ramp"+i+"_f");
+			rampR[i] = sfr("ramp"+i+"_r");
+		}
+
+		// LFOs are only run if the program might read them (an operand index may match by chance, that only costs time)
+		boolean lfoUsed = false;
+		for (Op op: ops) {
+			if (op.code() == Code.CHR) lfoUsed = true;
+			for (int i=0; i<4; i++) {
+				if (op.a() == lfoS[i] || op.b() == lfoS[i] || op.a() == lfoC[i] || op.b() == lfoC[i]) lfoUsed = true;
+			}
+			for (int i=0; i<2; i++) {
+				if (op.a() == rampR[i] || op.b() == rampR[i]) lfoUsed = true;
+			}
+		}
+		modulated = lfoUsed;
+
+		// Branches only go forward on the FXCore, a loop is stopped after this many instructions
+		maxSteps = Math.max(1, ops.length * 16);
+		counts = new long[ops.length];
+		histogram = new long[maxSteps + 1];
+	}
+
+	//---------------------------------------------------------------
+	// Running
+	//---------------------------------------------------------------
+
+	/**
+	 * Sets an input channel (0-3) for the next sample.
+	 */
+	public void setInput(int channel, int value) {
+		reg[in[channel]] = value;
+	}
+
+	/**
+	 * Returns an output channel (0-3) written by the last sample.
+	 */
+	public int getOutput(int channel) {
+		return reg[out[channel]];
+	}
+
+	/**
+	 * Sets a pot (0-5) for the next sample.
+	 */
+	public void setPot(int n, int value) {
+		reg[pot[n]] = value;
+		reg[potSmooth[n]] = value;
+	}
+
+	/**
+	 * Sets the switch and pin inputs.
+	 */
+	public void setSwitches(int value) {
+		reg[switches] = value;
+		reg[pin] = value;
+	}
+
+	/**
+	 * Runs the program for one sample.
+	 * @throws SyntaxException if the program loops
+	 */
+	public void runSample() throws SyntaxException {
+		updateSfrs();
+		final Op[] ops = this.ops;
+		final int[] reg = this.reg;
+		final int[] dm = this.dm;
+		final long[] counts = this.counts;
+		int pc = 0;
+		int steps = 0;
+		while (pc < ops.length) {
+			if (++steps > maxSteps) {
+				throw new SyntaxException("Program did not end after "+maxSteps+" instructions in sample "+samples+", it has a loop.", lines.get(pc).source());
+			}
+			counts[pc]++;
+			Op op = ops[pc++];
+			int a = op.a();
+			int b = op.b();
+			switch (op.code()) {
+			case ABS:		reg[ACC32] = sat(Math.abs((long)reg[a])); break;
+			case NEG:		reg[ACC32] = sat(-(long)reg[a]); break;
+			case INV:		reg[ACC32] = ~reg[a]; break;
+			case LOG2:		reg[ACC32] = log2(reg[a]); break;
+			case EXP2:		reg[ACC32] = exp2(reg[a]); break;
+			case INTERP:	reg[ACC32] = interp(b + (reg[a] >> 16), reg[a] & 0xFFFF); break;
+			case CHR:		reg[ACC32] = chorus(a, b); break;
+
+			case ADD:		reg[ACC32] = reg[a] + reg[b]; break;
+			case ADDI:		reg[ACC32] = reg[a] + b; break;
+			case ADDS:		reg[ACC32] = sat((long)reg[a] + reg[b]); break;
+			case ADDSI:		reg[ACC32] = sat((long)reg[a] + b); break;
+			case SUB:		reg[ACC32] = reg[a] - reg[b]; break;
+			case SUBS:		reg[ACC32] = sat((long)reg[a] - reg[b]); break;
+			case SL:		reg[ACC32] = reg[a] << b; break;
+			case SLR:		reg[ACC32] = reg[a] << (reg[b] & 31); break;
+			case SLS:		reg[ACC32] = sat((long)reg[a] << b); break;
+			case SLSR:		reg[ACC32] = sat((long)reg[a] << (reg[b] & 31)); break;
+			case SR:		reg[ACC32] = reg[a] >>> b; break;
+			case SRR:		reg[ACC32] = reg[a] >>> (reg[b] & 31); break;
+			case SRA:		reg[ACC32] = reg[a] >> b; break;
+			case SRAR:		reg[ACC32] = reg[a] >> (reg[b] & 31); break;
+			case OR:		reg[ACC32] = reg[a] | reg[b]; break;
+			case ORI:		reg[ACC32] = reg[a] | b; break;
+			case AND:		reg[ACC32] = reg[a] & reg[b]; break;
+			case ANDI:		reg[ACC32] = reg[a] & b; break;
+			case XOR:		reg[ACC32] = reg[a] ^ reg[b]; break;
+			case XORI:		reg[ACC32] = reg[a] ^ b; break;
+			case MULTRR:	reg[ACC32] = sat(((long)reg[a] * reg[b]) >> 31); break;
+			case MULTRI:	reg[ACC32] = sat(((long)reg[a] * b) >> 31); break;
+
+			case APA:		allpassA(b, a); break;
+			case APB:		allpassB(b, a); break;
+			case APRA:		allpassA(b, reg[a]); break;
+			case APRB:		allpassB(b, reg[a]); break;
+			case APRRA:		allpassA(reg[b] >> 16, reg[a]); break;
+			case APRRB:		allpassB(reg[b] >> 16, reg[a]); break;
+			case APMA:		allpassA(reg[b] >> 16, reg[a]); break;
+			case APMB:		allpassB(reg[b] >> 16, reg[a]); break;
+
+			case MACRR:
+			case MACHRR:	acc64 += (long)reg[a] * reg[b]; break;
+			case MACRI:
+			case MACHRI:	acc64 += (long)reg[a] * b; break;
+			case MACRD:
+			case MACHRD:	acc64 += (long)reg[a] * dm[(dmPtr + b) & DM_MASK]; break;
+			case MACID:
+			case MACHID:	acc64 += (long)a * dm[(dmPtr + b) & DM_MASK]; break;
+
+			case CPY_CC:
+			case CPY_CM:
+			case CPY_MC:
+			case CPY_CS:
+			case CPY_SC:	reg[a] = reg[b]; break;
+			case CPY_CMX:	reg[a] = reg[MR0 + (reg[b] & (MAX_MR-1))]; break;
+			case WRDLD:		reg[a] = b; break;
+			case RDACC64U:	reg[a] = (int)(acc64 >> 32); break;
+			case RDACC64L:	reg[a] = (int)acc64; break;
+			case SAT64:		reg[a] = sat(acc64 >> 31); break;
+			case LDACC64U:	acc64 = ((long)reg[a] << 32) | (acc64 & 0xFFFFFFFFL); break;
+			case LDACC64L:	acc64 = (acc64 & 0xFFFFFFFF00000000L) | (reg[a] & 0xFFFFFFFFL); break;
+
+			case RDDEL:		reg[a] = dm[(dmPtr + b) & DM_MASK]; break;
+			case WRDEL:		dm[(dmPtr + a) & DM_MASK] = reg[b]; break;
+			case RDDELX:	reg[a] = dm[(dmPtr + (reg[b] >> 16)) & DM_MASK]; break;
+			case WRDELX:	dm[(dmPtr + (reg[a] >> 16)) & DM_MASK] = reg[b]; break;
+			case RDDIRX:	reg[a] = dm[(reg[b] >> 16) & DM_MASK]; break;
+			case WRDIRX:	dm[(reg[a] >> 16) & DM_MASK] = reg[b]; break;
+
+			case JGEZ:		if (reg[a] >= 0) pc = b; break;
+			case JNEG:		if (reg[a] < 0) pc = b; break;
+			case JNZ:		if (reg[a] != 0) pc = b; break;
+			case JZ:		if (reg[a] == 0) pc = b; break;
+			case JZC:		if ((reg[a] < 0) != (reg[ACC32] < 0)) pc = b; break;
+			case JMP:		pc = a; break;
+			}
+		}
+		histogram[steps]++;
+		samples++;
+		dmPtr = (dmPtr - 1) & DM_MASK;
+	}
+
+	private void updateSfrs() {
+		reg[sampleCnt] = (int)samples;
+		random ^= random << 13;
+		random ^= random >>> 17;
+		random ^= random << 5;
+		reg[noise] = random;
+		if (!modulated) return;
+		for (int i=0; i<4; i++) {
+			lfoPhase[i] += reg[lfoF[i]] / S31;
+			lfoPhase[i] -= Math.floor(lfoPhase[i]);
+			reg[lfoS[i]] = sat((long)(Math.sin(2*Math.PI*lfoPhase[i]) * S31));
+			reg[lfoC[i]] = sat((long)(Math.cos(2*Math.PI*lfoPhase[i]) * S31));
+		}
+		for (int i=0; i<2; i++) {
+			rampPhase[i] = (rampPhase[i] + reg[rampF[i]]) & 0x7FFFFFFF;
+			reg[rampR[i]] = rampPhase[i];
+		}
+	}
+
+	private void allpassA(int addr, int k) {
+		reg[R15] = dm[(dmPtr + addr) & DM_MASK];
+		reg[ACC32] = sat((long)reg[ACC32] - (((long)k * reg[R15]) >> 31));
+	}
+
+	private void allpassB(int addr, int k) {
+		dm[(dmPtr + addr) & DM_MASK] = reg[ACC32];
+		reg[ACC32] = sat((((long)k * reg[ACC32]) >> 31) + reg[R15]);
+	}
+
+	/**
+	 * Linear interpolation between two delay memory words, frac is 16 bits.
+	 */
+	private int interp(int addr, int frac) {
+		long d0 = dm[(dmPtr + addr) & DM_MASK];
+		long d1 = dm[(dmPtr + addr + 1) & DM_MASK];
+		return (int)(d0 + (((d1 - d0) * frac) >> 16));
+	}
+
+	/**
+	 * CHR: "lfo" has the LFO number in bits 0-1, bit 2 for cosine, bit 3 to negate.
+	 */
+	private int chorus(int lfo, int addr) {
+		int v = (lfo & 4) != 0 ? reg[lfoC[lfo & 3]] : reg[lfoS[lfo & 3]];
+		if ((lfo & 8) != 0) v = -v;
+		long offset = ((long)reg[R15] * v) >> 31; // Words in 16.16
+		long pos = ((long)addr << 16) + offset;
+		return interp((int)(pos >> 16), (int)(pos & 0xFFFF));
+	}
+
+	private static int sat(long v) {
+		return v > Integer.MAX_VALUE ? Integer.MAX_VALUE : (v < Integer.MIN_VALUE ? Integer.MIN_VALUE : (int)v);
+	}
+
+	private static int log2(int x) {
+		if (x <= 0) return Integer.MIN_VALUE;
+		return sat(Math.round(Math.log(x / S31) / Math.log(2) / 16 * S31));
+	}
+
+	private static int exp2(int x) {
+		return sat(Math.round(Math.pow(2, x / S31 * 16) * S31));
+	}
+
+	//---------------------------------------------------------------
+	// Profile
+	//---------------------------------------------------------------
+
+	/**
+	 * Returns the number of instructions in the program.
+	 */
+	public int size() {
+		return ops.length;
+	}
+
+	/**
+	 * Returns the source line of instruction n.
+	 */
+	public Instr line(int n) {
+		return lines.get(n);
+	}
+
+	/**
+	 * Returns the number of times instruction n was executed.
+	 */
+	public long count(int n) {
+		return counts[n];
+	}
+
+	/**
+	 * Returns the number of samples run.
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the histogram of the number of instructions executed per sample, indexed by the number
+	 * of instructions.
+	 */
+	public long[] getHistogram() {
+		return histogram;
+	}
+
+	//---------------------------------------------------------------
+	// Decoding
+	//---------------------------------------------------------------
+
+	private Op decode(Instr instr, SymbolTable symbols, Map<String,Integer> labels) throws SyntaxException {
+		InstrDef def = instr.getDef();
+		if (def == null) throw new SyntaxException("Instruction '"+instr.opcode()+"' is not known to the simulator.", instr.source());
+		if (instr.operands().size() != def.operandCount()) {
+			throw new SyntaxException("Instruction '"+instr.opcode()+"' requires "+def.operandCount()+" operands.", instr.source());
+		}
+		Code code = Code.valueOf(instr.opcode().toUpperCase());
+		int[] v = new int[2];
+		for (int i=0; i<def.operandCount(); i++) {
+			String text = instr.operands().get(i);
+			switch (def.operand(i)) {
+			case CR:
+			case MR:
+			case SFR:
+				v[i] = registerIndex(text, symbols, instr);
+				break;
+			case ADDR:
+				v[i] = symbols.intValue(stripParens(text), instr.source());
+				break;
+			case LABEL:
+				Integer target = labels.get(text.trim().toUpperCase());
+				if (target == null) throw new SyntaxException("Branch target '"+text.trim()+"' is not defined.", instr.source());
+				v[i] = target;
+				break;
+			case LFO:
+				v[i] = lfo(text, instr);
+				break;
+			case IMM:
+				v[i] = immediate(code, text, symbols, instr);
+				break;
+			}
+		}
+		return new Op(code, v[0], v[1]);
+	}
+
+	/**
+	 * Returns the immediate operand scaled for the instruction.
+	 */
+	private static int immediate(Code code, String text, SymbolTable symbols, Instr instr) throws SyntaxException {
+		switch (code) {
+		case SL: case SLS: case SR: case SRA:
+			return symbols.intValue(text, instr.source()) & 31;
+		case INTERP:
+			return symbols.intValue(text, instr.source());
+		default:
+			break;
+		}
+		int imm16 = imm16(text, symbols, instr);
+		switch (code) {
+		case ANDI: case ORI: case XORI:
+			return imm16 & 0xFFFF;
+		default:
+			return imm16 << 16; // ADDI, ADDSI, WRDLD upper half, S.15 coefficients as S.31
+		}
+	}
+
+	/**
+	 * Returns a 16 bit immediate, S.15 if written with a decimal point, checked the same way as the
+	 * assembler does (see Assembler.imm16()).
+	 */
+	private static int imm16(String text, SymbolTable symbols, Instr instr) throws SyntaxException {
+		try {
+			return Assembler.imm16(text, symbols.evaluate(text));
+		}
+		catch (SyntaxException e) {
+			throw new SyntaxException(e.getMessage(), instr.source());
+		}
+	}
+
+	/**
+	 * Returns an S.31 register initial value, a fraction if written with a decimal point.
+	 */
+	private static int fraction(String text, SymbolTable symbols, Instr instr) throws SyntaxException {
+		BigDecimal value;
+		try {
+			value = symbols.evaluate(text);
+		}
+		catch (SyntaxException e) {
+			throw new SyntaxException(e.getMessage(), instr.source());
+		}
+		if (value.stripTrailingZeros().scale() > 0 || text.indexOf('.') >= 0) {
+			return sat(Math.round(value.doubleValue() * S31));
+		}
+		return (int)value.longValue();
+	}
+
+	/**
+	 * Returns the LFO selector of a CHR instruction, e.g. "lfo1|sin|0".
+	 */
+	private static int lfo(String text, Instr instr) throws SyntaxException {
+		try {
+			return Assembler.lfoSelector(text);
+		}
+		catch (SyntaxException e) {
+			throw new SyntaxException(e.getMessage(), instr.source());
+		}
+	}
+
+	private static int registerIndex(String text, SymbolTable symbols, Instr instr) throws SyntaxException {
+		String name = symbols.register(text);
+		if (name != null) {
+			if (name.equals("ACC32")) return ACC32;
+			if (name.equals("FLAGS")) return FLAGS;
+			if (name.startsWith("MR") && name.length() > 2 && Character.isDigit(name.charAt(2))) {
+				int n = Integer.parseInt(name.substring(2));
+				if (n < MAX_MR) return MR0 + n;
+			}
+			else if (name.startsWith("R") && name.length() > 1 && Character.isDigit(name.charAt(1))) {
+				int n = Integer.parseInt(name.substring(1));
+				if (n < 16) return n;
+			}
+			else {
+				int s = sfr(name.toLowerCase());
+				if (s >= 0) return s;
+			}
+		}
+		throw new SyntaxException("'"+text.trim()+"' is not a register.", instr.source());
+	}
+
+	private static int sfr(String name) {
+		for (int i=0; i<SFRS.length; i++) {
+			if (SFRS[i].equals(name)) return SFR0 + i;
+		}
+		return -1;
+	}
+
+	private static String stripParens(String text) {
+		String t = text.trim();
+		if (t.startsWith("(") && t.endsWith(")")) t = t.substring(1, t.length()-1);
+		return t;
+	}
+}
@@ -0,0 +1,99 @@
+package com.cabintech.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Reads and writes PCM WAV files as S.31 samples, one int[] per channel.
+ */
+public class WavFile {
+
+	private final float sampleRate;
+	private final int[][] channels;
+
+	public WavFile(float sampleRate, int[][] channels) {
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+	}
+
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	public int[][] getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Reads a signed or unsigned PCM WAV file of 8, 16, 24 or 32 bit samples.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static WavFile read(File file) throws IOException {
+		try (AudioInputStream ais = AudioSystem.getAudioInputStream(file)) {
+			AudioFormat f = ais.getFormat();
+			if (f.getEncoding() != AudioFormat.Encoding.PCM_SIGNED && f.getEncoding() != AudioFormat.Encoding.PCM_UNSIGNED) {
+				throw new IOException("WAV file '"+file.getName()+"' is not PCM encoded ("+f.getEncoding()+").");
+			}
+			int bytes = f.getSampleSizeInBits() / 8;
+			int nch = f.getChannels();
+			byte[] data = ais.readAllBytes();
+			int frames = data.length / (bytes * nch);
+			int[][] channels = new int[nch][frames];
+			boolean unsigned = f.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+			int p = 0;
+			for (int i=0; i<frames; i++) {
+				for (int c=0; c<nch; c++) {
+					int v = 0;
+					for (int k=0; k<bytes; k++) {
+						int b = data[p + (f.isBigEndian() ? k : bytes-1-k)] & 0xFF;
+						v = (v << 8) | b;
+					}
+					p += bytes;
+					v <<= (32 - bytes*8); // Left justify to S.31
+					if (unsigned) v ^= Integer.MIN_VALUE;
+					channels[c][i] = v;
+				}
+			}
+			return new WavFile(f.getSampleRate(), channels);
+		}
+		catch (UnsupportedAudioFileException e) {
+			throw new IOException("File '"+file.getName()+"' is not a supported audio file: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a 24 bit signed PCM WAV file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		int nch = channels.length;
+		int frames = nch > 0 ? channels[0].length : 0;
+		byte[] data = new byte[frames * nch * 3];
+		int p = 0;
+		for (int i=0; i<frames; i++) {
+			for (int c=0; c<nch; c++) {
+				int v = channels[c][i];
+				data[p++] = (byte)(v >> 8);
+				data[p++] = (byte)(v >> 16);
+				data[p++] = (byte)(v >> 24);
+			}
+		}
+		AudioFormat f = new AudioFormat(sampleRate, 24, nch, true, false);
+		try (AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(data), f, frames)) {
+			AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.cabintech.toon;
+
+import java.util.List;
+
+import com.cabintech.fxcoremp.Stmt;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.utils.Util;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * One line of translated output. TOON translation produces a list of these for each source
+ * statement, so the number of FXCore instructions a statement generates is known exactly and
+ * later processing can work on the instructions without re-parsing the output text.
+ *
+ * Lines passed through from the source unchanged keep their original text (so the output is
+ * exactly what was written) but are still classified, e.g. a hand written "cpy_cc r0,r1" is an
+ * OP with its opcode and operands filled in.
+ */
+public record Instr(
+		Type type,
+		String label,			// Label defined by this line (without the ':'), "" if none
+		String opcode,			// OP: instruction mnemonic, DIRECTIVE: the directive (e.g. ".rn"), otherwise ""
+		List<String> operands,	// OP and DIRECTIVE operands
+		String trailer,			// Text following the operands, e.g. unused source tokens and separators
+		String comment,			// Annotation and comment appended to the line, including separator
+		String text,			// Verbatim output text for pass-through lines, null if rendered from the fields
+		Stmt source				// Source statement this line was generated from
+		) {
+
+	public enum Type {
+		OP,			// An FXCore instruction
+		LABEL,		// A line that only defines a label
+		DIRECTIVE,	// Assembler directive, e.g. ".rn" or ".equ"
+		TEXT		// Anything else: blank lines, comments, and lines inside block comments
+	}
+
+	private static final String SEP1 = "\t\t";
+
+	/**
+	 * Builds a generated instruction.
+	 * @param opcode
+	 * @param operands
+	 * @param trailer
+	 * @param comment
+	 * @param source
+	 * @return
+	 */
+	public static Instr op(String opcode, List<String> operands, String trailer, String comment, Stmt source) {
+		return new Instr(Type.OP, "", opcode, List.copyOf(operands), trailer, comment, null, source);
+	}
+
+	/**
+	 * Builds a generated label definition line.
+	 * @param label
+	 * @param trailer
+	 * @param comment
+	 * @param source
+	 * @return
+	 */
+	public static Instr label(String label, String trailer, String comment, Stmt source) {
+		return new Instr(Type.LABEL, label, "", List.of(), trailer, comment, null, source);
+	}
+
+	/**
+	 * Builds a line of output text that is not an instruction. Blank and comment only lines are
+	 * TEXT.
+	 * @param text
+	 * @param source
+	 * @return
+	 */
+	public static Instr text(String text, Stmt source) {
+		return new Instr(Type.TEXT, "", "", List.of(), "", "", text, source);
+	}
+
+	/**
+	 * Classifies a source statement that is passed through to the output unchanged.
+	 * @param stmt
+	 * @return
+	 */
+	public static Instr passThrough(Stmt stmt) {
+		String label = labelName(stmt);
+		String t = stmt.getText();
+
+		if (t.length() == 0) {
+			return new Instr(label.length() > 0 ? Type.LABEL : Type.TEXT, label, "", List.of(), "", "", stmt.getFullText(), stmt);
+		}
+		if (t.endsWith(":")) { // "label :" is not parsed as a label by Stmt
+			return new Instr(Type.LABEL, Util.jsSubstring(t, 0, t.length()-1).trim(), "", List.of(), "", "", stmt.getFullText(), stmt);
+		}
+
+		String[] parts = Util.splitWhitespace(t, 2);
+		String opcode = parts[0].toLowerCase();
+		Type type = opcode.startsWith(".") ? Type.DIRECTIVE : Type.OP;
+		List<String> operands = List.of();
+		if (parts.length > 1) {
+			// Directive operands are separated by spaces (e.g. ".rn name r0"), instruction operands by commas
+			operands = type == Type.DIRECTIVE ? List.of(Util.splitWhitespace(parts[1])) : operandList(parts[1]);
+		}
+		return new Instr(type, label, opcode, operands, "", "", stmt.getFullText(), stmt);
+	}
+
+	/**
+	 * Returns the name of the label on the given statement, or "" if it has none.
+	 * @param stmt
+	 * @return
+	 */
+	public static String labelName(Stmt stmt) {
+		String label = stmt.getLabel(); // Includes ": " separator
+		return label.length() > 0 ? Util.jsSubstring(label, 0, label.length()-2) : "";
+	}
+
+	private static List<String> operandList(String s) {
+		if (s.indexOf(',') < 0) {
+			return List.of(s.trim());
+		}
+		String[] ops = Util.splitLiteral(s, ",");
+		for (int i=0; i<ops.length; i++) {
+			ops[i] = ops[i].trim();
+		}
+		return List.of(ops);
+	}
+
+	/**
+	 * Returns a copy of this line defining the given label. This line must not already
+	 * define a label.
+	 * @param newLabel
+	 * @return
+	 */
+	public Instr withLabel(String newLabel) {
+		if (label.length() > 0) throw new IllegalStateException("Line already defines label '"+label+"'");
+		return new Instr(type, newLabel, opcode, operands, trailer, comment, text==null ? null : newLabel + ": " + text, source);
+	}
+
+	/**
+	 * Returns a copy of this line with additional comment text appended.
+	 * @param more
+	 * @return
+	 */
+	public Instr withComment(String more) {
+		if (more.length() == 0) return this;
+		if (text != null) return new Instr(type, label, opcode, operands, trailer, comment, text + more, source);
+		return new Instr(type, label, opcode, operands, trailer, comment + more, null, source);
+	}
+
+	/**
+	 * Returns TRUE if this line is an FXCore instruction (occupies a location in program memory).
+	 * Source lines with an opcode that is not in the InstructionTable are still counted as
+	 * instructions, the assembler will report them if they are not valid.
+	 * @return
+	 */
+	public boolean isInstruction() {
+		return type == Type.OP;
+	}
+
+	/**
+	 * Returns the instruction definition for this line, or null if this is not an instruction
+	 * or the opcode is not known.
+	 * @return
+	 */
+	public InstrDef getDef() {
+		return type == Type.OP ? InstructionTable.byOpcode(opcode) : null;
+	}
+
+	/**
+	 * Returns the assembler source text for this line.
+	 * @return
+	 */
+	public String render() {
+		if (text != null) return text;
+		StringBuilder sb = new StringBuilder();
+		switch (type) {
+		case OP:
+		case DIRECTIVE:
+			if (label.length() > 0) sb.append(label).append(": ");
+			sb.append(opcode);
+			if (operands.size() > 0) {
+				sb.append(SEP1).append(String.join(",", operands));
+			}
+			break;
+		case LABEL:
+			sb.append(label).append(':');
+			break;
+		case TEXT:
+			if (label.length() > 0) sb.append(label).append(": ");
+			break;
+		}
+		sb.append(trailer);
+		sb.append(comment);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the assembler source text for this line with only what the assembler needs: the label,
+	 * opcode, operands and any remaining operand text, without comments or annotation. Returns null
+	 * for a TEXT line with no label, it has nothing for the assembler.
+	 * @return
+	 */
+	public String renderLean() {
+		StringBuilder sb = new StringBuilder();
+		switch (type) {
+		case OP:
+		case DIRECTIVE:
+			if (label.length() > 0) sb.append(label).append(": ");
+			sb.append(opcode);
+			if (operands.size() > 0) {
+				// Directive operands are separated by spaces, instruction operands by commas (see passThrough())
+				sb.append(SEP1).append(String.join(type == Type.DIRECTIVE ? " " : ",", operands));
+			}
+			sb.append(trailer.stripTrailing());
+			break;
+		case LABEL:
+			sb.append(label).append(':');
+			break;
+		case TEXT:
+			if (label.length() == 0) return null;
+			sb.append(label).append(':');
+			break;
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Renders a list of lines as a single string with a newline between each line.
+	 * @param lines
+	 * @return
+	 */
+	public static String render(List<Instr> lines) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<lines.size(); i++) {
+			if (i > 0) sb.append('\n');
+			sb.append(lines.get(i).render());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return render();
+	}
+}
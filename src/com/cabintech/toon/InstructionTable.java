@@ -0,0 +1,475 @@
+package com.cabintech.toon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Declarative table of the FXCore instructions that have a TOON form. Each entry gives the assembler
+ * opcode, the kinds of its operands, the generic TOON function name (e.g. "add" for both ADD and ADDI),
+ * and the TOON pattern the instruction is written as. Both directions of translation are driven from
+ * this one table:
+ *
+ * TOON --> ASM: TOON function names (generic and explicit) are compiled into a dispatch map keyed by the
+ * function name and the shape of the operands (register or not) so the instruction is found with a
+ * single lookup. Assignment statements with no function (e.g. "r0 = [r5]") are looked up by the
+ * shape of the left and right side, derived from the TOON pattern.
+ *
+ * ASM --> TOON: the opcode is looked up and the operands are placed into its TOON pattern.
+ *
+ * Patterns use {1} and {2} for the first and second assembler operands. A pattern of null means the
+ * instruction has no single-line TOON equivalent (e.g. APA/APB are generated in pairs from ALLPASS).
+ */
+public class InstructionTable {
+
+	/**
+	 * Kinds of assembler operands.
+	 */
+	public enum Kind {
+		CR,		// Core register (r0-r15, acc32, flags)
+		MR,		// Memory register (mr0-mr127)
+		SFR,	// Special function register
+		IMM,	// Immediate (constant) value
+		ADDR,	// Delay memory address (constant)
+		LABEL,	// Branch target
+		LFO		// LFO selector of the CHR instruction
+	}
+
+	/**
+	 * What a TOON statement using the instruction assigns to.
+	 */
+	public enum Target {
+		ACC32_1,	// 'acc32 = func op1'
+		ACC32_2,	// 'acc32 = op1 func op2'
+		ACC64_2,	// 'acc64 = op1 func op2'
+		ASSIGN,		// 'left = right' (copy, load, store)
+		BRANCH		// 'if ... goto' or 'goto'
+	}
+
+	/**
+	 * One FXCore instruction.
+	 *
+	 * @param opcode		Assembler mnemonic (lower case)
+	 * @param toonFunc		Generic TOON function name, or null for ASSIGN and BRANCH instructions
+	 * @param target		Form of the TOON statement
+	 * @param toonPattern	TOON text using {1},{2} for the assembler operands, null if none
+	 * @param special		TOON form is translated by custom code (ALLPASS, CHORUS, INTERP)
+	 * @param operands		Kinds of the assembler operands
+	 * @param effects		Registers read and written, for optimization passes
+	 */
+	public record InstrDef(
+			String opcode,
+			String toonFunc,
+			Target target,
+			String toonPattern,
+			boolean special,
+			List<Kind> operands,
+			Effects effects
+			) {
+
+		public int operandCount() {
+			return operands.size();
+		}
+
+		public Kind operand(int i) {
+			return i < operands.size() ? operands.get(i) : null;
+		}
+	}
+
+	/**
+	 * Register effects of an instruction. Register operands other than the destination are read.
+	 *
+	 * @param dest			Index of the operand that is written, -1 if none
+	 * @param defs			Registers written that are not operands (e.g. ACC32)
+	 * @param uses			Registers read that are not operands (e.g. ACC64 by MACRR)
+	 * @param sideEffects	Writes delay memory or an SFR, the instruction is never removed
+	 */
+	public record Effects(
+			int dest,
+			List<String> defs,
+			List<String> uses,
+			boolean sideEffects
+			) {
+	}
+
+	/**
+	 * All the instructions that can be written with the same TOON function name, indexed
+	 * by the shape of the operands: [op1 is register][op2 is register]. A null slot means
+	 * no instruction accepts that combination.
+	 */
+	public static final class Family {
+		private final String name;
+		private final Target target;
+		private final boolean special;
+		private final List<InstrDef> members = new ArrayList<>();
+		private final InstrDef[] byShape = new InstrDef[4];
+
+		private Family(String name, Target target, boolean special) {
+			this.name = name;
+			this.target = target;
+			this.special = special;
+		}
+
+		public String getName() { return name; }
+		public Target getTarget() { return target; }
+		public boolean isSpecial() { return special; }
+		public List<InstrDef> getMembers() { return Collections.unmodifiableList(members); }
+
+		private void add(InstrDef def) {
+			members.add(def);
+			for (int shape=0; shape<4; shape++) {
+				if (byShape[shape] == null && accepts(def, (shape & 2) != 0, (shape & 1) != 0)) {
+					byShape[shape] = def;
+				}
+			}
+		}
+
+		/**
+		 * Returns the instruction for the given operand shape, or null if there is none.
+		 */
+		public InstrDef resolve(boolean op1IsReg, boolean op2IsReg) {
+			return byShape[(op1IsReg ? 2 : 0) + (op2IsReg ? 1 : 0)];
+		}
+
+		private static boolean accepts(InstrDef def, boolean op1IsReg, boolean op2IsReg) {
+			Kind k1 = def.operand(0);
+			Kind k2 = def.operand(def.operandCount()-1); // 1 operand instructions match on the same operand
+			return isRegKind(k1) == op1IsReg && isRegKind(k2) == op2IsReg;
+		}
+	}
+
+	private static final List<InstrDef> defs = new ArrayList<>();
+	private static final Map<String,InstrDef> byOpcode = new HashMap<>();
+	private static final Map<String,Family> families = new HashMap<>();
+	private static final Map<String,InstrDef> byAssignShape = new LinkedHashMap<>();
+
+	static {
+		// 1 operand, result in ACC32
+		def("abs",		"abs",		Target.ACC32_1, "ACC32 = abs {1}",				Kind.CR);
+		def("neg",		"neg",		Target.ACC32_1, "ACC32 = neg {1}",				Kind.CR);
+		def("inv",		"inv",		Target.ACC32_1, "ACC32 = inv {1}",				Kind.CR);
+		def("log2",		"log2",		Target.ACC32_1, "ACC32 = log2 {1}",				Kind.CR);
+		def("exp2",		"exp2",		Target.ACC32_1, "ACC32 = exp2 {1}",				Kind.CR);
+		special("interp", "interp",	Target.ACC32_1, "ACC32 = INTERP ({1}+{2})",		Kind.CR, Kind.IMM);
+		special("chr",	"chorus",	Target.ACC32_1, null,							Kind.LFO, Kind.ADDR);
+
+		// 2 operands, result in ACC32
+		def("add",		"add",		Target.ACC32_2, "ACC32 = {1} add {2}",			Kind.CR, Kind.CR);
+		def("addi",		"add",		Target.ACC32_2, "ACC32 = {1} add {2}",			Kind.CR, Kind.IMM);
+		def("adds",		"adds",		Target.ACC32_2, "ACC32 = {1} adds {2}",			Kind.CR, Kind.CR);
+		def("addsi",	"adds",		Target.ACC32_2, "ACC32 = {1} adds {2}",			Kind.CR, Kind.IMM);
+		def("sub",		"sub",		Target.ACC32_2, "ACC32 = {1} sub {2}",			Kind.CR, Kind.CR);
+		def("subs",		"subs",		Target.ACC32_2, "ACC32 = {1} subs {2}",			Kind.CR, Kind.CR);
+		def("sl",		"sl",		Target.ACC32_2, "ACC32 = {1} sl {2}",			Kind.CR, Kind.IMM);
+		def("slr",		"sl",		Target.ACC32_2, "ACC32 = {1} sl {2}",			Kind.CR, Kind.CR);
+		def("sls",		"sls",		Target.ACC32_2, "ACC32 = {1} sls {2}",			Kind.CR, Kind.IMM);
+		def("slsr",		"sls",		Target.ACC32_2, "ACC32 = {1} sls {2}",			Kind.CR, Kind.CR);
+		def("sr",		"sr",		Target.ACC32_2, "ACC32 = {1} sr {2}",			Kind.CR, Kind.IMM);
+		def("srr",		"sr",		Target.ACC32_2, "ACC32 = {1} sr {2}",			Kind.CR, Kind.CR);
+		def("sra",		"sra",		Target.ACC32_2, "ACC32 = {1} sra {2}",			Kind.CR, Kind.IMM);
+		def("srar",		"sra",		Target.ACC32_2, "ACC32 = {1} sra {2}",			Kind.CR, Kind.CR);
+		def("or",		"or",		Target.ACC32_2, "ACC32 = {1} or {2}",			Kind.CR, Kind.CR);
+		def("ori",		"or",		Target.ACC32_2, "ACC32 = {1} or {2}",			Kind.CR, Kind.IMM);
+		def("and",		"and",		Target.ACC32_2, "ACC32 = {1} and {2}",			Kind.CR, Kind.CR);
+		def("andi",		"and",		Target.ACC32_2, "ACC32 = {1} and {2}",			Kind.CR, Kind.IMM);
+		def("xor",		"xor",		Target.ACC32_2, "ACC32 = {1} xor {2}",			Kind.CR, Kind.CR);
+		def("xori",		"xor",		Target.ACC32_2, "ACC32 = {1} xor {2}",			Kind.CR, Kind.IMM);
+		def("multrr",	"mult",		Target.ACC32_2, "ACC32 = {1} mult {2}",			Kind.CR, Kind.CR);
+		def("multri",	"mult",		Target.ACC32_2, "ACC32 = {1} mult {2}",			Kind.CR, Kind.IMM);
+
+		// All-pass filter, always generated as an A/B pair (also targets R15)
+		special("apa",	"allpass",	Target.ACC32_2, null,							Kind.IMM, Kind.ADDR);
+		special("apb",	"allpass",	Target.ACC32_2, null,							Kind.IMM, Kind.ADDR);
+		special("apra",	"allpass",	Target.ACC32_2, null,							Kind.CR, Kind.ADDR);
+		special("aprb",	"allpass",	Target.ACC32_2, null,							Kind.CR, Kind.ADDR);
+		special("aprra","allpass",	Target.ACC32_2, null,							Kind.CR, Kind.CR);
+		special("aprrb","allpass",	Target.ACC32_2, null,							Kind.CR, Kind.CR);
+		special("apma",	"allpass",	Target.ACC32_2, null,							Kind.CR, Kind.MR);
+		special("apmb",	"allpass",	Target.ACC32_2, null,							Kind.CR, Kind.MR);
+
+		// 2 operands, summed into ACC64
+		def("macrr",	"macr",		Target.ACC64_2, "ACC64 += {1} macr {2}",		Kind.CR, Kind.CR);
+		def("macri",	"macr",		Target.ACC64_2, "ACC64 += {1} macr {2}",		Kind.CR, Kind.IMM);
+		def("macrd",	"macd",		Target.ACC64_2, "ACC64 += {1} macd ({2})",		Kind.CR, Kind.ADDR);
+		def("macid",	"macd",		Target.ACC64_2, "ACC64 += {1} macd ({2})",		Kind.IMM, Kind.ADDR);
+		def("machrr",	"machr",	Target.ACC64_2, "ACC64 += {1} machr {2}",		Kind.CR, Kind.CR);
+		def("machri",	"machr",	Target.ACC64_2, "ACC64 += {1} machr {2}",		Kind.CR, Kind.IMM);
+		def("machrd",	"machd",	Target.ACC64_2, "ACC64 += {1} machd ({2})",		Kind.CR, Kind.ADDR);
+		def("machid",	"machd",	Target.ACC64_2, "ACC64 += {1} machd ({2})",		Kind.IMM, Kind.ADDR);
+
+		// Assignments (copies, loads and stores)
+		def("cpy_cc",	null,		Target.ASSIGN,	"{1} = {2}",					Kind.CR, Kind.CR);
+		def("cpy_cm",	null,		Target.ASSIGN,	"{1} = {2}",					Kind.CR, Kind.MR);
+		def("cpy_mc",	null,		Target.ASSIGN,	"{1} = {2}",					Kind.MR, Kind.CR);
+		def("cpy_cs",	null,		Target.ASSIGN,	"{1} = {2}",					Kind.CR, Kind.SFR);
+		def("cpy_sc",	null,		Target.ASSIGN,	"{1} = {2}",					Kind.SFR, Kind.CR);
+		def("cpy_cmx",	null,		Target.ASSIGN,	"{1} = [{2}]",					Kind.CR, Kind.CR);
+		def("wrdld",	null,		Target.ASSIGN,	"{1}.U = {2}",					Kind.CR, Kind.IMM);
+		def("rdacc64u",	null,		Target.ASSIGN,	"{1} = ACC64.U",				Kind.CR);
+		def("rdacc64l",	null,		Target.ASSIGN,	"{1} = ACC64.L",				Kind.CR);
+		def("sat64",	null,		Target.ASSIGN,	"{1} = ACC64.SAT",				Kind.CR);
+		def("ldacc64u",	null,		Target.ASSIGN,	"ACC64.U = {1}",				Kind.CR);
+		def("ldacc64l",	null,		Target.ASSIGN,	"ACC64.L = {1}",				Kind.CR);
+		def("rddel",	null,		Target.ASSIGN,	"{1} = ({2})",					Kind.CR, Kind.ADDR);
+		def("wrdel",	null,		Target.ASSIGN,	"({1}) = {2}",					Kind.ADDR, Kind.CR);
+		def("rddelx",	null,		Target.ASSIGN,	"{1} = ({2})",					Kind.CR, Kind.CR);
+		def("wrdelx",	null,		Target.ASSIGN,	"({1}) = {2}",					Kind.CR, Kind.CR);
+		def("rddirx",	null,		Target.ASSIGN,	"{1} = #({2})",					Kind.CR, Kind.CR);
+		def("wrdirx",	null,		Target.ASSIGN,	"#({1}) = {2}",					Kind.CR, Kind.CR);
+
+		// Branches
+		def("jgez",		null,		Target.BRANCH,	"IF {1} >=0 GOTO {2}",			Kind.CR, Kind.LABEL);
+		def("jneg",		null,		Target.BRANCH,	"IF {1} <0 GOTO {2}",			Kind.CR, Kind.LABEL);
+		def("jnz",		null,		Target.BRANCH,	"IF {1} !=0 GOTO {2}",			Kind.CR, Kind.LABEL);
+		def("jz",		null,		Target.BRANCH,	"IF {1} =0 GOTO {2}",			Kind.CR, Kind.LABEL);
+		def("jzc",		null,		Target.BRANCH,	"IF {1} !=ACC32.SIGN GOTO {2}",	Kind.CR, Kind.LABEL);
+		def("jmp",		null,		Target.BRANCH,	"GOTO {1}",						Kind.LABEL);
+
+		// Compile the TOON function dispatch map. A generic name (e.g. "add") gets all the instructions
+		// with that name, an explicit opcode (e.g. "addi") gets only that instruction. Special forms are
+		// only reachable by their TOON name.
+		for (InstrDef def: defs) {
+			if (def.toonFunc() == null) continue;
+			family(def.toonFunc(), def).add(def);
+			if (!def.special() && !def.opcode().equals(def.toonFunc())) {
+				family(def.opcode(), def).add(def);
+			}
+		}
+
+		// Compile the assignment shape map
+		for (InstrDef def: defs) {
+			if (def.target() == Target.ASSIGN) {
+				String[] sides = splitAssignment(def.toonPattern());
+				String key = patternShape(sides[0], def) + "=" + patternShape(sides[1], def);
+				if (byAssignShape.containsKey(key)) throw new IllegalStateException("Duplicate TOON assignment shape "+key);
+				byAssignShape.put(key, def);
+			}
+		}
+	}
+
+	private InstructionTable() {
+	}
+
+	private static void def(String opcode, String toonFunc, Target target, String pattern, Kind... operands) {
+		add(new InstrDef(opcode, toonFunc, target, pattern, false, List.of(operands), effectsOf(opcode, target)));
+	}
+
+	private static void special(String opcode, String toonFunc, Target target, String pattern, Kind... operands) {
+		add(new InstrDef(opcode, toonFunc, target, pattern, true, List.of(operands), effectsOf(opcode, target)));
+	}
+
+	/**
+	 * Returns the register effects of an instruction. Where it is not certain a register is changed
+	 * (e.g. ACC32 by the ACC64 instructions) it is listed as both written and read, so it is neither
+	 * assumed to keep its value nor to be overwritten. That can only cost optimizations.
+	 */
+	private static Effects effectsOf(String opcode, Target target) {
+		switch (opcode) {
+		case "chr":			return new Effects(-1, List.of("ACC32"), List.of("R15"), false);	// Depth is in R15
+		case "apa": case "apb": case "apra": case "aprb":
+		case "aprra": case "aprrb": case "apma": case "apmb":
+							return new Effects(-1, List.of("ACC32", "R15"), List.of("ACC32", "R15"), true); // Writes delay memory/MR
+		case "cpy_mc":		return new Effects(0, List.of(), List.of(), false);
+		case "cpy_sc":		return new Effects(0, List.of(), List.of(), true);
+		case "wrdel": case "wrdelx": case "wrdirx":
+							return new Effects(-1, List.of(), List.of(), true);
+		case "rdacc64u": case "rdacc64l": case "sat64":
+							return new Effects(0, List.of(), List.of("ACC64"), false);
+		case "ldacc64u": case "ldacc64l":
+							return new Effects(-1, List.of("ACC64", "ACC32"), List.of("ACC64", "ACC32"), false); // Half of ACC64 is kept
+		case "jzc":			return new Effects(-1, List.of(), List.of("ACC32"), false);	// Compares with the ACC32 sign
+		}
+		switch (target) {
+		case ACC32_1:
+		case ACC32_2:		return new Effects(-1, List.of("ACC32"), List.of(), false);
+		case ACC64_2:		return new Effects(-1, List.of("ACC64", "ACC32"), List.of("ACC64", "ACC32"), false);
+		case ASSIGN:		return new Effects(0, List.of(), List.of(), false);
+		default:			return new Effects(-1, List.of(), List.of(), false);
+		}
+	}
+
+	private static void add(InstrDef def) {
+		if (byOpcode.containsKey(def.opcode())) throw new IllegalStateException("Duplicate instruction "+def.opcode());
+		defs.add(def);
+		byOpcode.put(def.opcode(), def);
+	}
+
+	private static Family family(String name, InstrDef def) {
+		Family f = families.computeIfAbsent(name, n -> new Family(n, def.target(), def.special()));
+		if (f.getTarget() != def.target()) throw new IllegalStateException("TOON function "+name+" has mixed targets");
+		return f;
+	}
+
+	private static boolean isRegKind(Kind k) {
+		return k == Kind.CR || k == Kind.MR || k == Kind.SFR;
+	}
+
+	/**
+	 * Returns all the instructions in the table.
+	 * @return
+	 */
+	public static List<InstrDef> getAll() {
+		return Collections.unmodifiableList(defs);
+	}
+
+	/**
+	 * Returns the instruction with the given assembler opcode (any case), or null if not in the table.
+	 * @param opcode
+	 * @return
+	 */
+	public static InstrDef byOpcode(String opcode) {
+		InstrDef def = byOpcode.get(opcode);
+		return def != null ? def : byOpcode.get(opcode.toLowerCase());
+	}
+
+	/**
+	 * Returns the family of instructions for a TOON function name (any case), or null if the name is
+	 * not a TOON function.
+	 * @param name
+	 * @return
+	 */
+	public static Family byToonFunc(String name) {
+		Family f = families.get(name);
+		return f != null ? f : families.get(name.toLowerCase());
+	}
+
+	/**
+	 * Returns the instruction for a TOON assignment with the given left and right operands, or
+	 * null if there is no instruction for that combination.
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	public static InstrDef byAssignment(Operand left, Operand right) {
+		return byAssignShape.get(operandShape(left) + "=" + operandShape(right));
+	}
+
+	/**
+	 * Returns the assembler operand text for the given instruction from the left and right operands
+	 * of a TOON assignment statement, in assembler order.
+	 * @param def
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	public static String[] assignmentOperands(InstrDef def, Operand left, Operand right) {
+		String[] sides = splitAssignment(def.toonPattern());
+		String[] ops = new String[def.operandCount()];
+		int i = placeholder(sides[0]);
+		if (i > 0) ops[i-1] = left.getOpText();
+		i = placeholder(sides[1]);
+		if (i > 0) ops[i-1] = right.getOpText();
+		return ops;
+	}
+
+	/**
+	 * Returns the TOON text for an instruction from its assembler operands, or null if the
+	 * instruction has no TOON pattern. The assignment operator is preceded by 'sep'.
+	 * @param def
+	 * @param ops
+	 * @param sep
+	 * @return
+	 */
+	public static String toToon(InstrDef def, String[] ops, String sep) {
+		if (def.toonPattern() == null) return null;
+		String s = def.toonPattern();
+		for (int i=0; i<ops.length; i++) {
+			s = s.replace("{"+(i+1)+"}", ops[i]);
+		}
+		for (String op: new String[] {" += ", " = "}) {
+			int i = s.indexOf(op);
+			if (i > 0) {
+				return s.substring(0, i) + sep + op.substring(1) + s.substring(i + op.length());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Shape of a TOON operand: base type (c=CR, m=MR, s=SFR, i=immediate) with its indirection and
+	 * postfix modifier, e.g. "c", "(i)", "[c]", "c.u", "acc64.sat".
+	 * @param op
+	 * @return
+	 */
+	static String operandShape(Operand op) {
+		String base = op.isCR() ? "c" : (op.isMR() ? "m" : (op.isSFR() ? "s" : (op.isAcc64() ? "acc64" : "i")));
+		return decorate(base, op.isDMIndirect(), op.isAbsDMIndirect(), op.isMRIndirect(), op.isModUpper(), op.isModLower(), op.isModSat());
+	}
+
+	/**
+	 * Shape of one side of a TOON pattern, using the same notation as operandShape().
+	 */
+	private static String patternShape(String side, InstrDef def) {
+		boolean dm = false, absDm = false, mr = false, upper = false, lower = false, sat = false;
+		String inner = side;
+		if (inner.startsWith("#(")) {
+			absDm = true;
+			inner = inner.substring(2, inner.length()-1);
+		}
+		else if (inner.startsWith("(")) {
+			dm = true;
+			inner = inner.substring(1, inner.length()-1);
+		}
+		else if (inner.startsWith("[")) {
+			mr = true;
+			inner = inner.substring(1, inner.length()-1);
+		}
+		else if (inner.endsWith(".U")) {
+			upper = true;
+			inner = inner.substring(0, inner.length()-2);
+		}
+		else if (inner.endsWith(".L")) {
+			lower = true;
+			inner = inner.substring(0, inner.length()-2);
+		}
+		else if (inner.endsWith(".SAT")) {
+			sat = true;
+			inner = inner.substring(0, inner.length()-4);
+		}
+		
+		String base;
+		int i = placeholder(inner);
+		if (i > 0) {
+			switch (def.operand(i-1)) {
+			case CR:	base = "c"; break;
+			case MR:	base = "m"; break;
+			case SFR:	base = "s"; break;
+			default:	base = "i";
+			}
+		}
+		else {
+			base = inner.toLowerCase(); // Literal, e.g. ACC64
+		}
+		return decorate(base, dm, absDm, mr, upper, lower, sat);
+	}
+
+	private static String decorate(String base, boolean dm, boolean absDm, boolean mr, boolean upper, boolean lower, boolean sat) {
+		if (dm) return "(" + base + ")";
+		if (absDm) return "#(" + base + ")";
+		if (mr) return "[" + base + "]";
+		if (upper) return base + ".u";
+		if (lower) return base + ".l";
+		if (sat) return base + ".sat";
+		return base;
+	}
+
+	/**
+	 * Returns the operand number of the {n} placeholder in a pattern fragment, or 0 if none.
+	 */
+	private static int placeholder(String s) {
+		int i = s.indexOf('{');
+		return i < 0 ? 0 : s.charAt(i+1) - '0';
+	}
+
+	private static String[] splitAssignment(String pattern) {
+		int i = pattern.indexOf(" = ");
+		return new String[] {pattern.substring(0, i), pattern.substring(i+3)};
+	}
+
+}
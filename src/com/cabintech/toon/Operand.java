@@ -1,5 +1,7 @@
 package com.cabintech.toon;
 
+import java.util.Map;
+
 import com.cabintech.utils.Util;
 
 /**
@@ -8,6 +10,11 @@ import com.cabintech.utils.Util;
  * 
  * This object represents a TOON statement operand. It may be the left or right side
  * of an assignment, or either side of an expression. 
+ * 
+ * Operands are immutable and are obtained from the Toon translator (Toon.operand()), which
+ * returns a shared instance for the same text. Since the classification depends on the ".rn"
+ * names in effect, each translator discards its cache whenever a ".rn" statement adds or
+ * changes a name.
  *
  */
 public class Operand {
@@ -29,8 +36,16 @@ public class Operand {
 
 
 	private boolean isSFR = false;
-
-	public Operand(String text) {
+	
+	// Placeholder name of a macro auto temp register, a CR that is assigned after translation (e.g. "_auto_3")
+	public static final String AUTO_TEMP_PREFIX = "_AUTO_";
+	
+	/**
+	 * Classifies the operand text with the given ".rn" names.
+	 * @param text
+	 * @param rnMap		".rn" names (upper case) and their registers
+	 */
+	Operand(String text, Map<String,String> rnMap) {
 		// Examine the text and determine any special operand syntax
 		this.text = text; // Preserve original text as-is
 		opText = text.toUpperCase(); // By default, operand is the original text
@@ -72,31 +87,69 @@ public class Operand {
 		}
 		
 		// See if the operand is a renamed (.rn) symbol
-		if (Toon.rnMap.containsKey(opText)) {
-			resolvedName = Toon.rnMap.get(opText); // Translate any renamed (.rn) symbol
+		if (rnMap.containsKey(opText)) {
+			resolvedName = rnMap.get(opText); // Translate any renamed (.rn) symbol
 		}
 		
 		// Determine if operand is a register type (using resolved name)
 		String rn = getResolvedName();
-		isMR = rn.matches("MR[0-9]+");
-		isCR = rn.equals("ACC32") || rn.matches("R[0-9]+") || rn.equals("FLAGS") || rn.equals("ACC32,R15");
+		isMR = isNumbered(rn, "MR");
 		isAcc32 = rn.equals("ACC32");
 		isAcc32R15 = rn.equals("ACC32,R15");
 		isAcc64 = rn.equals("ACC64");
+		isCR = isAcc32 || isAcc32R15 || isNumbered(rn, "R") || rn.equals("FLAGS") || isAutoTemp(rn);
 		isSFR = Toon.SrfNameSet.contains(rn.toLowerCase());
 		
 	}
 	
-	public static String getType(String op) {
-		op = op.toUpperCase();
-		String rn = Toon.rnMap.containsKey(op) ? Toon.rnMap.get(op) : op;
-		if (rn.matches("MR[0-9]+")) return "mr";
-		if (rn.equals("ACC32") || rn.matches("R[0-9]+") || rn.equals("FLAGS")) return "cr";
-		if (rn.equals("ACC64")) return "acc64";
-		if (Toon.SrfNameSet.contains(rn.toLowerCase())) return "sfr";
+	public static String getType(String op, Map<String,String> rnMap) {
+		Operand o = new Operand(op, rnMap);
+		if (!o.isPlain()) return "";
+		if (o.isMR) return "mr";
+		if (o.isCR && !o.isAcc32R15) return "cr";
+		if (o.isAcc64) return "acc64";
+		if (o.isSFR) return "sfr";
 		return "";
 	}
 	
+	/**
+	 * Returns TRUE if the (upper case) name is a register: a CR, MR, SFR, or ACC64. The name
+	 * must already be resolved, ".rn" names are not looked up.
+	 * @param name
+	 * @return
+	 */
+	public static boolean isRegisterName(String name) {
+		return name.equals("ACC32") || name.equals("FLAGS") || name.equals("ACC64") || isAutoTemp(name)
+				|| isNumbered(name, "R") || isNumbered(name, "MR") || Toon.SrfNameSet.contains(name.toLowerCase());
+	}
+	
+	/**
+	 * Returns TRUE if the (upper case, already resolved) name is a macro auto temp register
+	 * placeholder, e.g. "_AUTO_3".
+	 * @param name
+	 * @return
+	 */
+	public static boolean isAutoTemp(String name) {
+		return isNumbered(name, AUTO_TEMP_PREFIX);
+	}
+	
+	/**
+	 * Returns TRUE if the (upper case) name is the prefix followed by one or more decimal digits,
+	 * e.g. "R12" or "MR100".
+	 * @param name
+	 * @param prefix
+	 * @return
+	 */
+	private static boolean isNumbered(String name, String prefix) {
+		int len = name.length();
+		if (len <= prefix.length() || !name.startsWith(prefix)) return false;
+		for (int i=prefix.length(); i<len; i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Returns TRUE if this operand is a CR, MR, or SFR. If this operand is anything
 	 * else, including ACC64 then FALSE is returned.
@@ -0,0 +1,132 @@
+package com.cabintech.toon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.cabintech.fxcoremp.Stmt;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Translates a TOON program on several threads with the same result as translating it line by line.
+ * The only state carried from one statement to the next is the ".rn" names, the ".equ" symbols and
+ * the open IF statements with their label numbers (see Toon.changesState()). A first sequential pass
+ * translates just the statements that change that state and takes a copy of the translator at the
+ * start of each chunk of lines. The chunks are then translated in parallel, each with its own copy.
+ *
+ * Errors are returned with the line they were found on, so the caller can report them in program
+ * order. The translator given ends with the state it would have after translating the whole program.
+ */
+public class ParallelTranslator {
+
+	private static final int MIN_CHUNK = 256; // Lines, smaller chunks are not worth a thread
+
+	/**
+	 * Translation of one source line.
+	 *
+	 * @param stmt		Statement of the line
+	 * @param lines		Generated lines, null if there was an error
+	 * @param error		Error found translating the line, or null
+	 */
+	public record Line(Stmt stmt, List<Instr> lines, SyntaxException error) {
+	}
+
+	private ParallelTranslator() {
+	}
+
+	/**
+	 * Translates the source lines, returning the translation of each line in order.
+	 * @param toon		Translator, with the state at the start of the source
+	 * @param source	Source lines
+	 * @param fileName	Name of the source file for the statements
+	 * @param threads	Number of threads to use
+	 * @return
+	 * @throws Exception any unexpected error from the translator
+	 */
+	public static List<Line> translate(Toon toon, List<String> source, String fileName, int threads) throws Exception {
+		int n = source.size();
+		int chunkSize = Math.max(MIN_CHUNK, (n + threads - 1) / threads);
+		Stmt[] stmts = new Stmt[n];
+		boolean[] inComment = new boolean[n]; // Line is inside a block comment
+		List<Toon> copies = new ArrayList<>();
+		List<Callable<List<Line>>> chunks = new ArrayList<>();
+
+		// Prefix pass, the translator state at the start of each chunk
+		boolean inBlockComment = false;
+		for (int i=0; i<n; i++) {
+			if (i % chunkSize == 0) {
+				Toon copy = toon.copy();
+				int from = i;
+				int to = Math.min(n, i + chunkSize);
+				copies.add(copy);
+				chunks.add(() -> translate(copy, source, stmts, inComment, from, to));
+			}
+			Stmt stmt = new Stmt(source.get(i), i+1, fileName);
+			stmts[i] = stmt;
+			if (stmt.isBlockCommentEnd()) {
+				inBlockComment = false;
+			}
+			inComment[i] = inBlockComment;
+			if (!inBlockComment && Toon.changesState(stmt)) {
+				try {
+					toon.translate(stmt);
+				}
+				catch (SyntaxException se) {
+					// Reported when its chunk is translated
+				}
+			}
+			if (stmt.isBlockCommentStart()) {
+				inBlockComment = true;
+			}
+		}
+		if (chunks.isEmpty()) return List.of();
+
+		List<Line> result = new ArrayList<>(n);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+		try {
+			for (Future<List<Line>> f: pool.invokeAll(chunks)) {
+				try {
+					result.addAll(f.get());
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception cause) throw cause;
+					throw e;
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+		for (Toon copy: copies) {
+			toon.merge(copy);
+		}
+		return result;
+	}
+
+	/**
+	 * Translates the lines of one chunk with its own translator.
+	 */
+	private static List<Line> translate(Toon toon, List<String> source, Stmt[] stmts, boolean[] inComment, int from, int to) throws Exception {
+		List<Line> lines = new ArrayList<>(to - from);
+		for (int i=from; i<to; i++) {
+			Stmt stmt = stmts[i];
+			if (inComment[i]) {
+				lines.add(new Line(stmt, List.of(Instr.text("; "+source.get(i), stmt)), null));
+				continue;
+			}
+			try {
+				lines.add(new Line(stmt, toon.translate(stmt), null));
+			}
+			catch (SyntaxException se) {
+				lines.add(new Line(stmt, null, se));
+			}
+		}
+		return lines;
+	}
+}
@@ -1,5 +1,6 @@
 package com.cabintech.toon;
 
+import java.math.BigDecimal;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -8,10 +9,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.cabintech.fxcoremp.IfStmtRecord;
+import com.cabintech.fxcoremp.ProcessingEvents;
 import com.cabintech.fxcoremp.Stmt;
+import com.cabintech.toon.InstructionTable.InstrDef;
+import com.cabintech.toon.InstructionTable.Kind;
+import com.cabintech.toon.InstructionTable.Target;
 import com.cabintech.utils.Util;
+import com.ezylang.evalex.Expression;
+import com.ezylang.evalex.config.ExpressionConfiguration;
 
 /**
  * @author Mark McMillan
@@ -52,146 +60,6 @@ import com.cabintech.utils.Util;
 
 public class Toon {
 	
-	/**
-	 * All ASM opcodes that translate to a simple TOON assignment stmt
-	 */
-	private Set<String> ToonableCopySet = Set.of(
-			"cpy_cm",
-			"cpy_mc",
-			"cpy_cs",
-			"cpy_sc",
-			"cpy_cc",
-			"cpy_cmx",
-			"wrdld",
-			"rdacc64u",
-			"rdacc64l",
-			"sat64",
-			"ldacc64u",
-			"ldacc64l",
-			"rddel",
-			"wrdel",
-			"rddelx",
-			"wrdelx",
-			"rddirx",
-			"wrdirx",
-			"interp"
-	);
-	
-	/**
-	 * Operations with 2 operands
-	 */
-	private Set<String> ToonableOpsSet = Set.of(
-			"addi",
-			"add",		
-			"adds",		
-			"addsi",
-			"sub",
-			"subs",
-			"sl",		
-			"slr",
-			"sls",
-			"slsr",
-			"sr",		
-			"srr",
-			"sra",
-			"srar",
-			"or",		
-			"ori",
-			"and",		
-			"andi",
-			"xor",		
-			"xori",
-			
-			"multrr",
-			"multri",
-
-			"macrr",
-			"macri",
-			"macrd",
-			"macid",
-			"machrr",
-			"machri",
-			"machrd",
-			"machid"
-			
-	);
-	
-	// Conditional branching
-	private Set<String> ToonableBranchSet = Set.of(
-			"jgez", 
-			"jneg",
-			"jnz",
-			"jz",
-			"jzc",
-			"jmp"
-	);
-
-	// Operations with 1 operand
-	private Set<String> ToonableUnarySet = Set.of(
-			"inv",
-			"abs",
-			"neg",
-			"log2",
-			"exp2"
-			);
-
-	
-	
-	// 2 operand instructions that target ACC32 'acc32 = x instr y'
-	private Set<String> Ops2ArgAcc32Set = Set.of(
-			"addi",
-			"add",		// Synthetic
-			"adds",		// Synthetic
-			"addsi",
-			"sub",
-			"subs",
-			"sl",		// Synthetic
-			"slr",
-			"sls",
-			"slsr",
-			"sr",		// Synthetic
-			"srr",
-			"sra",
-			"srar",
-			"or",		// Synthetic
-			"ori",
-			"and",		// Synthetic
-			"andi",
-			"xor",		// Synthetic
-			"xori",
-			"multrr",
-			"multri",
-			"mult",		// Synthetic
-			"allpass"	// Synthetic
-			);
-	
-	// 1 operand instructions that target ACC32 'acc32 = instr x'
-	private Set<String> Ops1ArgAcc32Set = Set.of(
-			"inv",
-			"abs",
-			"neg",
-			"log2",
-			"exp2",
-			"interp",
-			"chorus"
-			);
-
-	// 2 operand instructions that target ACC64 'acc64 = x instr y'
-	private Set<String> Ops2ArgAcc64Set = Set.of(
-			"macrr",
-			"macri",
-			"macrd",
-			"macid",
-			"machrr",
-			"machri",
-			"machrd",
-			"machid",
-			"macr",		// Inferred
-			"macd",		// Inferred
-			"machr",	// Inferred
-			"machd"	// Inferred
-			);
-	
 	// Map of allowed conditional expression operators for IF statements into target FXCore branch mnemonics.
 	private Map<String,String> CondJmpExpr = Map.ofEntries(
 			Map.entry("=", "jz"),
@@ -295,11 +163,27 @@ public class Toon {
 			
 	
 	// Track assembler .rn statements so we can determine the type of assignment operands 'x = y'.
-	static Map<String,String> rnMap = new HashMap<>(); // Also used in Operand class
-	public static Deque<IfStmtRecord> ifStmtStack = new ArrayDeque<>();
+	private Map<String,String> rnMap = new HashMap<>();
+	private Deque<IfStmtRecord> ifStmtStack = new ArrayDeque<>();
 	private int ifCounter = 1;
 	
+	// Interned operands, valid only for the current rnMap (cleared when a ".rn" adds or changes a name)
+	private static final int CACHE_LIMIT = 4096;
+	private static final Set<String> StateKeywords = Set.of(".rn", ".equ", "if", "then", "else", "endif");
+	private final Map<String,Operand> operands = new HashMap<>();
+	
+	// Translations of statement text, valid only for the current rnMap and equMap (see translateCached())
+	private final Map<String,List<Instr>> translations = new HashMap<>();
+	private int cacheLookups = 0;
+	private int cacheHits = 0;
+	
 	private boolean annotate = true; // Write original TOON statements as comments in each line of output. 
+	private Map<String,Object> equMap = new HashMap<>(); // Symbols defined by .equ statements, for constant loads
+	private boolean constantPool = false; // A constant was loaded from a pool MR
+	
+	// Prefix of the placeholder MR names of constant pool loads, replaced by MRs for the whole program by ConstantPool.assign()
+	public static final String POOL_PREFIX = "_const_";
+	private static ExpressionConfiguration exprConfig = ExpressionConfiguration.builder().decimalPlacesRounding(12).build();
 	
 	private static String SEP1 = "\t\t";   // Separator between output instruction and first operand
 	private static String SEP2 = "\t\t\t"; // Separator between output statement text and comment
@@ -392,6 +276,71 @@ public class Toon {
 		return s.toString();
 	}
 	
+	/**
+	 * Returns the text that follows a generated instruction: any remainder tokens starting at
+	 * remainderIndex (see rebuildStatement()). 'tokens' may be null.
+	 * @param tokens
+	 * @param remainderIndex
+	 * @return
+	 */
+	private String trailerOf(String[] tokens, int remainderIndex) {
+		if (tokens == null) return "";
+		StringBuilder s = new StringBuilder();
+		for (int i=remainderIndex; i < tokens.length; i++) {
+			s.append(" " + tokens[i]);
+		}
+		s.append(SEP2);
+		return s.toString();
+	}
+	
+	/**
+	 * Returns the annotation (if enabled) and original comment of the given statement, to be appended
+	 * to a generated line.
+	 * @param stmt
+	 * @return
+	 */
+	private String commentOf(Stmt stmt) {
+		StringBuilder s = new StringBuilder();
+		if (annotate) {
+			s.append(" /* ");
+			s.append(stmt.getText());
+			s.append(" */ ");
+		}
+		if (stmt.getComment().length() > 0) {
+			s.append(SEP1 + stmt.getComment());
+		}
+		return s.toString();
+	}
+	
+	/**
+	 * Builds a generated instruction with the comment of the given statement and any remainder tokens.
+	 * @param stmt
+	 * @param tokens
+	 * @param remainderIndex
+	 * @param opcode
+	 * @param operands
+	 * @return
+	 */
+	private Instr op(Stmt stmt, String[] tokens, int remainderIndex, String opcode, String... operands) {
+		return Instr.op(opcode, Arrays.asList(operands), trailerOf(tokens, remainderIndex), commentOf(stmt), stmt);
+	}
+	
+	/**
+	 * Translates text that followed a THEN or ELSE keyword, the lines get the comment of the
+	 * enclosing statement.
+	 * @param text
+	 * @param stmt
+	 * @return
+	 * @throws Exception
+	 */
+	private List<Instr> translateNested(String text, Stmt stmt) throws Exception {
+		List<Instr> lines = new ArrayList<>();
+		for (Instr i: translate(new Stmt(text, stmt.getLineNum(), stmt.getFileName(), true))) {
+			lines.add(i.withComment(commentOf(stmt)));
+		}
+		return lines;
+	}
+	
 	/**
 	 * Concatenate all the tokens in the given list starting at the given index.
 	 * @param tokens
@@ -430,12 +379,90 @@ public class Toon {
 
 	/**
 	 * Returns the given source statement as-is, or if it is recognized as a TOON
-	 * statement, the translated FXCore assembler statement is returned.
+	 * statement, the translated FXCore assembler statement is returned. Statements that
+	 * generate more than one line are returned with '\n' between the lines.
 	 * @param s
 	 * @return
 	 * @throws Exception
 	 */
 	public String toonToAsm(Stmt stmt) throws Exception {
+		return Instr.render(translate(stmt));
+	}
+	
+	/**
+	 * Translates the given source statement into the lines of output it generates. A statement
+	 * that is not TOON is returned as a single pass-through line. If the statement has a label
+	 * it is defined by the first generated line.
+	 * @param stmt
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Instr> translate(Stmt stmt) throws Exception {
+		ProcessingEvents.ToonStatement event = new ProcessingEvents.ToonStatement();
+		event.begin();
+		List<Instr> lines = translateCached(stmt);
+		String label = Instr.labelName(stmt);
+		if (label.length() > 0 && lines.size() > 0 && !lines.get(0).label().equals(label)) {
+			lines = new ArrayList<>(lines);
+			Instr first = lines.get(0);
+			if (first.label().length() > 0) {
+				lines.add(0, Instr.label(label, "", "", stmt)); // First line is a generated label
+			}
+			else {
+				lines.set(0, first.withLabel(label));
+			}
+		}
+		event.finish(stmt, lines);
+		return lines;
+	}
+	
+	/**
+	 * Translates the statement, reusing the translation of an earlier statement with the same text
+	 * (e.g. a line of a macro body that is expanded many times). Only the comment and the source
+	 * statement of the lines are taken from the new statement. Statements that change the translator
+	 * state (see changesState()) and empty statements are always translated. A translation is only kept if all its lines
+	 * come from the statement text alone (see isReusable()).
+	 * @param stmt
+	 * @return
+	 * @throws Exception
+	 */
+	private List<Instr> translateCached(Stmt stmt) throws Exception {
+		if (changesState(stmt) || stmt.getText().length() == 0) return translateStmt(stmt);
+		String key = stmt.getText();
+		cacheLookups++;
+		List<Instr> cached = translations.get(key);
+		if (cached != null) {
+			cacheHits++;
+			String comment = commentOf(stmt);
+			List<Instr> lines = new ArrayList<>(cached.size());
+			for (Instr i: cached) {
+				lines.add(new Instr(i.type(), "", i.opcode(), i.operands(), i.trailer(), i.text() == null ? comment : i.comment(), i.text(), stmt));
+			}
+			return lines;
+		}
+		List<Instr> lines = translateStmt(stmt);
+		if (isReusable(lines, stmt)) {
+			if (translations.size() >= CACHE_LIMIT) translations.clear();
+			translations.put(key, List.copyOf(lines));
+		}
+		return lines;
+	}
+	
+	/**
+	 * Returns TRUE if the translated lines depend only on the text of the statement: every line is
+	 * from the statement itself (not a nested one), defines no label, and is either generated with
+	 * the statement comment or is text that does not contain the statement (as pass-through lines do).
+	 */
+	private boolean isReusable(List<Instr> lines, Stmt stmt) {
+		String comment = commentOf(stmt);
+		for (Instr i: lines) {
+			if (i.source() != stmt || i.label().length() > 0) return false;
+			if (i.text() == null ? !i.comment().equals(comment) : i.comment().length() > 0 || i.text().contains(stmt.getText())) return false;
+		}
+		return true;
+	}
+	
+	private List<Instr> translateStmt(Stmt stmt) throws Exception {
 		
 		//TODO: Make a custom splitter to better handle operators adjacent to operands
 		// acc66+=r0 macrr r1
@@ -443,7 +470,7 @@ public class Toon {
 		
 		//TODO: Handle multiline block comments (see macro processor)
 		
-		String[] tokenList = Util.split(stmt.getText(), "\\p{Space}+"); // Tokenize on white space including tabs
+		String[] tokenList = Util.splitWhitespace(stmt.getText()); // Tokenize on white space including tabs
 		int tokenCnt = tokenList.length;
 		
 		// TOON statements can be written without whitespace around the assignment operator 'a= b'.
@@ -472,7 +499,7 @@ public class Toon {
 			}
 			else if (token.contains("=")) {
 				// 'a=b'
-				String[] parts = Util.split(token, "=");
+				String[] parts = Util.splitLiteral(token, "=");
 				if (parts.length != 2) throw new SyntaxException("Invalid assignment syntax.", stmt);
 				List<String> list = new ArrayList<>();
 				list.add(parts[0]);
@@ -490,11 +517,30 @@ public class Toon {
 		// Keep track of assembler .rn statements that give symbolic names to registers
 		if (tokenCnt >= 3 && tokenList[0].equalsIgnoreCase(".rn")) {
 			// Syntax: .rn name rX
-			rnMap.put(tokenList[1].toUpperCase(), tokenList[2].toUpperCase());
-			return stmt.getFullText(); // Nothing else to do with this statement, leave it unmodified
+			String reg = tokenList[2].toUpperCase();
+			if (!reg.equals(rnMap.put(tokenList[1].toUpperCase(), reg))) {
+				operands.clear(); // New or changed name, Operands classified with the old names are stale
+				translations.clear();
+			}
+			return List.of(Instr.passThrough(stmt)); // Nothing else to do with this statement, leave it unmodified
+		}
+		
+		// Keep track of assembler .equ statements so their symbols can be used in constant loads
+		if (tokenCnt >= 3 && tokenList[0].equalsIgnoreCase(".equ")) {
+			// Syntax: .equ symbolic-name expression
+			String symbol = tokenList[1].toUpperCase();
+			String exprStr = allTokensFrom(tokenList, 2).toUpperCase();
+			translations.clear(); // Constant loads with the symbol are stale
+			try {
+				equMap.put(symbol, new Expression(exprStr, exprConfig).withValues(equMap).evaluate().getValue());
+			}
+			catch (Throwable t) {
+				equMap.put(symbol, exprStr); // Not something we can evaluate, leave it to the assembler
+			}
+			return List.of(Instr.passThrough(stmt));
 		}
 		
-		if (tokenCnt < 1) return stmt.getFullText(); // All statements have > 1 tokens, return anything else unmodified
+		if (tokenCnt < 1) return List.of(Instr.passThrough(stmt)); // All statements have > 1 tokens, return anything else unmodified
 		
 		// IF conditional branch //TODO: This precludes a symbol named 'if', e.g. 'if = r0'.d
 		// Expected syntax:
@@ -552,18 +598,18 @@ public class Toon {
 				ifStmtStack.add(ifRecord);
 				
 				// Generate conditional branch to ELSE target (which will be same as ENDIF target if no ELSE is supplied)
-				String rebuild = rebuildStatement(cond + SEP1 + tokenList[1] + "," + elseLabel, stmt, null, 0);
+				List<Instr> lines = new ArrayList<>();
+				lines.add(op(stmt, null, 0, cond, tokenList[1], elseLabel));
 				
 				// If there is a statement after THEN, make recursive call to evaluate it and return it
 				// with the conditional branch (as a 2nd line).
 				if (tokenCnt > 5) {
 					// Recursive call to evaluate the statement after THEN and translate from TOON to ASM
 					String afterThen = String.join(" ",Arrays.copyOfRange(tokenList, 5, tokenList.length));
-					String asmText = toonToAsm(new Stmt(afterThen, stmt.getLineNum(), stmt.getFileName(), true));
-					rebuild = rebuild + "\n" + rebuildStatement(asmText, stmt, null, 0);
+					lines.addAll(translateNested(afterThen, stmt));
 				}
 				
-				return rebuild;
+				return lines;
 
 			}
 			
@@ -584,7 +630,7 @@ public class Toon {
 				cond = "jzc"; // Different opcode
 			} 
 			
-			Operand target = new Operand(tokenList[1]);
+			Operand target = operand(tokenList[1]);
 			if (!target.isCR()) throw new SyntaxException("Invalid IF statement syntax, operand '"+tokenList[1]+"' must be a CR.", stmt);
 			
 			// Skip optional 'goto' token
@@ -593,7 +639,7 @@ public class Toon {
 			}
 			
 			// Generate FXCore assembler format (use original symbol, if any, for the register) for readability of the generated code
-			return rebuildStatement(cond + SEP1 + tokenList[1] + "," + tokenList[labelIndex], stmt, tokenList, labelIndex+1);
+			return List.of(op(stmt, tokenList, labelIndex+1, cond, tokenList[1], tokenList[labelIndex]));
 		}
 		
 		// THEN clause of an IF/THEN/ELSE. This is a noop, it has no function. We do allow a statement after the THEN, e.g.
@@ -613,12 +659,11 @@ public class Toon {
 			if (tokenCnt > 1) {
 				// Recursive call to evaluate the statement after THEN and translate from TOON to ASM
 				String afterThen = String.join(" ",Arrays.copyOfRange(tokenList, 1, tokenList.length));
-				String asmText = toonToAsm(new Stmt(afterThen, stmt.getLineNum(), stmt.getFileName(), true));
-				return rebuildStatement(asmText, stmt, null, 0);
+				return translateNested(afterThen, stmt);
 			}
 			
 			// Generate no code for a simple THEN other than any comment that might follow
-			return rebuildStatement("", stmt, null, 0);
+			return List.of(new Instr(Instr.Type.TEXT, "", "", List.of(), "", commentOf(stmt), null, stmt));
 		}
 		
 		if (tokenList[0].equalsIgnoreCase("else")) { // IF/ELSE/ENDIF https://github.com/cabintech/FXCoreMP/issues/12
@@ -631,17 +676,18 @@ public class Toon {
 			ifRecord.elseTaken().set(true); // Note the ELSE label has been generated
 			
 			// Generate 2 lines: a branch around the ELSE clause, and then the ELSE label for subsequent code.
-			String rebuild = rebuildStatement("jmp "+ifRecord.endLabel()+"\n"+ifRecord.elseLabel() + ":" + SEP1 , stmt, null, 0);
+			List<Instr> lines = new ArrayList<>();
+			lines.add(Instr.op("jmp", List.of(ifRecord.endLabel()), "", "", stmt));
+			lines.add(Instr.label(ifRecord.elseLabel(), SEP1, commentOf(stmt), stmt));
 			
 			// If there is any non-comment text after the ELSE, evaluate with recursive call and add as the 3rd line of output
 			if (tokenCnt > 1) {
 				// Recursive call to evaluate the statement after THEN and translate from TOON to ASM
 				String afterElse = String.join(" ",Arrays.copyOfRange(tokenList, 1, tokenList.length));
-				String asmText = toonToAsm(new Stmt(afterElse, stmt.getLineNum(), stmt.getFileName(), true));
-				rebuild = rebuild + "\n" + rebuildStatement(asmText, stmt, null, 0);
+				lines.addAll(translateNested(afterElse, stmt));
 			}
 			
-			return rebuild;
+			return lines;
 		}
 		
 		if (tokenList[0].equalsIgnoreCase("endif")) { // IF/ELSE/ENDIF https://github.com/cabintech/FXCoreMP/issues/12
@@ -651,76 +697,88 @@ public class Toon {
 				throw new SyntaxException("Invalid ENDIF statement, there is no enclosing IF statement.", stmt);
 			}
 			
-			String s = "";
+			List<Instr> lines = new ArrayList<>();
 			IfStmtRecord ifRecord = ifStmtStack.removeLast(); // Get (and remove) this IF statement from the stack
 			if (!ifRecord.isElseTaken()) {
 				// No ELSE has been generated, build it now. Must be on a line by itself, assembler does not understand "label1: label2:".
-				s = ifRecord.elseLabel()+":\n";
+				lines.add(Instr.label(ifRecord.elseLabel(), "", "", stmt));
 			}
 			ifRecord.elseTaken().set(true); // Note the ELSE label has been generated
-			return rebuildStatement(s + ifRecord.endLabel() + ":" + SEP1 , stmt, tokenList, 1);
+			lines.add(Instr.label(ifRecord.endLabel(), SEP1 + trailerOf(tokenList, 1), commentOf(stmt), stmt));
+			return lines;
 		}
 		
 		// Unconditional branch
 		if ((tokenCnt > 1) &&  (tokenList[0].toUpperCase().equals("JMP") || tokenList[0].toUpperCase().equals("GOTO"))) {
-			return rebuildStatement("jmp" + SEP1 + tokenList[1], stmt, tokenList, 2);
+			return List.of(op(stmt, tokenList, 2, "jmp", tokenList[1]));
 		}
 		
 		// Assignment style TOON statements 'x = ..."
 		if ((tokenCnt > 2) && (tokenList[1].equals("=") || tokenList[1].equals("+="))) {
 			if (tokenCnt < 3) throw new SyntaxException("Invalid TOON instruction format, missing right side of assignment.", stmt);
 			
-			Operand left = new Operand(tokenList[0]);
-			Operand right = new Operand(tokenList[2]);
+			Operand left = operand(tokenList[0]);
+			Operand right = operand(tokenList[2]);
 			
 			// "+=" only supported for certain ACC64 assignments, it is for decoration only and not required
 			if (tokenList[1].equals("+=")) {
 				if (!left.isAcc64()) throw new SyntaxException("Summing operator '+=' is only valid for ACC64 assignments.", stmt);
 				if (!left.isPlain()) throw new SyntaxException("Indirect and modifications on ACC64 is not valid for summing operator '+=' assignments.", stmt);
-				if (!Ops2ArgAcc64Set.contains(tokenList[3].toLowerCase())) throw new SyntaxException("Summing operator is not valid for '"+tokenList[3]+"' instruction.", stmt);
+				if (tokenCnt < 4) throw new SyntaxException("Summing operator '+=' requires an ACC64 instruction.", stmt);
+				InstructionTable.Family f = InstructionTable.byToonFunc(tokenList[3]);
+				if (f == null || f.getTarget() != Target.ACC64_2) throw new SyntaxException("Summing operator is not valid for '"+tokenList[3]+"' instruction.", stmt);
 				tokenList[1] = "="; // Treat like a regular assignment
 			}
 			
 			// Acc64 assignments from 32 bit registers "acc64.u = r5"
 			if (left.isAcc64() && tokenCnt==3) {
 				if (!right.isCR()) throw new SyntaxException("Right side of ACC64 assignment must be a CR.", stmt);
-				char UL = left.isModLower() ? 'l' : (left.isModUpper() ? 'u' : '?');
-				if (UL=='?') throw new SyntaxException("ACC64 must have .U or .L (Upper/Lower) postfix.", stmt);
-				return rebuildStatement("ldacc64" + UL + SEP1 + right.getOpText(), stmt, tokenList, 3);
+				InstrDef def = InstructionTable.byAssignment(left, right);
+				if (def == null) throw new SyntaxException("ACC64 must have .U or .L (Upper/Lower) postfix.", stmt);
+				return List.of(op(stmt, tokenList, 3, def.opcode(), InstructionTable.assignmentOperands(def, left, right)));
 			}
 			// 32-bit register assignment from Acc64 "r5 = acc64.l"
 			if (right.isAcc64() && tokenCnt==3) {
 				if (!left.isCR()) throw new SyntaxException("Left side of ACC64 assignment must be a CR.", stmt);
-				String opCode = right.isModLower() ? "rdacc64l" : (right.isModUpper() ? "rdacc64u" : (right.isModSat() ? "sat64" : null));
-				if (opCode == null) throw new SyntaxException("ACC64 must have .U or .L (Upper/Lower) or .SAT (Saturated) postfix.", stmt);
-				return rebuildStatement(opCode + SEP1 + left.getOpText(), stmt, tokenList, 3);
+				InstrDef def = InstructionTable.byAssignment(left, right);
+				if (def == null) throw new SyntaxException("ACC64 must have .U or .L (Upper/Lower) or .SAT (Saturated) postfix.", stmt);
+				return List.of(op(stmt, tokenList, 3, def.opcode(), InstructionTable.assignmentOperands(def, left, right)));
 			}
 			
 			
+			// Look up any TOON function, which will be the 3rd token for 1 arg functions and the 4th token
+			// for 2 arg functions.
+			InstructionTable.Family family = InstructionTable.byToonFunc(tokenList[2]);
+			if (family != null && family.getTarget() != Target.ACC32_1) family = null;
+			if (family == null && tokenCnt >= 4) {
+				family = InstructionTable.byToonFunc(tokenList[3]);
+				if (family != null && family.getTarget() != Target.ACC32_2 && family.getTarget() != Target.ACC64_2) family = null;
+			}
+			
 			// ACC32 operations (implicit assignment)
 			
 			// 1 arg functions "acc32 = <func> <cr>"
-			if ((tokenCnt >= 3) && Ops1ArgAcc32Set.contains(tokenList[2].toLowerCase())) {
+			if (family != null && family.getTarget() == Target.ACC32_1) {
 				if (tokenCnt < 4) throw new SyntaxException("Invalid assignment, missing expected operand after '"+tokenList[2]+"'.", stmt);
-				right = new Operand(tokenList[3]);
+				right = operand(tokenList[3]);
 				
 				if (!left.isAcc32() && !left.isAcc32R15()) throw new SyntaxException("Target of assignment for '"+tokenList[2]+"' function must be ACC32.", stmt);
 				
 				// Special case "ACC32,R15 = CHORUS depth, lfo, +/-/sin/cos, (const-addr)
 				//   depth can be CR, MR, or const and will be loaded in R15.U. If depth is R15, it is used as-is in the CHR
-				if (tokenList[2].toLowerCase().equals("chorus")) {
+				if (family.getName().equals("chorus")) {
 					if (tokenCnt < 4) {
 						throw new SyntaxException("CHORUS statement is missing arguments.");
 					}
 					// Comma separated tokens may also have blanks between them, so gather up all the remaining tokens, remove blanks, and split only on commas
 					String remainder = allTokensFrom(tokenList, 3).replace(" ", "");
-					String parts[] = Util.split(remainder, ",", 0);
+					String parts[] = Util.splitLiteral(remainder, ",", 0);
 					if (parts.length != 4)  throw new SyntaxException("CHORUS must have 4 arguments '... CHORUS depth,lfo,+/-/sin/cos,(addr)'.", stmt);
 					
-					Operand depth = new Operand(parts[0]);
-					Operand lfo = new Operand(parts[1]);
-					Operand sincos = new Operand(parts[2]);
-					Operand addr = new Operand(parts[3]);
+					Operand depth = operand(parts[0]);
+					Operand lfo = operand(parts[1]);
+					Operand sincos = operand(parts[2]);
+					Operand addr = operand(parts[3]);
 					
 					//--- Sanity checks
 
@@ -754,22 +812,23 @@ public class Toon {
 					
 					//--- Generate (variable number of) instructions. When we generate TOON statements a recursive call is done to
 					// resolve it into assembler (simplifies the code we need to generate). Note '\n' delimits multiple instructions.
-					String instrs = "";
+					List<Instr> lines = new ArrayList<>();
 					
 					// Generate code to get depth into upper half of R15
 					if (depth.isCR() || depth.isMR()) {
 						// Depth is a CR or MR register, TOON statement will generate correct opcode to assign to R15
 						if (!depth.getOpText().equals("R15")) { // No need to do anything if already there
-							instrs = toonToAsm(new Stmt("R15 = "+depth.getOpText() + SEP1 + "; Get depth into R15", stmt.getLineNum(), stmt.getFileName(), true)) + "\n";
+							lines.addAll(translate(new Stmt("R15 = "+depth.getOpText() + SEP1 + "; Get depth into R15", stmt.getLineNum(), stmt.getFileName(), true)));
 						}
 					}
 					else {
 						// Depth is a constant, generate code to get it into upper half of R15. 
-						instrs = toonToAsm(new Stmt("R15.U = "+depth.getOpText() + SEP1 + ";Load depth to R15 upper half", stmt.getLineNum(), stmt.getFileName(), true)) + "\n";
+						lines.addAll(translate(new Stmt("R15.U = "+depth.getOpText() + SEP1 + ";Load depth to R15 upper half", stmt.getLineNum(), stmt.getFileName(), true)));
 					}
 					
 					// Generate and return CHR instruction
-					return instrs + rebuildStatement("chr" + SEP1 + lfo.getOpText()+"|"+phase+"|"+sign+","+addr.getOpText(), stmt, null, 0);
+					lines.add(op(stmt, null, 0, "chr", lfo.getOpText()+"|"+phase+"|"+sign, addr.getOpText()));
+					return lines;
 					
 				} // end CHORUS
 				
@@ -780,33 +839,33 @@ public class Toon {
 				}
 				
 				// Special case, "ACC32 = INTERP (cr+const)" - right side is indirect sum of CR and a constant
-				if (tokenList[2].toLowerCase().equals("interp")) {
+				if (family.getName().equals("interp")) {
 					if (!right.isDMIndirect()) throw new SyntaxException("INTERP operand must be indirect '(CR)' or '(CR+constant)'. Expected parens not found.", stmt);
 					String is = right.getOpText();
-					String parts[] = Util.split(is, "\\+", 2);
+					String parts[] = Util.splitLiteral(is, "+", 2);
 					if (parts.length < 1)  throw new SyntaxException("INTERP operand must be of the form '(CR)' or '(CR+constant)'.", stmt);
-					Operand p1 = new Operand(parts[0]);
-					Operand p2 = new Operand("0"); // Assume constant is zero unless specified
+					Operand p1 = operand(parts[0]);
+					Operand p2 = operand("0"); // Assume constant is zero unless specified
 					if (parts.length == 2) { // Second part was specified
-						p2 = new Operand(parts[1]);
+						p2 = operand(parts[1]);
 					}
 					if (!p1.isCR()) throw new SyntaxException("INTERP operand must be of the form '(CR)' or '(CR+constant)'. CR not found.", stmt);
 					if (p2.isReg()) throw new SyntaxException("INTERP operand must be of the form '(CR)' or '(CR+constant)'. Constant not found.", stmt);
 					// Looks like a valid INTERP statement
-					return rebuildStatement("interp" + SEP1 + p1.getOpText() + "," + p2.getOpText(), stmt, tokenList, 4);
+					return List.of(op(stmt, tokenList, 4, "interp", p1.getOpText(), p2.getOpText()));
 				} // end INTERP
 				
 				if (!left.isPlain() || !right.isPlain()) throw new SyntaxException("This assignment operation does not support indirection or modifiers.", stmt);
 				if (!right.isCR()) throw new SyntaxException("Source for assignment operation must be a CR.", stmt);
-				return rebuildStatement(tokenList[2] + SEP1 + right.getOpText(), stmt, tokenList, 4);
+				return List.of(op(stmt, tokenList, 4, family.getMembers().get(0).opcode(), right.getOpText()));
 			}
 			
 			// 2 arg functions "acc32 = <cr> <func> <op2>"
-			if ((tokenCnt >= 4) && Ops2ArgAcc32Set.contains(tokenList[3].toLowerCase()) ) {
-				String func = tokenList[3].toLowerCase();
+			if (family != null && family.getTarget() == Target.ACC32_2) {
+				String func = family.getName();
 				if (tokenCnt < 5) throw new SyntaxException("Invalid assignment, missing expected operand after '"+func+"'.", stmt);
-				Operand op1 = new Operand(tokenList[2]);
-				Operand op2 = new Operand(tokenList[4]);
+				Operand op1 = operand(tokenList[2]);
+				Operand op2 = operand(tokenList[4]);
 				
 				if (!left.isAcc32() && !left.isAcc32R15()) throw new SyntaxException("Target of assignment for '"+func+"' function must be ACC32.", stmt);
 				if (!left.isPlain()) throw new SyntaxException("This assignment operation does not support indirection or modifiers on ACC32.", stmt);
@@ -820,7 +879,7 @@ public class Toon {
 				// acc32,r15	= acc32 allpass <cr-coeff>, (addr), (addr#) ; Generate APRA, APRB
 				// acc32,r15	= acc32 allpass <cr-coeff>, (<cr-addr-head>), (<cr-addr-tail>) ; Generate APRRA, APRRB
 				// acc32,r15	= acc32 allpass <cr-coeff>, <mreg>) ; Generate APMA, APMB
-				if (tokenList[3].toLowerCase().equals("allpass")) {
+				if (func.equals("allpass")) {
 					if (left.isAcc32()) {
 						// Strict enforcement of TOON semantics, ALLPASS targets both ACC32 and R15
 						throw new SyntaxException("ALLPASS will target R15 as well as ACC32. Left side of assignment must be 'ACC32,R15'.", stmt);
@@ -828,12 +887,12 @@ public class Toon {
 					
 					// Comma separated tokens may also have blanks between them, so gather up all the remaining tokens, remove blanks, and split only on commas
 					String remainder = allTokensFrom(tokenList, 4).replace(" ", "");
-					String parts[] = Util.split(remainder, ",", 0);
+					String parts[] = Util.splitLiteral(remainder, ",", 0);
 					if (parts.length < 2 || parts.length > 4)  throw new SyntaxException("ALLPASS must have 2 or 3 arguments '... ALLPASS <coeff>,<head>,[<tail>]'.", stmt);
 					
-					Operand coeff = new Operand(parts[0]);
-					Operand head = new Operand(parts[1]);
-					Operand tail = parts.length > 2 ? new Operand(parts[2]) : new Operand(parts[1]); // If missing, same as HEAD
+					Operand coeff = operand(parts[0]);
+					Operand head = operand(parts[1]);
+					Operand tail = parts.length > 2 ? operand(parts[2]) : operand(parts[1]); // If missing, same as HEAD
 					
 					// If HEAD is an MR, then tail is optional and we generate the APMA, APMB instructions
 					if (head.isMR()) {
@@ -843,10 +902,9 @@ public class Toon {
 						if (!coeff.isCR()) {
 							throw new SyntaxException("ALLPASS with MR head, must have CR for coeff.", stmt);
 						}
-						//TODO: Hack to return 2 statements in one String
-						return 
-							rebuildStatement("apma" + SEP1 + coeff.getOpText() + "," + tail.getOpText(), stmt, null, 0) + "\n" +
-							rebuildStatement("apmb" + SEP1 + coeff.getOpText() + "," + head.getOpText(), stmt, null, 0);
+						return List.of(
+							op(stmt, null, 0, "apma", coeff.getOpText(), tail.getOpText()),
+							op(stmt, null, 0, "apmb", coeff.getOpText(), head.getOpText()));
 					}
 					
 					// If COEFF is a CR, then head and tail must be delay memory indirect CR or constant references 
@@ -859,10 +917,9 @@ public class Toon {
 						}
 						// Generate instruction variants
 						String opCode = head.isReg() ? "aprr" : "apr";
-						//TODO: Hack to return 2 statements in one String
-						return 
-							rebuildStatement(opCode+"a" + SEP1 + coeff.getOpText() + "," + tail.getOpText(), stmt, null, 0) + "\n" +
-							rebuildStatement(opCode+"b" + SEP1 + coeff.getOpText() + "," + head.getOpText(), stmt, null, 0);
+						return List.of(
+							op(stmt, null, 0, opCode+"a", coeff.getOpText(), tail.getOpText()),
+							op(stmt, null, 0, opCode+"b", coeff.getOpText(), head.getOpText()));
 					}
 					
 					// Only other case is constant coeff with constant indirect memory addressing
@@ -875,9 +932,9 @@ public class Toon {
 						}
 						
 					
-						return 
-							rebuildStatement("apa" + SEP1 + coeff.getOpText() + "," + tail.getOpText(), stmt, null, 0) + "\n" +
-							rebuildStatement("apb" + SEP1 + coeff.getOpText() + "," + head.getOpText(), stmt, null, 0);
+						return List.of(
+							op(stmt, null, 0, "apa", coeff.getOpText(), tail.getOpText()),
+							op(stmt, null, 0, "apb", coeff.getOpText(), head.getOpText()));
 					}
 					
 					// If none of the above, the args for ALLPASS are invalid.
@@ -895,19 +952,19 @@ public class Toon {
 				// Some instructions have immediate and register forms for <op2> but we allow use of
 				// generic instruction names, e.g. "r0 = r1 and 0x1" is really the "andi" instruction, not "and".
 				// So we try to infer the correct instruction from the type of <op>.
-				func = inferFunc(func, op1, op2, stmt);
+				InstrDef def = resolveFunc(family, op1, op2, stmt);
 				
-				if (!op1.isPlain()) throw new SyntaxException("Left operand for function '"+func+"' does not support indirectin or modifiers.", stmt);
+				if (!op1.isPlain()) throw new SyntaxException("Left operand for function '"+def.opcode()+"' does not support indirectin or modifiers.", stmt);
 				
-				return rebuildStatement(func + SEP1 + op1.getOpText() + "," + op2.getOpText(), stmt, tokenList, 5);
+				return List.of(op(stmt, tokenList, 5, def.opcode(), op1.getOpText(), op2.getOpText()));
 			}
 			
 			// 2 arg functions "acc64 = <cr> <func> <op2>"
-			if ((tokenCnt >= 4) && Ops2ArgAcc64Set.contains(tokenList[3].toLowerCase()) ) {
-				String func = tokenList[3].toLowerCase();
+			if (family != null && family.getTarget() == Target.ACC64_2) {
+				String func = family.getName();
 				if (tokenCnt < 5) throw new SyntaxException("Invalid assignment, missing expected operand after '"+func+"'.", stmt);
-				Operand op1 = new Operand(tokenList[2]);
-				Operand op2 = new Operand(tokenList[4]);
+				Operand op1 = operand(tokenList[2]);
+				Operand op2 = operand(tokenList[4]);
 				
 				if (!left.isAcc64()) throw new SyntaxException("Target of assignment for '"+func+"' function must be ACC64.", stmt);
 				if (!left.isPlain()) throw new SyntaxException("This assignment operation does not support indirection or modifiers on ACC64.", stmt);
@@ -915,101 +972,59 @@ public class Toon {
 				// Some instructions have immediate and register forms for <op2> but we allow use of
 				// generic instruction names, e.g. "r0 = r1 and 0x1" is really the "andi" instruction, not "and".
 				// So we try to infer the correct instruction from the type of <op>.
-				func = inferFunc(func, op1, op2, stmt);
+				InstrDef def = resolveFunc(family, op1, op2, stmt);
+				func = def.opcode();
 				
 				// Left side of func must be a CR for most 64-bit two operand instructions
-				if (func.equals("macid") || func.equals("machid")) {
+				if (def.operand(0) == Kind.IMM) {
 					if (op1.isReg()) throw new SyntaxException("Left operand for function '"+func+"' cannot be a register, immediate constant value is required.", stmt);
 				}
 				else {
 					if (!op1.isCR()) throw new SyntaxException("Left operand for function '"+func+"' must be a CR.", stmt);
 				}
 				// Some are indirect memory addressing
-				if (func.equals("macrd") || func.equals("macid") || func.equals("machrd") || func.equals("machid")) {
+				if (def.operand(1) == Kind.ADDR) {
 					if (!op2.isDMIndirect()) throw new SyntaxException("Right operand for function '"+func+"' is delay memory indirect constant, must be enclosed in parens.", stmt);
 				}
 				
-				return rebuildStatement(func + SEP1 + op1.getOpText() + "," + op2.getOpText(), stmt, tokenList, 5);
+				return List.of(op(stmt, tokenList, 5, def.opcode(), op1.getOpText(), op2.getOpText()));
+			}
+			
+			// Special case of assigning zero to ACC32 "acc32 = 0"
+			if (left.isAcc32() && right.getText().equals("0")) {
+				// Generate "xor acc32,acc32"
+				return List.of(op(stmt, tokenList, 3, "xor", left.getOpText(), left.getOpText()));
+			}
+			
+			// All other assignments are found by the shape of the left and right sides, e.g. "r0 = [r5]" is cpy_cmx
+			InstrDef def = InstructionTable.byAssignment(left, right);
+			if (def != null) {
+				return List.of(op(stmt, tokenList, 3, def.opcode(), InstructionTable.assignmentOperands(def, left, right)));
+			}
+			
+			// Load of a 32 bit constant "cr = <const>"
+			if (left.isCR() && left.isPlain() && !right.isReg() && !right.isIndirect()) {
+				return loadConstant(left, allTokensFrom(tokenList, 2), stmt);
 			}
 			
 			// R to R assignments
 			if (left.isReg() && right.isReg()) {
-				
-				String opCode = null;
-				
-				// Both sides are unmodified and non-indirect, e.g. "cpy_xx" instructions
-				if (!left.isModified() && !left.isIndirect() && !right.isModified() && !right.isIndirect()) {
-					char codeLeft = left.isCR() ? 'c' : (left.isMR() ? 'm' : 's'); // Must be CR, MR, or SFR
-					char codeRight = right.isCR() ? 'c' : (right.isMR() ? 'm' : 's'); // Must be CR, MR, or SFR
-					opCode = "cpy_"+codeLeft+codeRight;
-				}
-				
-				// Right side is MR indirect, e.g. cpy_cmx r0=[r5]
-				if (!left.isModified() && !left.isIndirect() && !right.isModified() && right.isMRIndirect()) {
-					if (!left.isCR() || !right.isCR()) throw new SyntaxException("Left and right sides of indirect MR assignment must be a CR.", stmt);
-					opCode = "cpy_cmx";
-				}
-				
-				// Right side is indirect to delay memory r0=(r5)
-				if (!left.isModified() && !left.isIndirect() && !right.isModified() && right.isDMIndirect()) {
-					if (!left.isCR() || !right.isCR()) throw new SyntaxException("Left and right sides of indirect delay memory assignment must be a CR.", stmt);
-					opCode = "rddelx";
-				}
-				
-				// Right side is absolute indirect to delay memory r0=#(r5)
-				if (!left.isModified() && !left.isIndirect() && !right.isModified() && right.isAbsDMIndirect()) {
-					if (!left.isCR() || !right.isCR()) throw new SyntaxException("Left and right sides of absolute indirect delay memory assignment must be a CR.", stmt);
-					opCode = "rddirx";
-				}
-				
-				// Left side is indirect to delay memory (r0)=r5
-				if (!left.isModified() && left.isDMIndirect() && !right.isModified() && !right.isIndirect()) {
-					if (!left.isCR() || !right.isCR()) throw new SyntaxException("Left and right sides of indirect delay memory assignment must be a CR.", stmt);
-					opCode = "wrdelx";
+				if (!left.isModified() && !right.isModified() && (left.isIndirect() != right.isIndirect())) {
+					// Indirect forms are valid only between CRs
+					Operand indirect = left.isIndirect() ? left : right;
+					String what = indirect.isMRIndirect() ? "indirect MR" : (indirect.isDMIndirect() ? "indirect delay memory" : "absolute indirect delay memory");
+					throw new SyntaxException("Left and right sides of "+what+" assignment must be a CR.", stmt);
 				}
-				
-				// Left side is absolute indirect to delay memory #(r0)=r5
-				if (!left.isModified() && left.isAbsDMIndirect() && !right.isModified() && !right.isIndirect()) {
-					if (!left.isCR() || !right.isCR()) throw new SyntaxException("Left and right sides of absolute indirect delay memory assignment must be a CR.", stmt);
-					opCode = "wrdirx";
-				}
-				
-				if (opCode == null) throw new SyntaxException("Invalid register-to-register assigment statement.", stmt);
-				
-				return rebuildStatement(opCode + SEP1 + left.getOpText() + "," + right.getOpText(), stmt, tokenList, 3);
+				throw new SyntaxException("Invalid register-to-register assigment statement.", stmt);
 			}
 			
 			// Assignment to CR from non-register source
 			if (left.isCR()) {
-				String opCode = null;
-				
-				// 16-bit load of constant to upper part of CR "r5.u = 3829"
-				if (left.isModUpper() && !left.isIndirect() && !right.isModified() && !right.isIndirect()) {
-					opCode = "wrdld";
-				}
-				// Load from fixed delay memory address "r5 = (3920)"
-				if (!left.isModified() && !left.isIndirect() && !right.isModified() && right.isDMIndirect()) {
-					opCode = "rddel";
-				}
-				// Special case of assigning zero to ACC32 "acc32 = 0"
-				if (right.getText().equals("0")) {
-					if (!left.isAcc32()) {
-						throw new SyntaxException("Assigment of zero is supported only for ACC32.", stmt);
-					}
-					// Generate "xor acc32,acc32"
-					opCode = "xor";
-					right = left; // Both are ACC32
-				}
-				if (opCode == null) throw new SyntaxException("Invalid NonRegister-to-CR assigment statement.", stmt);
-				return rebuildStatement(opCode + SEP1 + left.getOpText() + "," + right.getOpText(), stmt, tokenList, 3);
+				throw new SyntaxException("Invalid NonRegister-to-CR assigment statement.", stmt);
 			}
 			
 			// Assignment from CR to non-register source
 			if (right.isCR()) {
-				// Write fixed delay memory address from CR "(3920) = r5"
-				if (!left.isModified() && left.isDMIndirect() && !right.isModified() && !right.isIndirect()) {
-					return rebuildStatement("wrdel" + SEP1 + left.getOpText() + "," + right.getOpText(), stmt, tokenList, 3);
-				}
 				throw new SyntaxException("Invalid CR-to-NonRegister assignment statement.", stmt);
 			}
 			
@@ -1021,10 +1036,173 @@ public class Toon {
 			
 		
 		// If no match above, it is not TOON format so pass it through
-		return stmt.getFullText();
+		return List.of(Instr.passThrough(stmt));
 			
 	}
 
+	/**
+	 * Generates the shortest sequence that loads a 32 bit constant into a CR. The value is evaluated
+	 * now, it can use numbers and .equ symbols. A value with a decimal point is a fraction (S.31),
+	 * otherwise it is the 32 bit value (signed or unsigned).
+	 * 
+	 * WRDLD writes the upper half of a CR and clears the lower half, and only ACC32 can have the
+	 * lower half set with ORI:
+	 * 
+	 *   0 in ACC32			xor acc32,acc32
+	 *   0xHHHH0000			wrdld cr,0xHHHH (any CR)
+	 *   0xHHHHLLLL in ACC32	wrdld acc32,0xHHHH / ori acc32,0xLLLL
+	 *   
+	 * Any other CR with lower bits is loaded with "cpy_cm" from a constant pool MR, and a ".mreg"
+	 * gives the MR the value when the program is loaded. The MR is a placeholder until the whole
+	 * program has been translated (see ConstantPool.assign()). The optimizer moves the two
+	 * instruction ACC32 loads to pool MRs when there are MRs free.
+	 * @param left
+	 * @param expr
+	 * @param stmt
+	 * @return
+	 * @throws SyntaxException
+	 */
+	private List<Instr> loadConstant(Operand left, String expr, Stmt stmt) throws SyntaxException {
+		int value = constant32(expr, stmt);
+		String reg = left.getOpText();
+		int upper = value >>> 16;
+		int lower = value & 0xFFFF;
+		List<Instr> lines = new ArrayList<>();
+		if (value == 0 && left.isAcc32()) {
+			lines.add(op(stmt, null, 0, "xor", reg, reg));
+		}
+		else if (lower == 0) {
+			lines.add(op(stmt, null, 0, "wrdld", reg, String.format("0x%04X", upper)));
+		}
+		else if (left.isAcc32()) {
+			lines.add(op(stmt, null, 0, "wrdld", reg, String.format("0x%04X", upper)));
+			lines.add(op(stmt, null, 0, "ori", reg, String.format("0x%04X", lower)));
+		}
+		else {
+			String pool = POOL_PREFIX + String.format("%08X", value);
+			String hex = String.format("0x%08X", value);
+			lines.add(op(stmt, null, 0, "cpy_cm", reg, pool));
+			lines.add(new Instr(Instr.Type.DIRECTIVE, "", ".mreg", List.of(pool, hex), "", "", ".mreg"+SEP1+pool+"\t"+hex, stmt));
+			constantPool = true;
+		}
+		return lines;
+	}
+	
+	/**
+	 * Returns the 32 bit value of a constant expression.
+	 */
+	private int constant32(String expr, Stmt stmt) throws SyntaxException {
+		BigDecimal value;
+		try {
+			value = new Expression(expr.toUpperCase(), exprConfig).withValues(equMap).evaluate().getNumberValue();
+		}
+		catch (Throwable t) {
+			throw new SyntaxException("Invalid constant '"+expr+"', a CR can only be assigned a number or an expression of numbers and .equ symbols.", stmt);
+		}
+		if (value.stripTrailingZeros().scale() > 0 || expr.indexOf('.') >= 0) {
+			double d = value.doubleValue();
+			if (d < -1.0 || d >= 1.0) throw new SyntaxException("Fractional constant '"+expr+"' must be -1.0 to less than 1.0.", stmt);
+			return (int)Math.min(Integer.MAX_VALUE, Math.round(d * 2147483648.0));
+		}
+		if (value.compareTo(BigDecimal.valueOf(Integer.MIN_VALUE)) < 0 || value.compareTo(BigDecimal.valueOf(0xFFFFFFFFL)) > 0) {
+			throw new SyntaxException("Constant '"+expr+"' does not fit in 32 bits.", stmt);
+		}
+		return (int)value.longValue();
+	}
+	
+	/**
+	 * Returns TRUE if a constant was loaded from a constant pool MR, the placeholder MR names in the
+	 * translated program must be assigned by ConstantPool.assign().
+	 * @return
+	 */
+	public boolean usesConstantPool() {
+		return constantPool;
+	}
+	
+	/**
+	 * Returns the (shared) Operand for the given text, classified with the current ".rn" names.
+	 * @param text
+	 * @return
+	 */
+	private Operand operand(String text) {
+		Operand op = operands.get(text);
+		if (op == null) {
+			if (operands.size() >= CACHE_LIMIT) operands.clear();
+			op = new Operand(text, rnMap);
+			operands.put(text, op);
+		}
+		return op;
+	}
+	
+	/**
+	 * Returns a new translator that starts with the ".rn" names, ".equ" symbols, open IF statements
+	 * and IF label numbers of this one, so it translates the statements that follow exactly as this
+	 * translator would (see ParallelTranslator).
+	 * @return
+	 */
+	public Toon copy() {
+		Toon t = new Toon(annotate);
+		t.rnMap.putAll(rnMap);
+		t.equMap.putAll(equMap);
+		for (IfStmtRecord r: ifStmtStack) {
+			t.ifStmtStack.add(new IfStmtRecord(r.startedAt(), r.condition(), r.elseLabel(), r.endLabel(), new AtomicBoolean(r.isElseTaken())));
+		}
+		t.ifCounter = ifCounter;
+		return t;
+	}
+	
+	/**
+	 * Adds what a copy of this translator found (a constant pool load, cache counts) to this one.
+	 * @param copy
+	 */
+	public void merge(Toon copy) {
+		constantPool |= copy.constantPool;
+		cacheLookups += copy.cacheLookups;
+		cacheHits += copy.cacheHits;
+	}
+	
+	/**
+	 * Returns the number of statements looked up in the translation cache.
+	 * @return
+	 */
+	public int getCacheLookups() {
+		return cacheLookups;
+	}
+	
+	/**
+	 * Returns the number of statements translated from the translation cache.
+	 * @return
+	 */
+	public int getCacheHits() {
+		return cacheHits;
+	}
+	
+	/**
+	 * Returns TRUE if translating the statement can change the state that later statements are
+	 * translated with (".rn", ".equ", and IF/THEN/ELSE/ENDIF). Statements that return FALSE can be
+	 * translated in any order. This looks at the first two tokens, including the parts of a token
+	 * with '=' since translateStmt() splits those.
+	 * @param stmt
+	 * @return
+	 */
+	public static boolean changesState(Stmt stmt) {
+		String[] tokens = Util.splitWhitespace(stmt.getText());
+		for (int i=0; i<Math.min(2, tokens.length); i++) {
+			for (String part: tokens[i].split("=")) {
+				if (StateKeywords.contains(part.toLowerCase())) return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the innermost IF statement that has no ENDIF yet, or null if there is none.
+	 * @return
+	 */
+	public IfStmtRecord getOpenIf() {
+		return ifStmtStack.peekLast();
+	}
+
 	/**
 	 * Returns the given source statement 's' as-is, or if it is recognized as an FXCore assembler
 	 * statement, an equivalent TOON statement is returned. This assumes valid assembler code, it is
@@ -1044,160 +1222,32 @@ public class Toon {
 		// Now we have
 		// <opcode> <op1>[,<op2>]
 		
-		String[] tokenList = Util.split(stmt.getText(), "\\p{Space}+", 2); // Extract opcode which must be whitespace delimited + remainder
+		String[] tokenList = Util.splitWhitespace(stmt.getText(), 2); // Extract opcode which must be whitespace delimited + remainder
 		int tokenCnt = tokenList.length;
 		if (tokenCnt < 2) return s; // Not anything we recognize, pass it through with no changes
 		
 		// Extract parts
 		String opcode = tokenList[0].trim().toLowerCase();
-		String opList[] = Util.split(tokenList[1].trim(), ",", 2); // Separate operands
+		String opList[] = Util.splitLiteral(tokenList[1].trim(), ",", 2); // Separate operands
 		String op1 = opList.length > 0 ? opList[0].trim() : "";
 		String op2 = opList.length > 1 ? opList[1].trim() : "";
 		
-		// Copy assignments (no operator)
-		if (ToonableCopySet.contains(opcode)) {
-			// Special cases for most that are not CPY_XX
-			switch (opcode) {
-			case "cpy_cmx":
-				op2 = "[" + op2 + "]"; // Right operand is special syntax for indirect MR access
-				break;
-			case "wrdld": 
-				op1 = op1 + ".U"; // Left operand gets .U postfix
-				break;
-			case "rdacc64u":
-				op2 = "ACC64.U";
-				break;
-			case "rdacc64l":
-				op2 = "ACC64.L";
-				break;
-			case "ldacc64u":
-				op2 = op1;
-				op1 = "ACC64.U";
-				break;
-			case "ldacc64l":
-				op2 = op1;
-				op1 = "ACC64.L";
-				break;
-			case "sat64":
-				op2 = "ACC64.SAT";
-				break;
-			case "rddel": // Right operand delay-memory indirect
-			case "rddelx":
-			case "rddirx":
-				op2 = "(" + op2 + ")";
-				if (opcode.equals("rddirx")) op2 = "#"+op2; // Absolute indirect
-				break;
-			case "wrdel": // Left operand delay-memory indirect
-			case "wrdelx":
-			case "wrdirx":
-				op1 = "(" + op1 + ")";
-				if (opcode.equals("wrdirx")) op1 = "#"+op1; // Absolute indirect
-				break;
-			case "interp": // CR+const indirect
-				if (op2.equals("0")) {
-					op2 = "INTERP (" + op1 + ")"; // Generate short-hand with no constant specified
-				}
-				else {
-					op2 = "INTERP (" + op1 + "+" + op2 + ")";
-				}
-				op1 = "ACC32"; // Left side is fixed
-			}
-			
-			return rebuildStatement(op1 + SEP3 + "= " + op2, stmt, null, 0);
-		}
-		
-		// Operational assignments with one operand
-		if (ToonableUnarySet.contains(opcode)) {
-			return rebuildStatement("ACC32" + SEP3 + "= "+ opcode + " " + op1, stmt, null, 0);
-		}
-		
-		// Operational assignments with two operands
-		if (ToonableOpsSet.contains(opcode)) {
-			String target = "ACC32"; // Most common case
-			String equals = "=";
-			
-			// Use generics where TOON supports them
-			switch (opcode) {
-			case "andi": opcode = "and"; break;
-			case "ori" : opcode = "or"; break;
-			case "xori": opcode = "xor"; break;
-			case "slr" : opcode = "sl"; break;
-			case "slsr": opcode = "sls"; break;
-			case "srr" : opcode = "sr"; break;
-			case "srar": opcode = "sra"; break;
-			case "addi": opcode = "add"; break;
-			case "addsi": opcode = "adds"; break;
-			case "multrr": opcode = "mult"; break;
-			case "multri": opcode = "mult"; break;
-			case "macrr": opcode = "macr"; break;
-			case "macri": opcode = "macr"; break;
-			case "macrd": opcode = "macd"; break;
-			case "macid": opcode = "macd"; break;
-			case "machrr": opcode = "machr"; break;
-			case "machri": opcode = "machr"; break;
-			case "machrd": opcode = "machd"; break;
-			case "machid": opcode = "machd"; break;
-			}
-			
-			// Targets 64 bit accumulator
-			switch (opcode) {
-			case "macrr":
-			case "macri":
-			case "macr":
-			case "macrd":
-			case "macid":
-			case "macd":
-			case "machrr":
-			case "machri":
-			case "machr":
-			case "machrd":
-			case "machid":
-			case "machd":
-				target = "ACC64";
-				equals = "+=";
-			}
-			
-			// Indirect addressing
-			switch (opcode) {
-			case "macrd":
-			case "macid":
-			case "macd":
-			case "machrd":
-			case "machid":
-			case "machd":
-				op2 = "(" + op2 + ")";
-			}
-			
-			return rebuildStatement(target + SEP3 + equals + " " + op1 + " " + opcode + " " + op2, stmt, null, 0);
-		}
+		InstrDef def = InstructionTable.byOpcode(opcode);
+		if (def == null || def.toonPattern() == null) return s; // Not an assembler statement we can translate
 		
-		if (ToonableBranchSet.contains(opcode)) {
-			
-			switch (opcode) {
-			case "jgez": opcode = ">=0"; break;  
-			case "jneg": opcode = "<0"; break;
-			case "jnz":  opcode = "!=0"; break;
-			case "jz":   opcode = "=0"; break;
-			case "jzc":  opcode = "!=ACC32.SIGN"; break;
-			}
-			
-			if (opcode.equals("jmp")) { // No condition
-				return rebuildStatement("GOTO "+op1, stmt, null, 0);
-			}
-			
-			return rebuildStatement("IF " + op1 + " " + opcode + " GOTO " + op2, stmt, null, 0);
+		// Short-hand for INTERP with no constant specified
+		if (opcode.equals("interp") && op2.equals("0")) {
+			return rebuildStatement("ACC32" + SEP3 + "= INTERP (" + op1 + ")", stmt, null, 0);
 		}
 		
-		// If no match above, it is not an assembler statement we recognize, so pass it through
-		return s;
-			
+		return rebuildStatement(InstructionTable.toToon(def, new String[] {op1, op2}, SEP3), stmt, null, 0);
 	}
 	
 	/**
-	 * Given an instruction f and the right-side operand of "accXX = <cr> <f> <op2>" determine the
-	 * correct instruction by inference from f and type of op2. e.g. if f="xor" and type of
-	 * op2 is an immediate value, return "xori". If op2 is not of correct type for the
-	 * instruction a SyntaxException is thrown, e.g. "acc32 = r0 andi r1".
+	 * Given the family of instructions named by a TOON function and the operands of "accXX = <op1> <f> <op2>"
+	 * returns the instruction that accepts those operand types. e.g. if f="xor" and op2 is an immediate value,
+	 * the "xori" instruction is returned. If the operands are not of a type accepted by any instruction in the
+	 * family a SyntaxException is thrown, e.g. "acc32 = r0 andi r1".
 	 * 
 	 * Note this can lead to programming errors, if the user intended to add R0 and R5, but
 	 * types:
@@ -1205,103 +1255,32 @@ public class Toon {
 	 * acc32 = r0 add 5
 	 * 
 	 * This would be an error with strict interpretation of "add" (the assembler would flag this) but
-	 * this function will substitute the "andi" instruction and the program will assemble without error.
+	 * this function will substitute the "addi" instruction and the program will assemble without error.
 	 * 
 	 * TODO: Add command line "--strictImmed" option to disable this type of inference.
 	 * 
-	 * (
-	 * Note this is also true of pure assignments, "r0 = 5" when intent was "r0 = r5". There is
-	 * no way in the TOON syntax for the user to explicitly specify an R-to-R assignment. But this
-	 * is true in high level languages as well, so maybe a moot point, e.g. in Java:
-	 * 
-	 * int v1 = 36;
-	 * ...
-	 * int othervar = 1; // Opps, meant to write "v1". No syntax error, compiler infers this is a const assignment.
-	 * )
-	 * 
-	 * @param f
+	 * @param family
+	 * @param op1
 	 * @param op2
+	 * @param context
 	 * @return
 	 * @throws SyntaxException
 	 */
-	private static String inferFunc(String f, Operand op1, Operand op2, Stmt context) throws SyntaxException {
+	private static InstrDef resolveFunc(InstructionTable.Family family, Operand op1, Operand op2, Stmt context) throws SyntaxException {
 		
-		f = f.toLowerCase();
+		InstrDef def = family.resolve(op1.isReg(), op2.isReg());
+		if (def != null) return def;
 		
-		// For some operations we allow a generic function to act on an immediate
-		// value or a register and we translate to the appropriate instruction.
-		if (!op2.isReg()) {
-			switch (f) {
-			case "add": 	f = "addi"; break;
-			case "adds": 	f = "addsi"; break;
-			case "or":		f = "ori"; break;
-			case "and":		f = "andi"; break;
-			case "xor":		f = "xori"; break;
-			case "mult":	f = "multri"; break; // Synthetic instruction for consistency
-			// 64 bit
-			case "macr":	f = "macri"; break; // Synthetic instruction for consistency
-			case "machr":	f = "machri"; break;
-			}
-			// If a register form was specifically given and we don't auto-convert (above) flag an error
-			switch (f) {
-			case "multrr":
-			case "slsr":
-			case "srr":
-			case "srar":
-			case "macrr":
-			case "machrr":
-				throw new SyntaxException("Right operand '"+op2.getOpText()+"' is not a core register as required by instruction '"+f+"'", context);
-			}
-		}
-		else {
-			// Infer
-			switch (f) {
-			case "mult": f = "multrr"; break;
-			case "sl": 	f = "slr"; break;
-			case "sls": f = "slsr"; break;
-			case "sr": 	f = "srr"; break;
-			case "sra": f = "srar"; break;
-			case "macd": f = "macrd"; break;
-			case "macr": f = "macrr"; break;
-			case "machd": f = "machrd"; break;
-			case "machr":	f = "machrr"; break;
-			}
-			// 2nd operand is a register. If an immediate form was specified, this is an error.
-			switch (f) {
-			case "addi":
-			case "addsi":
-			case "ori":
-			case "andi":
-			case "xori":
-			case "multri":
-			case "sl":
-			case "sls":
-			case "sr":
-			case "sra":
-			case "macri":
-			case "macid":
-				throw new SyntaxException("Right operand is a register, but instruction '"+f+"' requires immediate (constant) value.", context);
-			}
-		}
+		String f = family.getName();
 		
-		// Two instruction have reg/immediate value on the left side
-		if (f.equals("macid") || f.equals("machid")) {
-			// Explicit immediate form
+		// Some form accepts the right operand, so the left one is wrong
+		if (family.resolve(!op1.isReg(), op2.isReg()) != null) {
 			if (op1.isReg()) throw new SyntaxException("Instruction '"+f+"' requires immedidate (const) left operand, but '"+op1.getOpText()+"' is a register.", context);
+			throw new SyntaxException("Instruction '"+f+"' requires register left operand, but '"+op1.getOpText()+"' is not register.", context);
 		}
-		else if (f.equals("macrd") || f.equals("machrd")) {
-			// Explicit register form
-			if (!op1.isReg()) throw new SyntaxException("Instruction '"+f+"' requires register left operand, but '"+op1.getOpText()+"' is not register.", context);
-		}
-		else if (f.equals("macd")) {
-			f = op1.isReg() ? "macrd" : "macid"; // Choose the right instruction based on type of op1
-		}
-		else if (f.equals("machd")) {
-			f = op1.isReg() ? "machrd" : "machid"; // Choose the right instruction based on type of op1
-		}
-		
 		
-		return f;
+		if (op2.isReg()) throw new SyntaxException("Right operand is a register, but instruction '"+f+"' requires immediate (constant) value.", context);
+		throw new SyntaxException("Right operand '"+op2.getOpText()+"' is not a core register as required by instruction '"+f+"'", context);
 	}
 	
 
@@ -1,5 +1,7 @@
 package com.cabintech.utils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,11 +60,74 @@ public class Util {
 	public static final String jsSubstring(String s, int index1) {
 		return jsSubstring(s, index1, s.length());
 	}
-	
+
+	/**
+	 * Same bounding rules as jsSubstring() but returns a view onto the original characters
+	 * rather than a copy. Useful when the result is only going to be appended to a
+	 * StringBuilder or compared, where the intermediate String would be garbage.
+	 * @param s
+	 * @param index1
+	 * @param index2
+	 * @return
+	 */
+	public static final CharSequence jsSubSequence(CharSequence s, int index1, int index2) {
+		index1 = Math.min(s.length(), Math.max(0, index1)); // Bound 0 to string len
+		index2 = Math.min(s.length(), Math.max(0, index2)); // Bound 0 to string len
+
+		if (index1==index2) return "";
+
+		if (index1>index2) {
+			return new CharView(s, index2, index1);
+		}
+		return new CharView(s, index1, index2);
+	}
+
+	public static final CharSequence jsSubSequence(CharSequence s, int index1) {
+		return jsSubSequence(s, index1, s.length());
+	}
+
+	/**
+	 * Read-only window onto part of another CharSequence. No characters are copied until
+	 * toString() is called.
+	 */
+	private static final class CharView implements CharSequence {
+		private final CharSequence base;
+		private final int start;
+		private final int end;
+
+		CharView(CharSequence base, int start, int end) {
+			this.base = base;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+			return base.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > length() || from > to) throw new IndexOutOfBoundsException();
+			return new CharView(base, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return base.subSequence(start, end).toString();
+		}
+	}
+
 	public static String[] split(String s, String regex, int maxParts) {
 		if (s==null || (s.trim().length() == 0)) return new String[0]; // Unlike String.split(), return zero elements on empty input
 		return s.split(regex, maxParts);
-		
+
 	}
 	/**
 	 * Same as String.split() but smarter handling of empty input.
@@ -73,7 +138,153 @@ public class Util {
 	public static String[] split(String s, String regex) {
 		return split(s, regex, -1);
 	}
-	
+
+	/**
+	 * Same results as split(s, Pattern.quote(delim), maxParts) but the delimiter is a plain string,
+	 * no regex is compiled or run.
+	 * @param s
+	 * @param delim
+	 * @param maxParts
+	 * @return
+	 */
+	public static String[] splitLiteral(String s, String delim, int maxParts) {
+		List<String> parts = new ArrayList<>();
+		splitLiteral(s, delim, maxParts, parts);
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	public static String[] splitLiteral(String s, String delim) {
+		return splitLiteral(s, delim, -1);
+	}
+
+	/**
+	 * Literal split into a caller supplied list, which is cleared first. This allows a
+	 * single list to be reused when splitting many lines. Returns the number of parts.
+	 * @param s
+	 * @param delim
+	 * @param maxParts
+	 * @param into
+	 * @return
+	 */
+	public static int splitLiteral(String s, String delim, int maxParts, List<String> into) {
+		if (delim.length() == 0) throw new IllegalArgumentException("Split delimiter cannot be empty");
+		return splitInto(s, delim, maxParts, into);
+	}
+
+	/**
+	 * Same results as split(s, "\\p{Space}+", maxParts), e.g. tokenize on runs of white space.
+	 * @param s
+	 * @param maxParts
+	 * @return
+	 */
+	public static String[] splitWhitespace(String s, int maxParts) {
+		List<String> parts = new ArrayList<>();
+		splitWhitespace(s, maxParts, parts);
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	public static String[] splitWhitespace(String s) {
+		return splitWhitespace(s, -1);
+	}
+
+	/**
+	 * White space split into a caller supplied list, which is cleared first. Returns the number of parts.
+	 * @param s
+	 * @param maxParts
+	 * @param into
+	 * @return
+	 */
+	public static int splitWhitespace(String s, int maxParts, List<String> into) {
+		return splitInto(s, null, maxParts, into);
+	}
+
+	/**
+	 * Returns true for the same characters as the regex class \p{Space}
+	 * @param c
+	 * @return
+	 */
+	public static boolean isSpace(char c) {
+		return c==' ' || c=='\t' || c=='\n' || c=='\r' || c=='\f' || c==0x0B;
+	}
+
+	/**
+	 * Common splitter, a null delim means split on runs of white space. This follows the
+	 * String.split() rules exactly (leading empty part if the input starts with a delimiter,
+	 * maxParts<=0 is unlimited, maxParts==0 drops trailing empty parts) except that empty or
+	 * blank input produces zero parts (same as split() above).
+	 */
+	private static int splitInto(String s, String delim, int maxParts, List<String> into) {
+		into.clear();
+		if (s==null) return 0;
+		int len = s.length();
+		int firstNonBlank = 0;
+		while (firstNonBlank < len && s.charAt(firstNonBlank) <= ' ') firstNonBlank++; // Same test as String.trim()
+		if (firstNonBlank == len) return 0; // Unlike String.split(), return zero elements on empty input
+
+		int index = 0; // Start of the current part
+		int pos = 0;   // Where to look for the next delimiter
+		boolean limited = maxParts > 0;
+		while (pos < len) {
+			// Find next delimiter [start,end)
+			int start, end;
+			if (delim == null) {
+				start = pos;
+				while (start < len && !isSpace(s.charAt(start))) start++;
+				if (start == len) break;
+				end = start + 1;
+				while (end < len && isSpace(s.charAt(end))) end++;
+			}
+			else {
+				start = s.indexOf(delim, pos);
+				if (start < 0) break;
+				end = start + delim.length();
+			}
+			if (limited && into.size() >= maxParts - 1) break; // Last part is the rest of the input
+			into.add(s.substring(index, start));
+			index = end;
+			pos = end;
+		}
+
+		if (index == 0) { // No delimiter found
+			into.add(s);
+			return 1;
+		}
+		into.add(s.substring(index));
+
+		if (maxParts == 0) {
+			// Remove trailing empty parts
+			while (into.size() > 0 && into.get(into.size()-1).isEmpty()) {
+				into.remove(into.size()-1);
+			}
+		}
+		return into.size();
+	}
+
+	/**
+	 * Case-insensitive search for a literal string, returns index or -1 if not found.
+	 * @param s
+	 * @param target
+	 * @param fromIndex
+	 * @return
+	 */
+	public static int indexOfIgnoreCase(String s, String target, int fromIndex) {
+		int tlen = target.length();
+		int last = s.length() - tlen;
+		if (tlen == 0) return Math.min(Math.max(0, fromIndex), s.length());
+		char first = target.charAt(0);
+		char firstFold = Character.toLowerCase(Character.toUpperCase(first)); // Same folding as regionMatches()
+		for (int i=Math.max(0, fromIndex); i<=last; i++) {
+			char c = s.charAt(i);
+			if (c!=first && Character.toLowerCase(Character.toUpperCase(c))!=firstFold) continue; // Cheap first char test
+			if (s.regionMatches(true, i, target, 0, tlen)) return i;
+		}
+		return -1;
+	}
+
+	public static int indexOfIgnoreCase(String s, String target) {
+		return indexOfIgnoreCase(s, target, 0);
+	}
+
 	public static void info(String info) {
 		if (FXCoreMPMain.verbose.equals("info") || FXCoreMPMain.verbose.equals("debug")) {
 			System.out.println(info);
@@ -87,16 +298,34 @@ public class Util {
 	}
 	
 	/**
-	 * Case-insensative string replacement.
-	 * From https://stackoverflow.com/questions/5054995/how-to-replace-case-insensitive-literal-substrings-in-java
+	 * Case-insensative string replacement. Same results as the regex version from
+	 * https://stackoverflow.com/questions/5054995/how-to-replace-case-insensitive-literal-substrings-in-java
+	 * but does a plain scan of the source (no Pattern is compiled for every call).
 	 * @param source
 	 * @param target
 	 * @param replacement
 	 * @return
 	 */
 	public static String replaceAll(String source, String target, String replacement) {
-		return Pattern.compile(target, Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(source)
-		.replaceAll(Matcher.quoteReplacement(replacement)); 
+		if (target.length() == 0) {
+			// Degenerate case, same as the regex result (replacement inserted around every char)
+			return Pattern.compile(target, Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(source)
+			.replaceAll(Matcher.quoteReplacement(replacement));
+		}
+		
+		int i = indexOfIgnoreCase(source, target, 0);
+		if (i < 0) return source; // Nothing to replace, no new string
+		
+		StringBuilder sb = new StringBuilder(source.length() + Math.max(0, replacement.length()-target.length()) * 4);
+		int from = 0;
+		while (i >= 0) {
+			sb.append(source, from, i);
+			sb.append(replacement);
+			from = i + target.length();
+			i = indexOfIgnoreCase(source, target, from);
+		}
+		sb.append(source, from, source.length());
+		return sb.toString();
 	}
 	
     /**
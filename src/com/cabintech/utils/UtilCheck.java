@@ -0,0 +1,138 @@
+package com.cabintech.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author Mark McMillan
+ * Copyright (c) Cabintech Global LLC
+ *
+ * Checks that the regex-free string functions of Util give the same results as the regex versions
+ * they replaced. A fixed set of edge cases (leading, trailing and repeated delimiters, split limits,
+ * blank input, case folding) is checked, then random strings made from a small alphabet so that
+ * delimiters and matches are frequent. Run after changing Util:
+ *
+ *   java -cp FXCoreMP.jar com.cabintech.utils.UtilCheck [random iterations]
+ *
+ * Prints each difference found and exits with 1 if there were any.
+ */
+public class UtilCheck {
+
+	private static final String[] DELIMS = {",", "=", ";", "//", "ab", "\t", ".", "$"};
+	private static final int[] LIMITS = {-1, 0, 1, 2, 3, 5};
+	private static final String ALPHABET = "aAbB,=;/ \t\n.$xX\u00e9\u00c9";
+
+	private static final String[] FIXED = {
+		"", " ", "\t", " \t\n ", "a", "abc", ",", ",,", ",a", "a,", ",a,", "a,,b", "a,,,", ",,,a",
+		"a,b,c", " a , b ", "a=b=c", "=a", "a=", "==", ";;x;;", "x//y//", "//x", "ab", "abab", "aab",
+		"a b  c", " a b", "a b ", "  a  b  ", "a\tb\nc", "\ta", "a\t", "x.y.z", ".x.", "$a$", "a$$b",
+		"\u00e9,\u00c9", "\u0001a,b", "a,b\u0001",
+	};
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+	private UtilCheck() {
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		for (String s: FIXED) {
+			checkAll(s);
+		}
+		checkReplace("$a$b", "$", "\\");
+		checkReplace("Hello hello HELLO", "hello", "$1");
+		checkReplace("abc", "", "-");
+		checkReplace("", "", "-");
+		checkReplace("\u00c9t\u00e9", "\u00e9", "e");
+		checkJsSubstring("abcdef");
+		checkJsSubstring("");
+
+		Random random = new Random(1);
+		for (int i=0; i<iterations; i++) {
+			String s = randomString(random, random.nextInt(12));
+			checkAll(s);
+			checkReplace(s, randomString(random, 1 + random.nextInt(2)), randomString(random, random.nextInt(3)));
+			checkJsSubstring(s);
+		}
+
+		System.out.println("UtilCheck: "+checks+" checks, "+failures+" differences");
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Checks the splits and searches of one input string.
+	 */
+	private static void checkAll(String s) {
+		for (int limit: LIMITS) {
+			for (String delim: DELIMS) {
+				check("splitLiteral", s, delim+" limit "+limit, Util.split(s, Pattern.quote(delim), limit), Util.splitLiteral(s, delim, limit));
+			}
+			check("splitWhitespace", s, "limit "+limit, Util.split(s, "\\p{Space}+", limit), Util.splitWhitespace(s, limit));
+		}
+		for (String target: DELIMS) {
+			for (int from=-1; from<=s.length()+1; from++) {
+				checks++;
+				int expected = indexOfIgnoreCase(s, target, from);
+				int found = Util.indexOfIgnoreCase(s, target, from);
+				if (expected != found) fail("indexOfIgnoreCase", s, target+" from "+from, Integer.toString(expected), Integer.toString(found));
+			}
+		}
+	}
+
+	private static void checkReplace(String s, String target, String replacement) {
+		checks++;
+		String expected = Pattern.compile(target, Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(s)
+				.replaceAll(Matcher.quoteReplacement(replacement));
+		String found = Util.replaceAll(s, target, replacement);
+		if (!expected.equals(found)) fail("replaceAll", s, "'"+target+"' -> '"+replacement+"'", expected, found);
+	}
+
+	private static void checkJsSubstring(String s) {
+		for (int i=-1; i<=s.length()+1; i++) {
+			for (int j=-1; j<=s.length()+1; j++) {
+				checks++;
+				String expected = Util.jsSubstring(s, i, j);
+				String found = Util.jsSubSequence(s, i, j).toString();
+				if (!expected.equals(found)) fail("jsSubSequence", s, i+","+j, expected, found);
+			}
+			checks++;
+			String expected = Util.jsSubstring(s, i);
+			String found = Util.jsSubSequence(s, i).toString();
+			if (!expected.equals(found)) fail("jsSubSequence", s, Integer.toString(i), expected, found);
+		}
+	}
+
+	private static void check(String function, String s, String args, String[] expected, String[] found) {
+		checks++;
+		if (!Arrays.equals(expected, found)) fail(function, s, args, Arrays.toString(expected), Arrays.toString(found));
+	}
+
+	private static void fail(String function, String s, String args, String expected, String found) {
+		failures++;
+		System.out.println(function+"(\""+escape(s)+"\", "+escape(args)+"): expected "+escape(expected)+", found "+escape(found));
+	}
+
+	/**
+	 * Case-insensitive search with the same folding as Pattern CASE_INSENSITIVE|UNICODE_CASE.
+	 */
+	private static int indexOfIgnoreCase(String s, String target, int fromIndex) {
+		Matcher m = Pattern.compile(target, Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(s);
+		return m.find(Math.min(Math.max(0, fromIndex), s.length())) ? m.start() : -1;
+	}
+
+	private static String randomString(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<length; i++) {
+			sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\t", "\\t").replace("\n", "\\n");
+	}
+}